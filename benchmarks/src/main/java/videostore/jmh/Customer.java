@@ -0,0 +1,44 @@
+package videostore.jmh;
+
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/**
+ * The customer a benchmark thread plays: one of SyntheticCatalog's bench
+ * customers (ids 9 and up, on plan 4), a different one for each thread while
+ * there are enough of them. Also silences the thread's Query output, which
+ * would otherwise be timed along with the transactions.
+ */
+@State(Scope.Thread)
+public class Customer {
+    /* SyntheticCatalog gives ids 1 to 8 to setup.sql's customers */
+    static final int FIRST_BENCH_CUSTOMER = 9;
+
+    int cid;
+    Random random;
+
+    @Setup(Level.Trial)
+    public void pick(BenchmarkParams benchmark, ThreadParams thread) throws Exception {
+        int customers = Integer.parseInt(benchmark.getParam("customers"));
+        int bench_customers = Math.max(1, customers - FIRST_BENCH_CUSTOMER + 1);
+        cid = FIRST_BENCH_CUSTOMER + thread.getThreadIndex() % bench_customers;
+        random = new Random(cid);
+        Store.discardOutput();
+    }
+
+    /* a title word to search for */
+    String word() {
+        return Store.WORDS[random.nextInt(Store.WORDS.length)];
+    }
+
+    /* a movie id in 1..movies */
+    int movie(int movies) {
+        return 1 + random.nextInt(movies);
+    }
+}
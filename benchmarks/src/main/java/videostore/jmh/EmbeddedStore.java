@@ -0,0 +1,125 @@
+package videostore.jmh;
+
+import java.io.*;
+import java.net.URL;
+import java.util.Enumeration;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * The embedded databases the benchmarks run against. Each dataset size gets a
+ * directory of its own under videostore.jmh.dir (by default
+ * java.io.tmpdir/videostore-jmh) holding
+ *
+ *   imdb.mv.db, customer.mv.db   H2 databases, opened through H2SqlServerDriver
+ *   dbconn.properties            what Query and SyntheticCatalog connect with
+ *   setup.sql, drop.sql,         the store's scripts, copied out of its jar
+ *   migrations/
+ *
+ * The first use runs SyntheticCatalog on it, which loads setup.sql, the
+ * migrations and the synthetic catalog; later uses (every other fork and
+ * run) find it loaded and start at once. The benchmarks rent, return and
+ * change plans as they go, so RENTALS keeps growing; delete the directory
+ * to start over.
+ */
+public final class EmbeddedStore {
+    public static final String DIRECTORY_PROPERTY = "videostore.jmh.dir";
+
+    private static final String LOADED = "loaded";
+
+    private EmbeddedStore() {
+    }
+
+    /* the dbconn.properties of a database loaded with movies movies and customers customers */
+    public static synchronized File prepare(int movies, int customers) throws Exception {
+        File root = new File(System.getProperty(DIRECTORY_PROPERTY,
+                new File(System.getProperty("java.io.tmpdir"), "videostore-jmh").getPath()));
+        File dir = new File(root, movies + "-movies-" + customers + "-customers");
+        File config = new File(dir, "dbconn.properties");
+        if (new File(dir, LOADED).exists())
+            return config;
+
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("cannot create " + dir);
+        copyScripts(dir);
+        writeConfig(config, dir);
+        Store.storeClass("SyntheticCatalog").getMethod("main", String[].class)
+                .invoke(null, (Object) new String[] { config.getPath(), "" + movies, "" + customers });
+        new FileOutputStream(new File(dir, LOADED)).close();
+        return config;
+    }
+
+    private static void writeConfig(File config, File dir) throws IOException {
+        String url = H2SqlServerDriver.URL_PREFIX + "file:" + dir.getAbsolutePath().replace('\\', '/');
+        PrintWriter w = new PrintWriter(new OutputStreamWriter(new FileOutputStream(config), "UTF-8"));
+        try {
+            w.println("# written by videostore.jmh.EmbeddedStore");
+            w.println("videostore.jdbc_driver = " + H2SqlServerDriver.class.getName());
+            w.println("videostore.imdb_url = " + url + "/imdb");
+            w.println("videostore.customer_url = " + url + "/customer");
+            w.println("videostore.sqlazure_username = sa");
+            w.println("videostore.sqlazure_password =");
+        } finally {
+            w.close();
+        }
+    }
+
+    /* setup.sql, drop.sql and migrations/ from wherever Query was loaded: the store's
+       classes directory, its jar, or the benchmarks jar it was shaded into */
+    private static void copyScripts(File dir) throws IOException {
+        URL location = Store.storeClass("Query").getProtectionDomain().getCodeSource().getLocation();
+        File from;
+        try {
+            from = new File(location.toURI());
+        } catch (Exception e) {
+            throw new IOException("cannot locate the store's scripts at " + location, e);
+        }
+
+        if (from.isDirectory()) {
+            copy(new File(from, "setup.sql"), new File(dir, "setup.sql"));
+            copy(new File(from, "drop.sql"), new File(dir, "drop.sql"));
+            File[] migrations = new File(from, "migrations").listFiles();
+            if (migrations == null)
+                throw new IOException("no migrations in " + from);
+            for (File f : migrations)
+                copy(f, new File(dir, "migrations/" + f.getName()));
+            return;
+        }
+
+        JarFile jar = new JarFile(from);
+        try {
+            for (Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements(); ) {
+                JarEntry entry = e.nextElement();
+                String name = entry.getName();
+                if (name.equals("setup.sql") || name.equals("drop.sql")
+                        || (name.startsWith("migrations/") && name.endsWith(".sql")))
+                    copy(jar.getInputStream(entry), new File(dir, name));
+            }
+        } finally {
+            jar.close();
+        }
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        copy(new FileInputStream(from), to);
+    }
+
+    private static void copy(InputStream in, File to) throws IOException {
+        File parent = to.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs())
+            throw new IOException("cannot create " + parent);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) > 0)
+                    out.write(buf, 0, n);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package videostore.jmh;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * JDBC driver that runs the store's SQL Server dialect on an embedded H2
+ * database, so the benchmarks need no server:
+ *
+ *   jdbc:sqlserver-h2:<H2 database, e.g. file:/tmp/videostore/customer>
+ *
+ * H2's MSSQLServer mode already takes the queries Query runs (TOP, table
+ * hints, ISNULL, ...). What it does not take is rewritten, in the scripts as
+ * well as at run time:
+ *
+ *   - CLUSTERED / NONCLUSTERED, INCLUDE (...) and WITH (DROP_EXISTING = ON)
+ *     are dropped, and a column's FOREIGN KEY REFERENCES becomes REFERENCES
+ *   - a filtered unique index, CREATE UNIQUE INDEX i ON t (c) WHERE cond,
+ *     becomes a unique index on an invisible computed column that holds c
+ *     where cond holds and NULL elsewhere, plus a plain index on c; an
+ *     INSERT INTO t VALUES (...) gets the list of t's other columns
+ *   - DROP INDEX i ON t becomes DROP INDEX IF EXISTS i
+ *   - IF cond statement runs cond as a query first
+ *   - COMMIT / ROLLBACK TRANSACTION lose TRANSACTION, COUNT_BIG becomes COUNT
+ *
+ * SYSDATETIME(), OBJECT_ID(), COL_LENGTH() and sys.indexes are defined in
+ * every database the driver opens. H2's errors for a duplicate key, a
+ * deadlock, a lock timeout and a concurrent update get the SQL Server error
+ * codes Query and TransactionExecutor look for.
+ */
+public class H2SqlServerDriver implements Driver {
+    public static final String URL_PREFIX = "jdbc:sqlserver-h2:";
+
+    // IGNORECASE: strings compare without case, like SQL Server's default collation
+    private static final String H2_SETTINGS = ";MODE=MSSQLServer;DATABASE_TO_UPPER=FALSE;IGNORECASE=TRUE"
+            + ";CASE_INSENSITIVE_IDENTIFIERS=TRUE;NON_KEYWORDS=YEAR;LOCK_TIMEOUT=10000";
+
+    private static final String[] DEFINITIONS = {
+        "CREATE ALIAS IF NOT EXISTS SYSDATETIME FOR 'videostore.jmh.H2SqlServerDriver.sysDateTime'",
+        "CREATE ALIAS IF NOT EXISTS OBJECT_ID FOR 'videostore.jmh.H2SqlServerDriver.objectId'",
+        "CREATE ALIAS IF NOT EXISTS COL_LENGTH FOR 'videostore.jmh.H2SqlServerDriver.colLength'",
+        "CREATE SCHEMA IF NOT EXISTS sys",
+        "CREATE OR REPLACE VIEW sys.indexes AS " +
+                "SELECT INDEX_NAME AS name, OBJECT_ID(TABLE_NAME) AS object_id FROM INFORMATION_SCHEMA.INDEXES"
+    };
+
+    // SQL Server error codes Query and TransactionExecutor know, for H2's
+    private static final int H2_DUPLICATE_KEY = 23505;
+    private static final int H2_DEADLOCK = 40001;
+    private static final int H2_LOCK_TIMEOUT = 50200;
+    private static final int H2_CONCURRENT_UPDATE = 90131;
+    private static final int SQL_SERVER_DUPLICATE_KEY_ROW = 2601;
+    private static final int SQL_SERVER_DEADLOCK_VICTIM = 1205;
+    private static final int SQL_SERVER_LOCK_TIMEOUT = 1222;
+    private static final int SQL_SERVER_UPDATE_CONFLICT = 3960;
+
+    private static final Pattern CLUSTERED = Pattern.compile("(?i)\\b(NON)?CLUSTERED\\b\\s*");
+    private static final Pattern FOREIGN_KEY_REFERENCES = Pattern.compile("(?i)\\bFOREIGN\\s+KEY\\s+REFERENCES\\b");
+    private static final Pattern INCLUDE = Pattern.compile("(?i)\\s*\\bINCLUDE\\s*\\([^)]*\\)");
+    private static final Pattern DROP_EXISTING = Pattern.compile("(?i)\\s*\\bWITH\\s*\\(\\s*DROP_EXISTING\\s*=\\s*ON\\s*\\)");
+    private static final Pattern END_TRANSACTION = Pattern.compile("(?i)^\\s*(COMMIT|ROLLBACK)\\s+TRANSACTION\\s*;?\\s*$");
+    private static final Pattern COUNT_BIG = Pattern.compile("(?i)\\bCOUNT_BIG\\s*\\(");
+    private static final Pattern DROP_INDEX_ON = Pattern.compile("(?i)^\\s*DROP\\s+INDEX\\s+(\\w+)\\s+ON\\s+\\w+\\s*$");
+    private static final Pattern CREATE_INDEX = Pattern.compile(
+            "(?is)^\\s*CREATE\\s+(UNIQUE\\s+)?INDEX\\s+(\\w+)\\s+ON\\s+(\\w+)\\s*\\(([^)]*)\\)\\s*(WHERE\\s+(.*?))?\\s*$");
+    private static final Pattern INSERT_VALUES = Pattern.compile("(?is)^\\s*INSERT\\s+INTO\\s+(\\w+)\\s+(VALUES\\b.*)$");
+    private static final Pattern IF = Pattern.compile("(?is)^\\s*IF\\s+(.*)$");
+    private static final Pattern IF_EXISTS = Pattern.compile("(?is)^(NOT\\s+)?EXISTS\\s*\\(");
+    private static final Pattern IS_NULL = Pattern.compile("(?i)\\bIS\\s+(NOT\\s+)?NULL\\b");
+
+    private static final Set<String> defined = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final Driver h2 = new org.h2.Driver();
+
+    static {
+        try {
+            DriverManager.registerDriver(new H2SqlServerDriver());
+        } catch (SQLException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    public Connection connect(String url, Properties info) throws SQLException {
+        if (!acceptsURL(url))
+            return null;
+        String h2_url = "jdbc:h2:" + url.substring(URL_PREFIX.length()) + H2_SETTINGS;
+        Connection c = h2.connect(h2_url, info);
+        if (defined.add(h2_url)) {
+            Statement st = c.createStatement();
+            try {
+                for (String sql : DEFINITIONS)
+                    st.execute(sql);
+            } finally {
+                st.close();
+            }
+        }
+        return (Connection) proxy(Connection.class, c, c);
+    }
+
+    public boolean acceptsURL(String url) {
+        return url != null && url.startsWith(URL_PREFIX);
+    }
+
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+        return new DriverPropertyInfo[0];
+    }
+
+    public int getMajorVersion() {
+        return 1;
+    }
+
+    public int getMinorVersion() {
+        return 0;
+    }
+
+    public boolean jdbcCompliant() {
+        return false;
+    }
+
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    /**********************************************************/
+    /* functions defined in every database */
+
+    public static Timestamp sysDateTime() {
+        return new Timestamp(System.currentTimeMillis());
+    }
+
+    /* a number for a table, view or constraint called name, or NULL if there is none */
+    public static Integer objectId(Connection c, String name) throws SQLException {
+        PreparedStatement ps = c.prepareStatement(
+                "SELECT 1 FROM INFORMATION_SCHEMA.TABLES WHERE UPPER(TABLE_NAME) = UPPER(?) " +
+                "UNION ALL SELECT 1 FROM INFORMATION_SCHEMA.TABLE_CONSTRAINTS WHERE UPPER(CONSTRAINT_NAME) = UPPER(?)");
+        try {
+            ps.setString(1, name);
+            ps.setString(2, name);
+            ResultSet rs = ps.executeQuery();
+            boolean exists = rs.next();
+            rs.close();
+            return exists ? name.toUpperCase(Locale.ROOT).hashCode() & Integer.MAX_VALUE : null;
+        } finally {
+            ps.close();
+        }
+    }
+
+    /* the length of column table.column, or NULL if there is no such column */
+    public static Integer colLength(Connection c, String table, String column) throws SQLException {
+        PreparedStatement ps = c.prepareStatement(
+                "SELECT COALESCE(CHARACTER_MAXIMUM_LENGTH, 4) FROM INFORMATION_SCHEMA.COLUMNS " +
+                "WHERE UPPER(TABLE_NAME) = UPPER(?) AND UPPER(COLUMN_NAME) = UPPER(?)");
+        try {
+            ps.setString(1, table);
+            ps.setString(2, column);
+            ResultSet rs = ps.executeQuery();
+            Integer length = rs.next() ? Integer.valueOf((int) rs.getLong(1)) : null;
+            rs.close();
+            return length;
+        } finally {
+            ps.close();
+        }
+    }
+
+    /**********************************************************/
+    /* translation */
+
+    /* the H2 statements to run for sql, in order; IF conditions are decided on c
+       right away, so a false one leaves nothing to run */
+    static List<String> translate(Connection c, String sql) throws SQLException {
+        ArrayList<String> statements = new ArrayList<String>();
+        Matcher m = IF.matcher(sql);
+        if (m.matches()) {
+            String rest = m.group(1);
+            int end = conditionEnd(rest);
+            if (holds(c, rest.substring(0, end)))
+                statements.addAll(translate(c, rest.substring(end)));
+            return statements;
+        }
+
+        String s = CLUSTERED.matcher(sql).replaceAll("");
+        s = FOREIGN_KEY_REFERENCES.matcher(s).replaceAll("REFERENCES");
+        s = COUNT_BIG.matcher(s).replaceAll("COUNT(");
+        s = END_TRANSACTION.matcher(s).replaceAll("$1");
+
+        m = DROP_INDEX_ON.matcher(s);
+        if (m.matches()) {
+            statements.add("DROP INDEX IF EXISTS " + m.group(1));
+            return statements;
+        }
+
+        s = INCLUDE.matcher(s).replaceAll("");
+        if (DROP_EXISTING.matcher(s).find()) {
+            s = DROP_EXISTING.matcher(s).replaceAll("");
+            m = CREATE_INDEX.matcher(s);
+            if (m.matches())
+                statements.add("DROP INDEX IF EXISTS " + m.group(2));
+        }
+
+        m = CREATE_INDEX.matcher(s);
+        if (m.matches() && m.group(5) != null) {
+            /* filtered index: unique on (CASE WHEN cond THEN column END), which is NULL,
+               and so never a duplicate, for the rows the filter leaves out (NULLS
+               DISTINCT: MSSQLServer mode otherwise allows one NULL, like SQL Server) */
+            String index = m.group(2), table = m.group(3), column = m.group(4).trim(), condition = m.group(6);
+            String key = index + "_key";
+            statements.add("ALTER TABLE " + table + " ADD COLUMN IF NOT EXISTS " + key + " integer INVISIBLE " +
+                    "GENERATED ALWAYS AS (CASE WHEN " + condition + " THEN " + column + " END)");
+            statements.add("CREATE INDEX IF NOT EXISTS " + index + "_" + column + " ON " + table + " (" + column + ")");
+            statements.add("CREATE " + (m.group(1) != null ? "UNIQUE NULLS DISTINCT " : "") + "INDEX " + index + " ON " + table + " (" + key + ")");
+            return statements;
+        }
+
+        m = INSERT_VALUES.matcher(s);
+        if (m.matches()) {
+            String columns = visibleColumns(c, m.group(1));
+            if (columns != null)
+                s = "INSERT INTO " + m.group(1) + " (" + columns + ") " + m.group(2);
+        }
+
+        statements.add(s);
+        return statements;
+    }
+
+    /* table's visible columns in order, comma-separated, or null if it has no invisible ones */
+    private static String visibleColumns(Connection c, String table) throws SQLException {
+        PreparedStatement ps = c.prepareStatement(
+                "SELECT COLUMN_NAME, IS_VISIBLE FROM INFORMATION_SCHEMA.COLUMNS " +
+                "WHERE UPPER(TABLE_NAME) = UPPER(?) ORDER BY ORDINAL_POSITION");
+        try {
+            ps.setString(1, table);
+            ResultSet rs = ps.executeQuery();
+            StringBuilder columns = new StringBuilder();
+            boolean invisible = false;
+            while (rs.next()) {
+                if (!rs.getBoolean(2)) {
+                    invisible = true;
+                    continue;
+                }
+                if (columns.length() > 0)
+                    columns.append(", ");
+                columns.append(rs.getString(1));
+            }
+            rs.close();
+            return invisible ? columns.toString() : null;
+        } finally {
+            ps.close();
+        }
+    }
+
+    /* where the condition at the start of s (after IF) ends: after the parenthesis
+       closing [NOT] EXISTS (...), or after IS [NOT] NULL */
+    private static int conditionEnd(String s) throws SQLException {
+        Matcher m = IF_EXISTS.matcher(s);
+        if (m.find()) {
+            int depth = 1;
+            for (int i = m.end(); i < s.length(); i++) {
+                char ch = s.charAt(i);
+                if (ch == '(')
+                    depth++;
+                else if (ch == ')' && --depth == 0)
+                    return i + 1;
+            }
+        } else {
+            m = IS_NULL.matcher(s);
+            if (m.find())
+                return m.end();
+        }
+        throw new SQLException("cannot find the end of the IF condition in: " + s);
+    }
+
+    private static boolean holds(Connection c, String condition) throws SQLException {
+        Statement st = c.createStatement();
+        try {
+            ResultSet rs = st.executeQuery("SELECT CASE WHEN " + condition + " THEN 1 ELSE 0 END");
+            rs.next();
+            boolean holds = rs.getInt(1) == 1;
+            rs.close();
+            return holds;
+        } finally {
+            st.close();
+        }
+    }
+
+    /* a statement to prepare must stay one statement */
+    private static String translateOne(Connection c, String sql) throws SQLException {
+        List<String> statements = translate(c, sql);
+        if (statements.size() != 1)
+            throw new SQLFeatureNotSupportedException("cannot prepare as one H2 statement: " + sql);
+        return statements.get(0);
+    }
+
+    /**********************************************************/
+    /* wrappers */
+
+    /* the H2 object target behind iface, translating the SQL passed to it, wrapping the
+       statements it returns and giving its errors SQL Server codes */
+    private static Object proxy(Class<?> iface, final Object target, final Connection c) {
+        return Proxy.newProxyInstance(H2SqlServerDriver.class.getClassLoader(), new Class<?>[] { iface },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+                        String name = m.getName();
+                        boolean takes_sql = args != null && args.length > 0 && args[0] instanceof String
+                                && m.getParameterTypes()[0] == String.class;
+                        try {
+                            if (takes_sql && target instanceof Connection
+                                    && (name.equals("prepareStatement") || name.equals("prepareCall") || name.equals("nativeSQL"))) {
+                                args[0] = translateOne(c, (String) args[0]);
+                            } else if (takes_sql && target instanceof Statement && !(target instanceof PreparedStatement)
+                                    && (name.startsWith("execute") || name.equals("addBatch"))) {
+                                return runTranslated((Statement) target, m, args);
+                            }
+                            Object result = m.invoke(target, args);
+                            if (result instanceof CallableStatement)
+                                return proxy(CallableStatement.class, result, c);
+                            if (result instanceof PreparedStatement)
+                                return proxy(PreparedStatement.class, result, c);
+                            if (result instanceof Statement)
+                                return proxy(Statement.class, result, c);
+                            return result;
+                        } catch (InvocationTargetException e) {
+                            throw sqlServerError(e.getCause());
+                        } catch (SQLException e) {
+                            throw sqlServerError(e);
+                        }
+                    }
+                });
+    }
+
+    /* runs m(sql, ...) on st for each statement sql translates to; the last one's
+       result is returned */
+    private static Object runTranslated(Statement st, Method m, Object[] args) throws Throwable {
+        List<String> statements = translate(st.getConnection(), (String) args[0]);
+        if (statements.isEmpty()) {
+            /* an IF whose condition did not hold */
+            Class<?> type = m.getReturnType();
+            if (type == boolean.class)
+                return false;
+            if (type == int.class)
+                return 0;
+            if (type == long.class)
+                return 0L;
+            if (type == void.class)
+                return null;
+            throw new SQLFeatureNotSupportedException("nothing to return from " + m.getName() + " for: " + args[0]);
+        }
+        Object result = null;
+        for (String sql : statements) {
+            args[0] = sql;
+            result = m.invoke(st, args);
+        }
+        return result;
+    }
+
+    private static Throwable sqlServerError(Throwable t) {
+        if (!(t instanceof SQLException))
+            return t;
+        SQLException e = (SQLException) t;
+        int code;
+        switch (e.getErrorCode()) {
+            case H2_DUPLICATE_KEY:     code = SQL_SERVER_DUPLICATE_KEY_ROW; break;
+            case H2_DEADLOCK:          code = SQL_SERVER_DEADLOCK_VICTIM; break;
+            case H2_LOCK_TIMEOUT:      code = SQL_SERVER_LOCK_TIMEOUT; break;
+            case H2_CONCURRENT_UPDATE: code = SQL_SERVER_UPDATE_CONFLICT; break;
+            default:                   return e;
+        }
+        if (e instanceof BatchUpdateException)
+            return new BatchUpdateException(e.getMessage(), e.getSQLState(), code,
+                    ((BatchUpdateException) e).getUpdateCounts(), e);
+        return new SQLException(e.getMessage(), e.getSQLState(), code, e);
+    }
+}
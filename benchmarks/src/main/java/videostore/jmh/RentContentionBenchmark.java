@@ -0,0 +1,81 @@
+package videostore.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * Rent and return under contention: every thread rents from the same few
+ * hotMovies, once per rentMode. Besides throughput it reports how each
+ * attempt ended (committed, refused because the movie was out, or failed
+ * after TransactionExecutor gave up) and, at the end of the trial,
+ * TransactionExecutor's retry and abort counts, so the serializable and
+ * optimistic modes can be compared on commit and abort rates as well as speed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+public class RentContentionBenchmark {
+    @Param("10000")
+    public int movies;
+
+    @Param("64")
+    public int customers;
+
+    @Param({ "serializable", "optimistic" })
+    public String rentMode;
+
+    @Param("4")
+    public int hotMovies;
+
+    Store store;
+
+    @Setup(Level.Trial)
+    public void open(BenchmarkParams params) throws Exception {
+        store = new Store(EmbeddedStore.prepare(movies, customers), params.getThreads(), rentMode);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+        System.out.println();
+        for (String type : new String[] { "rent", "return" })
+            System.out.println(type + " (" + rentMode + "): " + store.getRetries(type) + " retries, "
+                    + store.getAborts(type) + " aborts");
+        store.close();
+    }
+
+    /* how this thread's attempts ended, per iteration */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Outcomes {
+        public long committed;
+        public long refused;
+        public long failed;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            committed = 0;
+            refused = 0;
+            failed = 0;
+        }
+    }
+
+    @Benchmark
+    public void rentAndReturn(Customer c, Outcomes o) {
+        int mid = 1 + c.random.nextInt(Math.min(hotMovies, movies));
+        try {
+            if (!store.rent(c.cid, mid)) {
+                o.refused++;
+                return;
+            }
+            o.committed++;
+            store.returnMovie(c.cid, mid);
+        } catch (Exception e) {
+            o.failed++;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package videostore.jmh;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * A Query opened on an embedded database, for the benchmarks. Query and the
+ * rest of the store are in the default package, which a class in a named
+ * package (JMH requires one for benchmarks) cannot refer to, so Query is
+ * called by reflection. The methods are looked up once; invoking one costs
+ * far less than the round trips of the transaction behind it.
+ */
+final class Store {
+    private static final Class<?> QUERY = storeClass("Query");
+    private static final Class<?> TRANSACTION_EXECUTOR = storeClass("TransactionExecutor");
+
+    private static final Method SET_OUTPUT = method(QUERY, "setOutput", PrintStream.class);
+    private static final Method SET_POOL_SIZE = method(QUERY, "setPoolSize", int.class);
+    private static final Method SET_RENT_MODE = method(QUERY, "setRentMode", String.class);
+    private static final Method OPEN_CONNECTION = method(QUERY, "openConnection");
+    private static final Method PREPARE_STATEMENTS = method(QUERY, "prepareStatements");
+    private static final Method CLOSE_CONNECTION = method(QUERY, "closeConnection");
+    private static final Method GET_TRANSACTION_EXECUTOR = method(QUERY, "getTransactionExecutor");
+    private static final Method SEARCH = method(QUERY, "transaction_search", int.class, String.class);
+    private static final Method FAST_SEARCH = method(QUERY, "transaction_fastSearch", int.class, String.class);
+    private static final Method RENT = method(QUERY, "transaction_rent", int.class, int.class);
+    private static final Method RETURN = method(QUERY, "transaction_return", int.class, int.class);
+    private static final Method CHOOSE_PLAN = method(QUERY, "transaction_choosePlan", int.class, int.class);
+    private static final Method PRINT_PERSONAL_DATA = method(QUERY, "transaction_printPersonalData", int.class);
+    private static final Method GET_RETRIES = method(TRANSACTION_EXECUTOR, "getRetries", String.class);
+    private static final Method GET_ABORTS = method(TRANSACTION_EXECUTOR, "getAborts", String.class);
+
+    /* the title words SyntheticCatalog builds its titles from */
+    static final String[] WORDS = (String[]) staticField(storeClass("SyntheticCatalog"), "WORDS");
+
+    private static final PrintStream DISCARD = new PrintStream(new OutputStream() {
+        public void write(int b) { }
+        public void write(byte[] b, int off, int len) { }
+    });
+
+    private final Object query;
+
+    /* opens a Query on config with pool_size connections per database */
+    Store(File config, int pool_size, String rent_mode) throws Exception {
+        query = QUERY.getConstructor(String.class).newInstance(config.getPath());
+        call(SET_POOL_SIZE, pool_size);
+        call(SET_RENT_MODE, rent_mode);
+        call(OPEN_CONNECTION);
+        call(PREPARE_STATEMENTS);
+    }
+
+    /* drops what the transactions print on this thread */
+    static void discardOutput() throws Exception {
+        invoke(SET_OUTPUT, null, DISCARD);
+    }
+
+    void search(int cid, String title) throws Exception {
+        call(SEARCH, cid, title);
+    }
+
+    void fastSearch(int cid, String title) throws Exception {
+        call(FAST_SEARCH, cid, title);
+    }
+
+    boolean rent(int cid, int mid) throws Exception {
+        return (Boolean) call(RENT, cid, mid);
+    }
+
+    boolean returnMovie(int cid, int mid) throws Exception {
+        return (Boolean) call(RETURN, cid, mid);
+    }
+
+    void choosePlan(int cid, int pid) throws Exception {
+        call(CHOOSE_PLAN, cid, pid);
+    }
+
+    void printPersonalData(int cid) throws Exception {
+        call(PRINT_PERSONAL_DATA, cid);
+    }
+
+    /* TransactionExecutor's count of reruns of a transaction type */
+    long getRetries(String type) throws Exception {
+        return (Long) invoke(GET_RETRIES, call(GET_TRANSACTION_EXECUTOR), type);
+    }
+
+    /* TransactionExecutor's count of transactions of a type given up on */
+    long getAborts(String type) throws Exception {
+        return (Long) invoke(GET_ABORTS, call(GET_TRANSACTION_EXECUTOR), type);
+    }
+
+    void close() throws Exception {
+        call(CLOSE_CONNECTION);
+    }
+
+    private Object call(Method m, Object... args) throws Exception {
+        return invoke(m, query, args);
+    }
+
+    private static Object invoke(Method m, Object target, Object... args) throws Exception {
+        try {
+            return m.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception)
+                throw (Exception) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw e;
+        }
+    }
+
+    static Class<?> storeClass(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("the store's " + name + " is not on the class path", e);
+        }
+    }
+
+    private static Method method(Class<?> c, String name, Class<?>... parameters) {
+        try {
+            return c.getMethod(name, parameters);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(c.getName() + "." + name + " is missing", e);
+        }
+    }
+
+    private static Object staticField(Class<?> c, String name) {
+        try {
+            return c.getField(name).get(null);
+        } catch (Exception e) {
+            throw new IllegalStateException(c.getName() + "." + name + " is missing", e);
+        }
+    }
+}
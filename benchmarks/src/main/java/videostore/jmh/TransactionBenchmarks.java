@@ -0,0 +1,109 @@
+package videostore.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * Throughput of the store's transactions against the embedded database (see
+ * EmbeddedStore), each thread acting as its own customer (see Customer).
+ * Query gets a pool of as many connections as there are benchmark threads,
+ * so TransactionSuite's thread counts measure how the transactions scale
+ * rather than how long threads wait for a connection.
+ *
+ * rent returns each movie it rents outside the measurement, and return rents
+ * one beforehand, so both leave the customer as they found it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+public class TransactionBenchmarks {
+    @Param("10000")
+    public int movies;
+
+    @Param("64")
+    public int customers;
+
+    @Param("serializable")
+    public String rentMode;
+
+    Store store;
+
+    @Setup(Level.Trial)
+    public void open(BenchmarkParams params) throws Exception {
+        store = new Store(EmbeddedStore.prepare(movies, customers), params.getThreads(), rentMode);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+        store.close();
+    }
+
+    /* a movie the thread's customer holds while rent is measured, returned after each call */
+    @State(Scope.Thread)
+    public static class Rental {
+        int mid;
+        boolean rented;
+
+        @TearDown(Level.Invocation)
+        public void giveBack(TransactionBenchmarks b, Customer c) throws Exception {
+            if (rented)
+                b.store.returnMovie(c.cid, mid);
+            rented = false;
+        }
+    }
+
+    /* a movie rented before each call of return */
+    @State(Scope.Thread)
+    public static class Rented {
+        int mid;
+
+        @Setup(Level.Invocation)
+        public void rentOne(TransactionBenchmarks b, Customer c) throws Exception {
+            /* another thread may hold the movie picked; try a few */
+            for (int attempt = 0; attempt < 100; attempt++) {
+                mid = c.movie(b.movies);
+                if (b.store.rent(c.cid, mid))
+                    return;
+            }
+            throw new IllegalStateException("customer " + c.cid + " could not rent a movie to return");
+        }
+    }
+
+    @Benchmark
+    public void search(Customer c) throws Exception {
+        store.search(c.cid, c.word());
+    }
+
+    @Benchmark
+    public void fastSearch(Customer c) throws Exception {
+        store.fastSearch(c.cid, c.word());
+    }
+
+    @Benchmark
+    public boolean rent(Customer c, Rental r) throws Exception {
+        r.mid = c.movie(movies);
+        r.rented = store.rent(c.cid, r.mid);
+        return r.rented;
+    }
+
+    @Benchmark
+    public boolean returnMovie(Customer c, Rented r) throws Exception {
+        return store.returnMovie(c.cid, r.mid);
+    }
+
+    /* between plans 3 and 4, both of which allow the one rental a thread may hold */
+    @Benchmark
+    public void choosePlan(Customer c) throws Exception {
+        store.choosePlan(c.cid, 3 + c.random.nextInt(2));
+    }
+
+    @Benchmark
+    public void printPersonalData(Customer c) throws Exception {
+        store.printPersonalData(c.cid);
+    }
+}
@@ -0,0 +1,81 @@
+package videostore.jmh;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks once per thread count and prints one table of all of
+ * them at the end:
+ *
+ *   java -jar benchmarks.jar [threads...] [JMH options]
+ *
+ * The thread counts default to 1, 4 and 16. JMH options follow them as they
+ * would for JMH's own main, e.g. a benchmark regex (default: all of
+ * TransactionBenchmarks and RentContentionBenchmark) or -p movies=100000 -p
+ * customers=256 for a bigger dataset. videostore.jmh.dir (see EmbeddedStore)
+ * is passed on to the forked JVMs.
+ */
+public class TransactionSuite {
+    private static final int[] DEFAULT_THREADS = { 1, 4, 16 };
+
+    public static void main(String[] args) throws Exception {
+        List<Integer> threads = new ArrayList<Integer>();
+        int first_option = 0;
+        while (first_option < args.length && args[first_option].matches("[0-9]+"))
+            threads.add(Integer.parseInt(args[first_option++]));
+        if (threads.isEmpty())
+            for (int t : DEFAULT_THREADS)
+                threads.add(t);
+        CommandLineOptions options = new CommandLineOptions(Arrays.copyOfRange(args, first_option, args.length));
+
+        List<RunResult> results = new ArrayList<RunResult>();
+        for (int t : threads) {
+            ChainedOptionsBuilder builder = new OptionsBuilder().parent(options).threads(t);
+            if (options.getIncludes().isEmpty())
+                builder.include(TransactionBenchmarks.class.getName())
+                       .include(RentContentionBenchmark.class.getName());
+            String dir = System.getProperty(EmbeddedStore.DIRECTORY_PROPERTY);
+            if (dir != null)
+                builder.jvmArgsAppend("-D" + EmbeddedStore.DIRECTORY_PROPERTY + "=" + dir);
+            Collection<RunResult> run = new Runner(builder.build()).run();
+            results.addAll(run);
+        }
+
+        int width = "benchmark".length();
+        for (RunResult r : results)
+            width = Math.max(width, label(r).length());
+        String row = "%-" + width + "s %7s %12s %10s  %s%n";
+
+        System.out.println();
+        System.out.printf(row, "benchmark", "threads", "score", "error", "units");
+        for (RunResult r : results) {
+            Result<?> score = r.getPrimaryResult();
+            System.out.printf(row, label(r), r.getParams().getThreads(), String.format("%.1f", score.getScore()),
+                    String.format("%.1f", score.getScoreError()), score.getScoreUnit());
+            for (Result<?> secondary : r.getSecondaryResults().values())
+                System.out.printf(row, "  " + secondary.getLabel(), "", String.format("%.1f", secondary.getScore()),
+                        "", secondary.getScoreUnit());
+        }
+    }
+
+    /* the benchmark method and its parameters, e.g. rent(rentMode=optimistic) */
+    private static String label(RunResult r) {
+        String name = r.getParams().getBenchmark();
+        StringBuilder sb = new StringBuilder(name.substring(name.lastIndexOf('.') + 1));
+        String sep = "(";
+        for (String key : r.getParams().getParamsKeys()) {
+            sb.append(sep).append(key).append('=').append(r.getParams().getParam(key));
+            sep = ", ";
+        }
+        return sep.equals(", ") ? sb.append(')').toString() : sb.toString();
+    }
+}
@@ -0,0 +1,170 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Puts a bounded queue between the thread reading a result and a sink that
+ * may be slow to write it (a console, a slow client). The reading thread
+ * records each call in a batch and hands full batches to a writer thread, so
+ * the database cursor keeps moving while output is being written. Once
+ * capacity batches are waiting, the reader blocks until the writer catches
+ * up, which bounds the memory a slow consumer can pin.
+ *
+ * Batches are recycled, so recording a call does not allocate. end() waits
+ * until the whole result has been written, and rethrows what the delegate
+ * threw along the way. One thread uses a sink at a time.
+ */
+public class AsyncResultSink implements ResultSink {
+    private static final int BATCH_SIZE = 256;
+
+    private static final int BEGIN = 0;
+    private static final int MOVIE = 1;
+    private static final int DIRECTOR = 2;
+    private static final int ACTOR = 3;
+    private static final int STATUS = 4;
+    private static final int END = 5;
+
+    private static class Batch {
+        final int[] op = new int[BATCH_SIZE];
+        final int[] number = new int[BATCH_SIZE];
+        final String[] a = new String[BATCH_SIZE];
+        final String[] b = new String[BATCH_SIZE];
+        int size = 0;
+    }
+
+    private final ResultSink delegate;
+    private final BlockingQueue<Batch> full;
+    private final BlockingQueue<Batch> free;
+    private final BlockingQueue<Object> done = new ArrayBlockingQueue<Object>(1);
+    private final Thread writer;
+    private Batch current;
+
+    private volatile IOException failure;
+
+    public AsyncResultSink(ResultSink delegate, int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be at least 1: " + capacity);
+        this.delegate = delegate;
+        this.full = new ArrayBlockingQueue<Batch>(capacity);
+        this.free = new ArrayBlockingQueue<Batch>(capacity + 1);
+        for (int i = 0; i < capacity; i++)
+            free.add(new Batch());
+        this.current = new Batch();
+
+        writer = new Thread("result writer") {
+            public void run() {
+                drain();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public void begin(String transaction, String term) throws IOException {
+        record(BEGIN, 0, transaction, term);
+    }
+
+    public void movie(int id, String title, String year) throws IOException {
+        record(MOVIE, id, title, year);
+    }
+
+    public void director(String lname, String fname) throws IOException {
+        record(DIRECTOR, 0, lname, fname);
+    }
+
+    public void actor(String lname, String fname) throws IOException {
+        record(ACTOR, 0, lname, fname);
+    }
+
+    public void status(int status) throws IOException {
+        record(STATUS, status, null, null);
+    }
+
+    public void end() throws IOException {
+        record(END, 0, null, null);
+        handOver();
+        try {
+            done.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted waiting for the result to be written");
+        }
+        IOException e = failure;
+        if (e != null) {
+            failure = null;
+            throw e;
+        }
+    }
+
+    /* stops the writer thread; results still queued are dropped */
+    public void close() {
+        writer.interrupt();
+    }
+
+    private void record(int op, int number, String a, String b) throws IOException {
+        Batch batch = current;
+        batch.op[batch.size] = op;
+        batch.number[batch.size] = number;
+        batch.a[batch.size] = a;
+        batch.b[batch.size] = b;
+        if (++batch.size == BATCH_SIZE)
+            handOver();
+    }
+
+    /* queues the current batch (blocking while the writer is capacity batches behind) and takes a free one */
+    private void handOver() throws IOException {
+        try {
+            full.put(current);
+            current = free.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted waiting for the result writer");
+        }
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                Batch batch = full.take();
+                for (int i = 0; i < batch.size; i++) {
+                    try {
+                        replay(batch, i);
+                    } catch (IOException e) {
+                        if (failure == null)
+                            failure = e;
+                    }
+                    if (batch.op[i] == END)
+                        done.put(Boolean.TRUE);
+                }
+                Arrays.fill(batch.a, 0, batch.size, null);
+                Arrays.fill(batch.b, 0, batch.size, null);
+                batch.size = 0;
+                free.put(batch);
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    private void replay(Batch batch, int i) throws IOException {
+        switch (batch.op[i]) {
+            case BEGIN:
+                delegate.begin(batch.a[i], batch.b[i]);
+                break;
+            case MOVIE:
+                delegate.movie(batch.number[i], batch.a[i], batch.b[i]);
+                break;
+            case DIRECTOR:
+                delegate.director(batch.a[i], batch.b[i]);
+                break;
+            case ACTOR:
+                delegate.actor(batch.a[i], batch.b[i]);
+                break;
+            case STATUS:
+                delegate.status(batch.number[i]);
+                break;
+            default:
+                delegate.end();
+        }
+    }
+}
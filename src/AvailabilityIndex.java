@@ -0,0 +1,137 @@
+import java.sql.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory copy of the open rows of RENTALS: movie id -> id of the customer
+ * currently renting it. Query loads it once at startup, so the search status
+ * column can be answered without a round trip.
+ *
+ * Rent and return keep it up to date on commit. A transaction takes a version
+ * of the movie with beginChange() once it has written the movie's rental row,
+ * while it still holds that row's locks, and stores the committed renter with
+ * committed() afterwards. Two transactions on the same movie cannot both hold
+ * those locks, so their versions follow their commit order, and an update
+ * that arrives late (a lower version than the one stored) is dropped.
+ *
+ * A movie whose transaction failed after it started writing is marked UNKNOWN
+ * (invalidate()), since the outcome of the commit is not known. Query then
+ * reads it from RENTALS again and stores the answer with refreshed(), which
+ * drops it if the movie got a newer version since the stamp taken before the
+ * read.
+ *
+ * Only this process's transactions are seen after startup; rentals made by
+ * other clients show up once the index is loaded again. Versions are ints
+ * and wrap after 2^31 changes, which takes far longer than a store runs.
+ */
+public class AvailabilityIndex {
+    public static final int NOT_RENTED = -1;
+    public static final int UNKNOWN = -2;
+
+    private final IntIntMap renters = new IntIntMap(1024);
+    private final IntIntMap issued = new IntIntMap(1024);   /* movie -> newest version handed out */
+    private final IntIntMap applied = new IntIntMap(1024);  /* movie -> version of what renters holds */
+    private int nextVersion = 1;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /* replaces the contents with (movieid, customerid) rows */
+    public void load(ResultSet open_rentals_set) throws SQLException {
+        lock.writeLock().lock();
+        try {
+            renters.clear();
+            issued.clear();
+            applied.clear();
+            while (open_rentals_set.next())
+                renters.put(open_rentals_set.getInt(1), open_rentals_set.getInt(2));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /* customer renting mid, NOT_RENTED, or UNKNOWN if it must be re-read */
+    public int getRenter(int mid) {
+        lock.readLock().lock();
+        try {
+            return renters.get(mid, NOT_RENTED);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return renters.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /* a new version of mid, for a transaction that has written mid's rental row and
+       is about to commit */
+    public int beginChange(int mid) {
+        lock.writeLock().lock();
+        try {
+            return issue(mid);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /* the transaction that took version committed: renter (or NOT_RENTED) now holds mid */
+    public void committed(int mid, int renter, int version) {
+        lock.writeLock().lock();
+        try {
+            if (version >= applied.get(mid, 0))
+                store(mid, renter, version);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /* forget what is known about mid until it is re-read from the database; called
+       when a transaction that may have written mid failed, so its outcome is unknown */
+    public void invalidate(int mid) {
+        lock.writeLock().lock();
+        try {
+            store(mid, UNKNOWN, issue(mid));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /* taken before reading mid from the database */
+    public int loadStamp(int mid) {
+        lock.readLock().lock();
+        try {
+            return issued.get(mid, 0);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /* stores a fresh database answer for mid, unless mid got a new version since stamp */
+    public void refreshed(int mid, int renter, int stamp) {
+        lock.writeLock().lock();
+        try {
+            if (issued.get(mid, 0) != stamp || renters.get(mid, NOT_RENTED) != UNKNOWN)
+                return;
+            store(mid, renter, stamp);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int issue(int mid) {
+        int version = nextVersion++;
+        issued.put(mid, version);
+        return version;
+    }
+
+    private void store(int mid, int renter, int version) {
+        if (renter == NOT_RENTED)
+            renters.remove(mid);
+        else
+            renters.put(mid, renter);
+        applied.put(mid, version);
+    }
+}
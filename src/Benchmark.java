@@ -0,0 +1,827 @@
+import java.io.FileInputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load tests and benchmarks for Query, run against the databases in dbconn.properties
+ * (or the file named by -Dvideostore.config, e.g. a local database loaded by
+ * SyntheticCatalog).
+ *
+ *   java Benchmark pool [threads] [seconds] [customer id]
+ *   java Benchmark search <movie title> [runs] [batch size...]
+ *   java Benchmark titleindex [runs] <movie title...>
+ *   java Benchmark titlescan [runs] <movie title...>
+ *   java Benchmark fastsearch [runs] <movie title...>
+ *   java Benchmark allocation [runs] <movie title...>
+ *   java Benchmark startup [runs] <movie title>
+ *   java Benchmark contention [threads] [seconds] [movie id...]
+ *   java Benchmark history [movies] [customers] [seconds] [rentals...]
+ *   java Benchmark cart [customer id] [runs] [movies] [cart size...]
+ *   java Benchmark suite [movies] [customers] [seconds] [threads...]
+ *
+ * Output printed by the transactions themselves is discarded while a run is in progress.
+ */
+public class Benchmark {
+    private static final String DBCONFIG_FILENAME = System.getProperty("videostore.config", "dbconn.properties");
+
+    private static final int SUITE_WARMUP_ITERATIONS = 1;
+    private static final int SUITE_MEASURED_ITERATIONS = 3;
+
+    /* the movies listed at the end of setup.sql */
+    private static final int[] FAMOUS_MOVIES = { 93055, 349560, 285769, 272734, 159622, 596836, 118685, 497670 };
+    /* the customers created by setup.sql */
+    private static final int CUSTOMERS = 8;
+
+    private static final PrintStream CONSOLE = System.out;
+    private static final PrintStream DISCARD = new PrintStream(new OutputStream() {
+        public void write(int b) { }
+        public void write(byte[] b, int off, int len) { }
+    });
+
+    public static void usage() {
+        CONSOLE.println("Usage: java Benchmark pool [threads] [seconds] [customer id]");
+        CONSOLE.println("       java Benchmark search <movie title> [runs] [batch size...]");
+        CONSOLE.println("       java Benchmark titleindex [runs] <movie title...>");
+        CONSOLE.println("       java Benchmark titlescan [runs] <movie title...>");
+        CONSOLE.println("       java Benchmark fastsearch [runs] <movie title...>");
+        CONSOLE.println("       java Benchmark allocation [runs] <movie title...>");
+        CONSOLE.println("       java Benchmark startup [runs] <movie title>");
+        CONSOLE.println("       java Benchmark contention [threads] [seconds] [movie id...]");
+        CONSOLE.println("       java Benchmark history [movies] [customers] [seconds] [rentals...]");
+        CONSOLE.println("       java Benchmark cart [customer id] [runs] [movies] [cart size...]");
+        CONSOLE.println("       java Benchmark suite [movies] [customers] [seconds] [threads...]");
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            usage();
+            System.exit(1);
+        }
+
+        String t = args[0];
+        if (t.equals("pool")) {
+            int threads = intArg(args, 1, 32);
+            int seconds = intArg(args, 2, 10);
+            int cid = intArg(args, 3, 1);
+            poolThroughput(threads, seconds, cid);
+        }
+        else if (t.equals("search") && args.length > 1) {
+            int runs = intArg(args, 2, 5);
+            int[] batch_sizes = new int[Math.max(args.length - 3, 0)];
+            for (int i = 0; i < batch_sizes.length; i++)
+                batch_sizes[i] = Integer.parseInt(args[i + 3]);
+            if (batch_sizes.length == 0)
+                batch_sizes = new int[] { 0, 50, 200, 1000 };
+            searchRoundTrips(args[1], runs, batch_sizes);
+        }
+        else if (t.equals("titleindex") && args.length > 2) {
+            int runs = Integer.parseInt(args[1]);
+            String[] titles = new String[args.length - 2];
+            System.arraycopy(args, 2, titles, 0, titles.length);
+            titleIndexLatency(runs, titles);
+        }
+        else if (t.equals("titlescan") && args.length > 2) {
+            int runs = Integer.parseInt(args[1]);
+            String[] titles = new String[args.length - 2];
+            System.arraycopy(args, 2, titles, 0, titles.length);
+            titleScanScaling(runs, titles);
+        }
+        else if (t.equals("fastsearch") && args.length > 2) {
+            int runs = Integer.parseInt(args[1]);
+            String[] titles = new String[args.length - 2];
+            System.arraycopy(args, 2, titles, 0, titles.length);
+            fastSearchModes(runs, titles);
+        }
+        else if (t.equals("allocation") && args.length > 2) {
+            int runs = Integer.parseInt(args[1]);
+            String[] titles = new String[args.length - 2];
+            System.arraycopy(args, 2, titles, 0, titles.length);
+            fastSearchAllocation(runs, titles);
+        }
+        else if (t.equals("startup") && args.length > 2) {
+            startupCost(Integer.parseInt(args[1]), args[2]);
+        }
+        else if (t.equals("contention")) {
+            int threads = intArg(args, 1, 8);
+            int seconds = intArg(args, 2, 10);
+            int[] mids = new int[Math.max(args.length - 3, 0)];
+            for (int i = 0; i < mids.length; i++)
+                mids[i] = Integer.parseInt(args[i + 3]);
+            if (mids.length == 0)
+                mids = FAMOUS_MOVIES;
+            rentContention(threads, seconds, mids);
+        }
+        else if (t.equals("history")) {
+            int movies = intArg(args, 1, 10000);
+            int customers = intArg(args, 2, 64);
+            int seconds = intArg(args, 3, 10);
+            long[] sizes = new long[Math.max(args.length - 4, 0)];
+            for (int i = 0; i < sizes.length; i++)
+                sizes[i] = Long.parseLong(args[i + 4]);
+            if (sizes.length == 0)
+                sizes = new long[] { 0, 100000, 1000000, 4000000 };
+            rentalHistory(movies, customers, seconds, sizes);
+        }
+        else if (t.equals("cart")) {
+            int cid = intArg(args, 1, 9);
+            int runs = intArg(args, 2, 20);
+            int movies = intArg(args, 3, 10000);
+            int[] sizes = new int[Math.max(args.length - 4, 0)];
+            for (int i = 0; i < sizes.length; i++)
+                sizes[i] = Integer.parseInt(args[i + 4]);
+            if (sizes.length == 0)
+                sizes = new int[] { 1, 2, 3, 4 };
+            cartLatency(cid, runs, movies, sizes);
+        }
+        else if (t.equals("suite")) {
+            int movies = intArg(args, 1, 10000);
+            int customers = intArg(args, 2, 64);
+            int seconds = intArg(args, 3, 5);
+            int[] thread_counts = new int[Math.max(args.length - 4, 0)];
+            for (int i = 0; i < thread_counts.length; i++)
+                thread_counts[i] = Integer.parseInt(args[i + 4]);
+            if (thread_counts.length == 0)
+                thread_counts = new int[] { 1, 2, 4, 8 };
+            suite(movies, customers, seconds, thread_counts);
+        }
+        else {
+            usage();
+            System.exit(1);
+        }
+    }
+
+    /* runs the same closed-loop workload with growing pool sizes; throughput should
+       grow with the pool until the database (not the pool) becomes the bottleneck */
+    private static void poolThroughput(int threads, int seconds, int cid) throws Exception {
+        CONSOLE.println("pool load test: " + threads + " threads, " + seconds + "s per run, customer " + cid);
+        CONSOLE.println("pool_size\tops\tops/s");
+        for (int pool_size = 1; pool_size <= threads; pool_size *= 2) {
+            Query q = new Query(DBCONFIG_FILENAME);
+            q.setPoolSize(pool_size);
+            q.openConnection();
+            q.prepareStatements();
+
+            long ops = runClosedLoop(q, threads, seconds, cid);
+            q.closeConnection();
+
+            CONSOLE.println(pool_size + "\t" + ops + "\t" + (ops / seconds));
+        }
+    }
+
+    /* compares the per-movie dependent-join search (batch size 0) with the batched
+       lookups: a search matching N movies should cost 1 + 3N round trips unbatched,
+       and 1 + 3 * ceil(N / B) with batch size B; the statements actually executed
+       are counted by the metrics */
+    private static void searchRoundTrips(String movie_title, int runs, int[] batch_sizes) throws Exception {
+        Query q = new Query(DBCONFIG_FILENAME);
+        q.setPoolSize(2);
+        q.setMetricsEnabled(true);
+        q.openConnection();
+        q.prepareStatements();
+
+        CONSOLE.println("search '" + movie_title + "', " + runs + " runs per batch size");
+        CONSOLE.println("batch_size\tmovies\tround_trips\tavg_ms\tmin_ms");
+        for (int b : batch_sizes) {
+            q.setSearchBatchSize(b);
+
+            MovieLineCounter counter = new MovieLineCounter();
+            System.setOut(new PrintStream(counter));
+            long total_ns = 0, min_ns = Long.MAX_VALUE;
+            long executions;
+            try {
+                /* warm-up run also prepares the statements */
+                q.transaction_search(1, movie_title);
+                executions = q.getMetrics().getExecutions();
+                for (int i = 0; i < runs; i++) {
+                    long start = System.nanoTime();
+                    q.transaction_search(1, movie_title);
+                    long elapsed = System.nanoTime() - start;
+                    total_ns += elapsed;
+                    min_ns = Math.min(min_ns, elapsed);
+                }
+                executions = q.getMetrics().getExecutions() - executions;
+            } finally {
+                System.setOut(CONSOLE);
+            }
+
+            long movies = counter.getMovies() / (runs + 1);
+            long round_trips = executions / runs;
+            CONSOLE.println(b + "\t" + movies + "\t" + round_trips + "\t"
+                    + (total_ns / runs / 1000000.0) + "\t" + (min_ns / 1000000.0));
+        }
+        q.closeConnection();
+    }
+
+    /* per-query latency of the title index lookup alone, and of a whole fastsearch
+       with and without it (needs videostore.title_index = true) */
+    private static void titleIndexLatency(int runs, String[] titles) throws Exception {
+        Query q = new Query(DBCONFIG_FILENAME);
+        q.setPoolSize(2);
+        long start = System.nanoTime();
+        q.openConnection();
+        q.prepareStatements();
+        TitleIndex index = q.getTitleIndex();
+        if (index == null) {
+            CONSOLE.println("set videostore.title_index = true in " + DBCONFIG_FILENAME);
+            q.closeConnection();
+            return;
+        }
+        CONSOLE.println("startup with title index: " + ((System.nanoTime() - start) / 1000000) + "ms, "
+                + index.size() + " titles, " + (index.sizeInBytes() / 1024) + " KB");
+        CONSOLE.println("title\tmatches\tlookup_us\tfastsearch_index_ms\tfastsearch_like_ms");
+
+        for (String title : titles) {
+            int matches = index.find(title).length;
+            long lookup_ns = 0;
+            for (int i = 0; i < runs; i++) {
+                long t0 = System.nanoTime();
+                index.find(title);
+                lookup_ns += System.nanoTime() - t0;
+            }
+
+            q.setUseTitleIndex(true);
+            double with_index = timeFastSearch(q, title, runs);
+            q.setUseTitleIndex(false);
+            double with_like = timeFastSearch(q, title, runs);
+
+            CONSOLE.println(title + "\t" + matches + "\t" + (lookup_ns / runs / 1000.0) + "\t"
+                    + with_index + "\t" + with_like);
+        }
+        q.closeConnection();
+    }
+
+    /* per-query latency of the parallel title scan alone on 1, 2, 4... threads up to
+       one per core, and of a whole fastsearch with and without it
+       (needs videostore.title_scan = true and videostore.title_index = false) */
+    private static void titleScanScaling(int runs, String[] titles) throws Exception {
+        Query q = new Query(DBCONFIG_FILENAME);
+        q.setPoolSize(2);
+        long start = System.nanoTime();
+        q.openConnection();
+        q.prepareStatements();
+        TitleScan scan = q.getTitleScan();
+        if (scan == null || q.getTitleIndex() != null) {
+            CONSOLE.println("set videostore.title_scan = true and videostore.title_index = false in " + DBCONFIG_FILENAME);
+            q.closeConnection();
+            return;
+        }
+        CONSOLE.println("startup with title scan: " + ((System.nanoTime() - start) / 1000000) + "ms, "
+                + scan.size() + " titles, " + (scan.sizeInBytes() / 1024) + " KB");
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Integer> thread_counts = new ArrayList<Integer>();
+        for (int threads = 1; threads < cores; threads *= 2)
+            thread_counts.add(threads);
+        thread_counts.add(cores);
+
+        CONSOLE.println("title\tthreads\tmatches\tscan_us\tspeedup");
+        for (String title : titles) {
+            double single_us = 0;
+            for (int threads : thread_counts) {
+                ForkJoinPool pool = new ForkJoinPool(threads);
+                int matches = 0;
+                for (int i = 0; i < runs; i++)   // warm-up
+                    matches = scan.find(title, pool).length;
+                long t0 = System.nanoTime();
+                for (int i = 0; i < runs; i++)
+                    scan.find(title, pool);
+                double us = (System.nanoTime() - t0) / runs / 1000.0;
+                pool.shutdown();
+                if (threads == 1)
+                    single_us = us;
+                CONSOLE.println(title + "\t" + threads + "\t" + matches + "\t" + us + "\t" + (single_us / us));
+            }
+        }
+
+        CONSOLE.println("title\tfastsearch_scan_ms\tfastsearch_like_ms");
+        for (String title : titles) {
+            q.setUseTitleIndex(true);
+            double with_scan = timeFastSearch(q, title, runs);
+            q.setUseTitleIndex(false);
+            double with_like = timeFastSearch(q, title, runs);
+            CONSOLE.println(title + "\t" + with_scan + "\t" + with_like);
+        }
+        q.closeConnection();
+    }
+
+    /* fastsearch latency with its queries run one after another (classic), as one
+       query (stream), and concurrently on three connections (parallel) */
+    private static void fastSearchModes(int runs, String[] titles) throws Exception {
+        String[] modes = { "classic", "stream", "parallel" };
+        Query[] queries = new Query[modes.length];
+        for (int i = 0; i < modes.length; i++) {
+            queries[i] = new Query(DBCONFIG_FILENAME);
+            queries[i].setPoolSize(3);
+            queries[i].setFastSearchMode(modes[i]);
+            queries[i].setUseTitleIndex(false);
+            queries[i].openConnection();
+            queries[i].prepareStatements();
+        }
+
+        StringBuilder header = new StringBuilder("title");
+        for (String mode : modes)
+            header.append('\t').append(mode).append("_ms");
+        CONSOLE.println(header);
+        for (String title : titles) {
+            StringBuilder line = new StringBuilder(title);
+            for (Query q : queries)
+                line.append('\t').append(timeFastSearch(q, title, runs));
+            CONSOLE.println(line);
+        }
+
+        for (Query q : queries)
+            q.closeConnection();
+    }
+
+    /* heap allocated per fastsearch, by every thread of the process (the parallel
+       mode reads on helper threads), for each fastsearch mode; use titles with
+       many matches, e.g. "the", so the driver's own per-row garbage is not all
+       that is measured */
+    private static void fastSearchAllocation(int runs, String[] titles) throws Exception {
+        java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            CONSOLE.println("this JVM does not report allocated bytes per thread");
+            return;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        String[] modes = { "classic", "stream", "parallel" };
+        Query[] queries = new Query[modes.length];
+        for (int i = 0; i < modes.length; i++) {
+            queries[i] = new Query(DBCONFIG_FILENAME);
+            queries[i].setPoolSize(3);
+            queries[i].setFastSearchMode(modes[i]);
+            queries[i].setUseTitleIndex(false);
+            queries[i].openConnection();
+            queries[i].prepareStatements();
+        }
+
+        StringBuilder header = new StringBuilder("title");
+        for (String mode : modes)
+            header.append('\t').append(mode).append("_KB/op");
+        CONSOLE.println(header);
+        System.setOut(DISCARD);
+        try {
+            for (String title : titles) {
+                StringBuilder line = new StringBuilder(title);
+                for (Query q : queries) {
+                    q.transaction_fastSearch(1, title);
+                    long before = allocatedBytes(threads);
+                    for (int i = 0; i < runs; i++)
+                        q.transaction_fastSearch(1, title);
+                    long bytes = (allocatedBytes(threads) - before) / runs;
+                    line.append('\t').append(bytes / 1024);
+                }
+                CONSOLE.println(line);
+            }
+        } finally {
+            System.setOut(CONSOLE);
+        }
+
+        for (Query q : queries)
+            q.closeConnection();
+    }
+
+    /* bytes allocated so far by the threads alive now */
+    private static long allocatedBytes(com.sun.management.ThreadMXBean threads) {
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds()))
+            if (bytes > 0)
+                total += bytes;
+        return total;
+    }
+
+    /* average ms of a fastsearch, after one warm-up run */
+    private static double timeFastSearch(Query q, String title, int runs) throws Exception {
+        System.setOut(DISCARD);
+        try {
+            q.transaction_fastSearch(1, title);
+            long total_ns = 0;
+            for (int i = 0; i < runs; i++) {
+                long t0 = System.nanoTime();
+                q.transaction_fastSearch(1, title);
+                total_ns += System.nanoTime() - t0;
+            }
+            return total_ns / runs / 1000000.0;
+        } finally {
+            System.setOut(CONSOLE);
+        }
+    }
+
+    /* every thread plays one customer, renting a random movie from a small shared set
+       and returning it right away when the rent went through; compares the commit
+       and abort rates of the serializable and optimistic rent paths */
+    /* cold start with lazily prepared statements against warming them all when
+       connections open: time to open the Query, then the first and second runs
+       of a short session (personal data, search, fastsearch) as customer 1 */
+    private static void startupCost(int runs, String movie_title) throws Exception {
+        String[] warm_sets = { "", "all" };
+        CONSOLE.println("startup, " + runs + " runs each, session searching '" + movie_title + "'");
+        CONSOLE.println("warm_statements\topen_ms\tfirst_session_ms\tnext_session_ms");
+        for (String warm : warm_sets) {
+            long open_ns = 0, first_ns = 0, next_ns = 0;
+            for (int i = 0; i < runs; i++) {
+                Query q = new Query(DBCONFIG_FILENAME);
+                q.setPoolSize(1);
+                q.setWarmStatements(warm);
+                long start = System.nanoTime();
+                q.openConnection();
+                open_ns += System.nanoTime() - start;
+
+                System.setOut(DISCARD);
+                try {
+                    start = System.nanoTime();
+                    startupSession(q, movie_title);
+                    first_ns += System.nanoTime() - start;
+                    start = System.nanoTime();
+                    startupSession(q, movie_title);
+                    next_ns += System.nanoTime() - start;
+                } finally {
+                    System.setOut(CONSOLE);
+                }
+                q.closeConnection();
+            }
+            CONSOLE.println((warm.length() == 0 ? "(none)" : warm) + "\t" + (open_ns / runs / 1e6) + "\t"
+                    + (first_ns / runs / 1e6) + "\t" + (next_ns / runs / 1e6));
+        }
+    }
+
+    private static void startupSession(Query q, String movie_title) throws Exception {
+        q.transaction_printPersonalData(1);
+        q.transaction_search(1, movie_title);
+        q.transaction_fastSearch(1, movie_title);
+    }
+
+    private static void rentContention(int threads, final int seconds, final int[] mids) throws Exception {
+        CONSOLE.println("rent contention: " + threads + " threads, " + mids.length + " movies, " + seconds + "s per mode");
+        CONSOLE.println("mode\trents\tcommits/s\trefused\terrors\tretries\taborts\tabort_rate");
+        String[] modes = { "serializable", "optimistic" };
+        for (String mode : modes) {
+            final Query q = new Query(DBCONFIG_FILENAME);
+            q.setPoolSize(threads);
+            q.setRentMode(mode);
+            q.openConnection();
+            q.prepareStatements();
+
+            final AtomicLong commits = new AtomicLong();
+            final AtomicLong refused = new AtomicLong();
+            final AtomicLong errors = new AtomicLong();
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+
+            ExecutorService workers = Executors.newFixedThreadPool(threads);
+            System.setOut(DISCARD);
+            try {
+                for (int i = 0; i < threads; i++) {
+                    final int cid = 1 + i % CUSTOMERS;
+                    workers.submit(new Runnable() {
+                        public void run() {
+                            Random random = new Random();
+                            while (System.nanoTime() < deadline) {
+                                int mid = mids[random.nextInt(mids.length)];
+                                try {
+                                    if (q.transaction_rent(cid, mid)) {
+                                        commits.incrementAndGet();
+                                        q.transaction_return(cid, mid);
+                                    } else {
+                                        refused.incrementAndGet();
+                                    }
+                                } catch (Exception e) {
+                                    errors.incrementAndGet();
+                                }
+                            }
+                        }
+                    });
+                }
+                workers.shutdown();
+                workers.awaitTermination(seconds + 60, TimeUnit.SECONDS);
+            } finally {
+                System.setOut(CONSOLE);
+            }
+            TransactionExecutor executor = q.getTransactionExecutor();
+            long retries = executor.getRetries("rent") + executor.getRetries("return");
+            long aborts = executor.getAborts("rent") + executor.getAborts("return");
+            q.closeConnection();
+
+            long rents = commits.get() + refused.get() + errors.get();
+            CONSOLE.println(mode + "\t" + rents + "\t" + (commits.get() / seconds) + "\t"
+                    + refused.get() + "\t" + errors.get() + "\t" + retries + "\t" + aborts + "\t"
+                    + (rents == 0 ? 0.0 : (double) (refused.get() + errors.get()) / rents));
+        }
+        CONSOLE.println("(refused = rent declined because the movie was out or the plan full; "
+                + "errors = exceptions that reached the caller; retries = rents and returns "
+                + "rerun after a deadlock or other conflict; aborts = still failing after the last attempt)");
+    }
+
+    /**********************************************************/
+    /* suite: every transaction at several thread counts */
+
+    /* closed rentals making up the history, added server-side: random customers,
+       movies and dates over the last year */
+    private static final String ADD_HISTORY_SQL =
+            "INSERT INTO RENTALS (customerid, movieid, status, date) " +
+            "SELECT TOP (?) 1 + ABS(CHECKSUM(NEWID())) % ?, 1 + ABS(CHECKSUM(NEWID())) % ?, 0, " +
+            "DATEADD(minute, -(ABS(CHECKSUM(NEWID())) % 525600), SYSDATETIME()) " +
+            "FROM sys.all_objects AS A CROSS JOIN sys.all_objects AS B";
+
+    private static final int HISTORY_CHUNK = 500000;
+
+    /* rent, return and search latency as RENTALS grows to each of the given sizes
+       with closed rentals, on one thread; run it once before and once after
+       "java Migrator migrate" to see what the indexes change. Movies and customers
+       must match what SyntheticCatalog loaded; the rows stay in RENTALS afterwards */
+    private static void rentalHistory(final int movies, int customers, int seconds, long[] sizes) throws Exception {
+        Properties props = new Properties();
+        props.load(new FileInputStream(DBCONFIG_FILENAME));
+        Query q = new Query(DBCONFIG_FILENAME);
+        q.setPoolSize(1);
+        q.openConnection();
+        q.prepareStatements();
+        Connection c = DriverManager.getConnection(props.getProperty("videostore.customer_url"),
+                props.getProperty("videostore.sqlazure_username"), props.getProperty("videostore.sqlazure_password"));
+
+        LinkedHashMap<String, Operation> operations = new LinkedHashMap<String, Operation>();
+        operations.put("rent+return", new Operation() {
+            public void run(Query q, int cid, Random random) throws Exception {
+                int mid = 1 + random.nextInt(movies);
+                if (q.transaction_rent(cid, mid))
+                    q.transaction_return(cid, mid);
+            }
+        });
+        operations.put("search", new Operation() {
+            public void run(Query q, int cid, Random random) throws Exception {
+                q.transaction_search(cid, SyntheticCatalog.WORDS[random.nextInt(SyntheticCatalog.WORDS.length)]);
+            }
+        });
+
+        try {
+            CONSOLE.println("rental history: " + movies + " movies, " + customers + " customers, "
+                    + seconds + "s per operation, schema version " + Migrator.currentVersion(c));
+            CONSOLE.println("rentals\toperation\tops/s\tmean_us\terrors");
+            for (long size : sizes) {
+                long rentals = growRentals(c, size, movies, customers);
+                for (Map.Entry<String, Operation> e : operations.entrySet()) {
+                    runIteration(q, e.getValue(), 1, customers, 1);
+                    long[] r = runIteration(q, e.getValue(), 1, customers, seconds);
+                    CONSOLE.println(rentals + "\t" + e.getKey() + "\t" + (r[0] / seconds) + "\t"
+                            + (r[0] == 0 ? 0 : r[1] / r[0] / 1000) + "\t" + r[2]);
+                }
+            }
+        } finally {
+            c.close();
+            q.closeConnection();
+        }
+    }
+
+    /* adds closed rentals until RENTALS has at least size rows; returns its size */
+    private static long growRentals(Connection c, long size, int movies, int customers) throws Exception {
+        Statement st = c.createStatement();
+        PreparedStatement add = c.prepareStatement(ADD_HISTORY_SQL);
+        try {
+            while (true) {
+                ResultSet rs = st.executeQuery("SELECT COUNT_BIG(*) FROM RENTALS");
+                rs.next();
+                long rentals = rs.getLong(1);
+                rs.close();
+                if (rentals >= size)
+                    return rentals;
+                add.setLong(1, Math.min(size - rentals, HISTORY_CHUNK));
+                add.setInt(2, customers);
+                add.setInt(3, movies);
+                add.executeUpdate();
+            }
+        } finally {
+            add.close();
+            st.close();
+        }
+    }
+
+    /* renting and returning a cart of movies as one rentMany + returnMany against
+       one rent and one return per movie. The customer's plan must have room for the
+       biggest cart (SyntheticCatalog's bench customers, 9 and up, can rent 4);
+       movies are drawn from 1..movies and carts with a movie already out are retried */
+    private static void cartLatency(int cid, int runs, int movies, int[] sizes) throws Exception {
+        Query q = new Query(DBCONFIG_FILENAME);
+        q.setPoolSize(2);
+        q.openConnection();
+        q.prepareStatements();
+        Random random = new Random();
+
+        CONSOLE.println("cart: customer " + cid + ", " + runs + " runs per size");
+        CONSOLE.println("cart_size\tmany_ms\tsingle_ms\tmany_ms_per_movie");
+        System.setOut(DISCARD);
+        try {
+            for (int size : sizes) {
+                long many_ns = 0, single_ns = 0;
+                int refused = 0;
+                for (int i = 0; i < runs; i++) {
+                    int[] mids = new int[size];
+                    for (int j = 0; j < size; j++)
+                        mids[j] = 1 + random.nextInt(movies);
+
+                    long start = System.nanoTime();
+                    if (!q.transaction_rentMany(cid, mids)) {
+                        if (++refused > 10 * runs)
+                            throw new IllegalStateException("customer " + cid + " cannot rent " + size + " movies at once");
+                        i--;
+                        continue;
+                    }
+                    q.transaction_returnMany(cid, mids);
+                    many_ns += System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    for (int mid : mids)
+                        q.transaction_rent(cid, mid);
+                    for (int mid : mids)
+                        q.transaction_return(cid, mid);
+                    single_ns += System.nanoTime() - start;
+                }
+                CONSOLE.println(size + "\t" + (many_ns / runs / 1e6) + "\t" + (single_ns / runs / 1e6)
+                        + "\t" + (many_ns / runs / size / 1e6));
+            }
+        } finally {
+            System.setOut(CONSOLE);
+        }
+        q.closeConnection();
+    }
+
+    /* one benchmarked operation; each thread plays its own customer */
+    private interface Operation {
+        void run(Query q, int cid, Random random) throws Exception;
+    }
+
+    /* runs each transaction for SUITE_WARMUP_ITERATIONS + SUITE_MEASURED_ITERATIONS
+       iterations of the given length per thread count, reporting throughput and mean
+       latency of the measured iterations; movies and customers must match what
+       SyntheticCatalog loaded */
+    private static void suite(final int movies, int customers, int seconds, int[] thread_counts) throws Exception {
+        int max_threads = 1;
+        for (int n : thread_counts)
+            max_threads = Math.max(max_threads, n);
+
+        Query q = new Query(DBCONFIG_FILENAME);
+        q.setPoolSize(max_threads);
+        q.openConnection();
+        q.prepareStatements();
+
+        LinkedHashMap<String, Operation> operations = new LinkedHashMap<String, Operation>();
+        operations.put("search", new Operation() {
+            public void run(Query q, int cid, Random random) throws Exception {
+                q.transaction_search(cid, SyntheticCatalog.WORDS[random.nextInt(SyntheticCatalog.WORDS.length)]);
+            }
+        });
+        operations.put("fastSearch", new Operation() {
+            public void run(Query q, int cid, Random random) throws Exception {
+                q.transaction_fastSearch(cid, SyntheticCatalog.WORDS[random.nextInt(SyntheticCatalog.WORDS.length)]);
+            }
+        });
+        operations.put("rent+return", new Operation() {
+            public void run(Query q, int cid, Random random) throws Exception {
+                int mid = 1 + random.nextInt(movies);
+                if (q.transaction_rent(cid, mid))
+                    q.transaction_return(cid, mid);
+            }
+        });
+        operations.put("choosePlan", new Operation() {
+            public void run(Query q, int cid, Random random) throws Exception {
+                q.transaction_choosePlan(cid, 3 + random.nextInt(2));
+            }
+        });
+        operations.put("printPersonalData", new Operation() {
+            public void run(Query q, int cid, Random random) throws Exception {
+                q.transaction_printPersonalData(cid);
+            }
+        });
+
+        CONSOLE.println("suite: " + movies + " movies, " + customers + " customers, "
+                + SUITE_WARMUP_ITERATIONS + " warm-up + " + SUITE_MEASURED_ITERATIONS + " measured iterations of " + seconds + "s");
+        CONSOLE.println("operation\tthreads\tops/s\tmean_us\terrors");
+        for (Map.Entry<String, Operation> e : operations.entrySet()) {
+            for (int threads : thread_counts) {
+                for (int i = 0; i < SUITE_WARMUP_ITERATIONS; i++)
+                    runIteration(q, e.getValue(), threads, customers, seconds);
+                long ops = 0, busy_ns = 0, errors = 0;
+                for (int i = 0; i < SUITE_MEASURED_ITERATIONS; i++) {
+                    long[] r = runIteration(q, e.getValue(), threads, customers, seconds);
+                    ops += r[0];
+                    busy_ns += r[1];
+                    errors += r[2];
+                }
+                CONSOLE.println(e.getKey() + "\t" + threads + "\t"
+                        + (ops / (SUITE_MEASURED_ITERATIONS * seconds)) + "\t"
+                        + (ops == 0 ? 0 : busy_ns / ops / 1000) + "\t" + errors);
+            }
+        }
+        q.closeConnection();
+    }
+
+    /* {operations, total ns spent in them, errors} */
+    private static long[] runIteration(final Query q, final Operation op, int threads, final int customers, int seconds)
+            throws Exception {
+        final AtomicLong ops = new AtomicLong();
+        final AtomicLong busy_ns = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        System.setOut(DISCARD);
+        try {
+            for (int i = 0; i < threads; i++) {
+                final int cid = 1 + i % customers;
+                workers.submit(new Runnable() {
+                    public void run() {
+                        Random random = new Random();
+                        long now;
+                        while ((now = System.nanoTime()) < deadline) {
+                            try {
+                                op.run(q, cid, random);
+                                ops.incrementAndGet();
+                            } catch (Exception e) {
+                                errors.incrementAndGet();
+                            }
+                            busy_ns.addAndGet(System.nanoTime() - now);
+                        }
+                    }
+                });
+            }
+            workers.shutdown();
+            workers.awaitTermination(seconds + 60, TimeUnit.SECONDS);
+        } finally {
+            System.setOut(CONSOLE);
+        }
+        return new long[] { ops.get(), busy_ns.get(), errors.get() };
+    }
+
+    /**********************************************************/
+
+    private static long runClosedLoop(final Query q, int threads, int seconds, final int cid) throws Exception {
+        final AtomicLong ops = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        System.setOut(DISCARD);
+        try {
+            for (int i = 0; i < threads; i++) {
+                workers.submit(new Runnable() {
+                    public void run() {
+                        while (System.nanoTime() < deadline) {
+                            try {
+                                q.transaction_printPersonalData(cid);
+                                ops.incrementAndGet();
+                            } catch (Exception e) {
+                                errors.incrementAndGet();
+                            }
+                        }
+                    }
+                });
+            }
+            workers.shutdown();
+            workers.awaitTermination(seconds + 60, TimeUnit.SECONDS);
+        } finally {
+            System.setOut(CONSOLE);
+        }
+
+        if (errors.get() > 0)
+            CONSOLE.println("  (" + errors.get() + " failed operations)");
+        return ops.get();
+    }
+
+    private static int intArg(String[] args, int i, int def) {
+        return args.length > i ? Integer.parseInt(args[i]) : def;
+    }
+
+    /* discards search output, counting the " ID: " lines that start each movie */
+    private static class MovieLineCounter extends OutputStream {
+        private static final byte[] PREFIX = " ID: ".getBytes();
+        private long movies = 0;
+        private int matched = 0;   // bytes of PREFIX matched at the start of the current line
+
+        public void write(int b) {
+            if (b == '\n') {
+                matched = 0;
+            } else if (matched >= 0 && matched < PREFIX.length) {
+                if (b == PREFIX[matched]) {
+                    matched++;
+                    if (matched == PREFIX.length)
+                        movies++;
+                } else {
+                    matched = -1;
+                }
+            }
+        }
+
+        public long getMovies() {
+            return movies;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Base for sinks that render results as characters. Output collects in a
+ * fixed char buffer, reused for every result, and reaches the writer in
+ * buffer-sized writes and once more at end(), instead of one locked write
+ * (and, for System.out, one flush) per line.
+ */
+public abstract class BufferedResultSink implements ResultSink {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Writer writer;
+    private final char[] buf = new char[BUFFER_SIZE];
+    private int pos = 0;
+
+    protected BufferedResultSink(Writer writer) {
+        this.writer = writer;
+    }
+
+    public void end() throws IOException {
+        flushBuffer();
+        writer.flush();
+    }
+
+    protected final void append(char c) throws IOException {
+        if (pos == buf.length)
+            flushBuffer();
+        buf[pos++] = c;
+    }
+
+    /* like String.valueOf(s), "null" for null */
+    protected final void append(String s) throws IOException {
+        if (s == null)
+            s = "null";
+        int n = s.length();
+        for (int from = 0; from < n; ) {
+            if (pos == buf.length)
+                flushBuffer();
+            int len = Math.min(n - from, buf.length - pos);
+            s.getChars(from, from + len, buf, pos);
+            pos += len;
+            from += len;
+        }
+    }
+
+    /* decimal digits of i, without going through a String */
+    protected final void append(int i) throws IOException {
+        if (i < 0) {
+            if (i == Integer.MIN_VALUE) {
+                append(Integer.toString(i));
+                return;
+            }
+            append('-');
+            i = -i;
+        }
+        int digits = 1;
+        for (int n = i; n >= 10; n /= 10)
+            digits++;
+        if (buf.length - pos < digits)
+            flushBuffer();
+        for (int at = pos + digits - 1; at >= pos; at--) {
+            buf[at] = (char) ('0' + i % 10);
+            i /= 10;
+        }
+        pos += digits;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (pos > 0) {
+            writer.write(buf, 0, pos);
+            pos = 0;
+        }
+    }
+}
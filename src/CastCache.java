@@ -0,0 +1,173 @@
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the directors and actors of recently searched movies, so the
+ * popular ones do not run the DIRECTORS and CASTS joins on every search.
+ *
+ * Each movie is one row of a CSR-style layout: an int[] holding the number of
+ * directors followed by (last name, first name) pairs of name ids, directors
+ * first, then actors. The names themselves are interned once in a shared
+ * table (an actor in fifty cached movies is stored once) and reference
+ * counted, so evicting the last movie that mentions a name frees its slot.
+ *
+ * Movies are evicted in LRU order once the estimated footprint of rows and
+ * names passes maxBytes. Query does the loading (read-through); the IMDB
+ * tables do not change while the store runs, so entries never expire.
+ */
+public class CastCache {
+
+    /* what a row resolves to: (a, b) pairs in the order ResultSink takes them */
+    public static class Credits {
+        public static final Credits NONE = new Credits(0, new String[0]);
+
+        public final int directors;   // pairs of names that are directors
+        public final String[] names;  // directors' pairs, then actors' pairs
+
+        Credits(int directors, String[] names) {
+            this.directors = directors;
+            this.names = names;
+        }
+
+        /* from the director and actor lists of Query.addToGroup, either of which may be null */
+        public static Credits of(List<String> directors, List<String> actors) {
+            int d = directors == null ? 0 : directors.size();
+            int a = actors == null ? 0 : actors.size();
+            if (d + a == 0)
+                return NONE;
+            String[] names = new String[d + a];
+            for (int i = 0; i < d; i++)
+                names[i] = directors.get(i);
+            for (int i = 0; i < a; i++)
+                names[d + i] = actors.get(i);
+            return new Credits(d / 2, names);
+        }
+    }
+
+    /* rough heap cost of a cached row and of an interned name, beyond their contents */
+    private static final int ROW_OVERHEAD = 80;
+    private static final int NAME_OVERHEAD = 88;
+
+    private final long maxBytes;
+    private long bytes = 0;
+
+    private final LinkedHashMap<Integer, int[]> rows = new LinkedHashMap<Integer, int[]>(16, 0.75f, true);
+
+    // the name table: names[id] is referenced refs[id] times; free ids are reused
+    private String[] names = new String[1024];
+    private int[] refs = new int[1024];
+    private int nameCount = 0;
+    private final HashMap<String, Integer> nameIds = new HashMap<String, Integer>();
+    private int[] free = new int[64];
+    private int freeCount = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public CastCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /* the cached credits of mid, or null if the caller has to load them */
+    public synchronized Credits get(int mid) {
+        int[] row = rows.get(mid);
+        if (row == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        if (row.length == 1)
+            return Credits.NONE;
+        String[] resolved = new String[row.length - 1];
+        for (int i = 1; i < row.length; i++)
+            resolved[i - 1] = names[row[i]];
+        return new Credits(row[0], resolved);
+    }
+
+    /* caches the credits of mid as loaded */
+    public synchronized void put(int mid, Credits credits) {
+        int[] row = new int[1 + credits.names.length];
+        row[0] = credits.directors;
+        for (int i = 0; i < credits.names.length; i++)
+            row[i + 1] = intern(credits.names[i]);
+        int[] old = rows.put(mid, row);
+        bytes += ROW_OVERHEAD + 4L * row.length;
+        if (old != null)
+            release(old);
+
+        Iterator<int[]> eldest = rows.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            int[] evicted = eldest.next();
+            eldest.remove();
+            release(evicted);
+            evictions.incrementAndGet();
+        }
+    }
+
+    private int intern(String name) {
+        if (name == null)
+            name = "";
+        Integer id = nameIds.get(name);
+        if (id != null) {
+            refs[id]++;
+            return id;
+        }
+        int i;
+        if (freeCount > 0) {
+            i = free[--freeCount];
+        } else {
+            if (nameCount == names.length) {
+                names = Arrays.copyOf(names, 2 * nameCount);
+                refs = Arrays.copyOf(refs, 2 * nameCount);
+            }
+            i = nameCount++;
+        }
+        names[i] = name;
+        refs[i] = 1;
+        nameIds.put(name, i);
+        bytes += NAME_OVERHEAD + 2L * name.length();
+        return i;
+    }
+
+    private void release(int[] row) {
+        bytes -= ROW_OVERHEAD + 4L * row.length;
+        for (int i = 1; i < row.length; i++) {
+            int id = row[i];
+            if (--refs[id] > 0)
+                continue;
+            bytes -= NAME_OVERHEAD + 2L * names[id].length();
+            nameIds.remove(names[id]);
+            names[id] = null;
+            if (freeCount == free.length)
+                free = Arrays.copyOf(free, 2 * freeCount);
+            free[freeCount++] = id;
+        }
+    }
+
+    public synchronized int size() {
+        return rows.size();
+    }
+
+    public synchronized long sizeInBytes() {
+        return bytes;
+    }
+
+    /**********************************************************/
+    /* statistics */
+
+    public String statistics() {
+        int movies, distinct_names;
+        long used;
+        synchronized (this) {
+            movies = rows.size();
+            distinct_names = nameIds.size();
+            used = bytes;
+        }
+        long h = hits.get(), m = misses.get();
+        return "cast cache: " + movies + " movies, " + distinct_names + " names, "
+                + (used / 1024) + "/" + (maxBytes / 1024) + " KB, "
+                + h + " hits, " + m + " misses (" + (h + m == 0 ? 0 : 100 * h / (h + m)) + "% hit rate), "
+                + evictions.get() + " evicted\n";
+    }
+}
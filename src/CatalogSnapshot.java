@@ -0,0 +1,386 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.*;
+import java.util.Arrays;
+
+/**
+ * Read-only copy of the IMDB catalog (MOVIE, MOVIE_DIRECTORS, DIRECTORS,
+ * CASTS, ACTOR) in a columnar binary file that is memory-mapped, so that
+ * search and fastsearch can run without the IMDB database.
+ *
+ * File layout (big-endian):
+ *   header            MAGIC, FORMAT, version (long), movies, persons,
+ *                     director links, actor links, chars
+ *   movie ids         int[movies]          ascending
+ *   movie years       int[movies]          NO_YEAR if NULL
+ *   movie titles      int[movies + 1]      offsets into chars
+ *   movie directors   int[movies + 1]      offsets into director links
+ *   director links    int[director links]  person numbers
+ *   movie actors      int[movies + 1]      offsets into actor links
+ *   actor links       int[actor links]     person numbers
+ *   person names      int[2 * persons + 1] offsets into chars, fname then lname
+ *   chars             char[chars]          titles and names as stored
+ *
+ * Directors and actors share the person table. Snapshots are written with
+ * Builder to a temporary file and renamed into place, so a reader never maps
+ * a half-written file; the version tells a reader whether the file on disk
+ * is newer than the one it has mapped.
+ */
+public class CatalogSnapshot {
+    private static final int MAGIC = 0x43415431;   // "CAT1"
+    private static final int FORMAT = 1;
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 5 * 4;
+    public static final int NO_YEAR = Integer.MIN_VALUE;
+
+    private final long version;
+    private final int movies;
+    private final IntBuffer movieIds;
+    private final IntBuffer movieYears;
+    private final IntBuffer titleOffsets;
+    private final IntBuffer directorOffsets;
+    private final IntBuffer directorLinks;
+    private final IntBuffer actorOffsets;
+    private final IntBuffer actorLinks;
+    private final IntBuffer nameOffsets;
+    private final CharBuffer chars;
+    private final long sizeInBytes;
+
+    private CatalogSnapshot(ByteBuffer map) throws IOException {
+        if (map.getInt(0) != MAGIC || map.getInt(4) != FORMAT)
+            throw new IOException("not a catalog snapshot (format " + FORMAT + ")");
+        version = map.getLong(8);
+        movies = map.getInt(16);
+        int persons = map.getInt(20);
+        int director_links = map.getInt(24);
+        int actor_links = map.getInt(28);
+        int char_count = map.getInt(32);
+
+        int pos = HEADER_BYTES;
+        movieIds = ints(map, pos, movies);                  pos += 4 * movies;
+        movieYears = ints(map, pos, movies);                pos += 4 * movies;
+        titleOffsets = ints(map, pos, movies + 1);          pos += 4 * (movies + 1);
+        directorOffsets = ints(map, pos, movies + 1);       pos += 4 * (movies + 1);
+        directorLinks = ints(map, pos, director_links);     pos += 4 * director_links;
+        actorOffsets = ints(map, pos, movies + 1);          pos += 4 * (movies + 1);
+        actorLinks = ints(map, pos, actor_links);           pos += 4 * actor_links;
+        nameOffsets = ints(map, pos, 2 * persons + 1);      pos += 4 * (2 * persons + 1);
+        ByteBuffer b = map.duplicate();
+        b.position(pos);
+        b.limit(pos + 2 * char_count);
+        chars = b.slice().asCharBuffer();
+        sizeInBytes = map.capacity();
+    }
+
+    private static IntBuffer ints(ByteBuffer map, int pos, int count) {
+        ByteBuffer b = map.duplicate();
+        b.position(pos);
+        b.limit(pos + 4 * count);
+        return b.slice().asIntBuffer();
+    }
+
+    /* maps a snapshot file */
+    public static CatalogSnapshot open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return new CatalogSnapshot(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+        } finally {
+            raf.close();   // the mapping stays valid after the channel is closed
+        }
+    }
+
+    /* version stored in a snapshot file, without mapping all of it */
+    public static long readVersion(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.readInt() != MAGIC || raf.readInt() != FORMAT)
+                throw new IOException(file + " is not a catalog snapshot (format " + FORMAT + ")");
+            return raf.readLong();
+        } finally {
+            raf.close();
+        }
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int size() {
+        return movies;
+    }
+
+    public long sizeInBytes() {
+        return sizeInBytes;
+    }
+
+    /* exports a fresh snapshot to the file named by videostore.catalog_snapshot */
+    public static void main(String[] args) throws Exception {
+        Query q = new Query(args.length > 0 ? args[0] : "dbconn.properties");
+        q.setPoolSize(1);
+        q.openConnection();
+        q.refreshCatalogSnapshot();
+        System.out.print(q.getStatistics());
+        q.closeConnection();
+    }
+
+    /**********************************************************/
+    /* reading */
+
+    /* rows of the movies whose title contains term (ignoring case), in id order;
+       the caller checks TitleIndex.canAnswer(term) first */
+    public int[] find(String term) {
+        char[] t = term.toCharArray();
+        for (int i = 0; i < t.length; i++)
+            t[i] = Character.toLowerCase(t[i]);
+
+        int[] rows = new int[64];
+        int count = 0;
+        for (int row = 0; row < movies; row++) {
+            if (titleContains(row, t)) {
+                if (count == rows.length)
+                    rows = Arrays.copyOf(rows, count * 2);
+                rows[count++] = row;
+            }
+        }
+        return Arrays.copyOf(rows, count);
+    }
+
+    /* like find(term), but only the first limit matches among the movies with id > after_id;
+       the scan stops there, so a page costs about the same however many movies match */
+    public int[] find(String term, int after_id, int limit) {
+        char[] t = term.toCharArray();
+        for (int i = 0; i < t.length; i++)
+            t[i] = Character.toLowerCase(t[i]);
+
+        /* first row with an id above after_id; rows are in id order */
+        int lo = 0, hi = movies;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (movieIds.get(mid) <= after_id)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+
+        int[] rows = new int[Math.min(limit, 64)];
+        int count = 0;
+        for (int row = lo; row < movies && count < limit; row++) {
+            if (titleContains(row, t)) {
+                if (count == rows.length)
+                    rows = Arrays.copyOf(rows, Math.min(count * 2, limit));
+                rows[count++] = row;
+            }
+        }
+        return Arrays.copyOf(rows, count);
+    }
+
+    private boolean titleContains(int row, char[] t) {
+        int start = titleOffsets.get(row), end = titleOffsets.get(row + 1);
+        if (t.length == 0)
+            return true;
+        for (int i = start; i + t.length <= end; i++) {
+            int j = 0;
+            while (j < t.length && Character.toLowerCase(chars.get(i + j)) == t[j])
+                j++;
+            if (j == t.length)
+                return true;
+        }
+        return false;
+    }
+
+    public int movieId(int row) {
+        return movieIds.get(row);
+    }
+
+    /* year as the database would print it */
+    public String movieYear(int row) {
+        int year = movieYears.get(row);
+        return year == NO_YEAR ? null : String.valueOf(year);
+    }
+
+    public String movieTitle(int row) {
+        return text(titleOffsets.get(row), titleOffsets.get(row + 1));
+    }
+
+    public int directorCount(int row) {
+        return directorOffsets.get(row + 1) - directorOffsets.get(row);
+    }
+
+    /* person number of the i-th director of the movie in row */
+    public int director(int row, int i) {
+        return directorLinks.get(directorOffsets.get(row) + i);
+    }
+
+    public int actorCount(int row) {
+        return actorOffsets.get(row + 1) - actorOffsets.get(row);
+    }
+
+    public int actor(int row, int i) {
+        return actorLinks.get(actorOffsets.get(row) + i);
+    }
+
+    public String firstName(int person) {
+        return text(nameOffsets.get(2 * person), nameOffsets.get(2 * person + 1));
+    }
+
+    public String lastName(int person) {
+        return text(nameOffsets.get(2 * person + 1), nameOffsets.get(2 * person + 2));
+    }
+
+    private String text(int start, int end) {
+        char[] c = new char[end - start];
+        for (int i = 0; i < c.length; i++)
+            c[i] = chars.get(start + i);
+        return new String(c);
+    }
+
+    /**********************************************************/
+    /* writing */
+
+    /**
+     * Collects the five tables and writes a snapshot. Feed it, in this order,
+     * movies (id, name, year) ordered by id, directors (id, fname, lname),
+     * movie_directors (mid, did), actors (id, fname, lname) and casts (mid, pid),
+     * then call write().
+     */
+    public static class Builder {
+        private final TitleIndex.IntArray movieIds = new TitleIndex.IntArray(1024);
+        private final TitleIndex.IntArray movieYears = new TitleIndex.IntArray(1024);
+        private final TitleIndex.IntArray titleOffsets = new TitleIndex.IntArray(1024);
+        private final TitleIndex.IntArray nameOffsets = new TitleIndex.IntArray(1024);
+        private final StringBuilder chars = new StringBuilder(1 << 20);
+        private IntIntMap directorPersons = new IntIntMap(1 << 16);
+        private IntIntMap actorPersons = new IntIntMap(1 << 16);
+        private int persons = 0;
+        private int[] directorOffsets;
+        private TitleIndex.IntArray directorLinks;
+        private int[] actorOffsets;
+        private TitleIndex.IntArray actorLinks;
+
+        public Builder() {
+            titleOffsets.add(0);
+        }
+
+        public void addMovies(ResultSet movie_set) throws SQLException {
+            int last_id = Integer.MIN_VALUE;
+            while (movie_set.next()) {
+                int id = movie_set.getInt(1);
+                if (id <= last_id)
+                    throw new SQLException("movies must be ordered by id");
+                last_id = id;
+                movieIds.add(id);
+                String name = movie_set.getString(2);
+                if (name != null)
+                    chars.append(name);
+                titleOffsets.add(chars.length());
+                int year = movie_set.getInt(3);
+                movieYears.add(movie_set.wasNull() ? NO_YEAR : year);
+            }
+        }
+
+        public void addDirectors(ResultSet director_set) throws SQLException {
+            addPersons(director_set, directorPersons);
+        }
+
+        public void addMovieDirectors(ResultSet movie_director_set) throws SQLException {
+            directorLinks = new TitleIndex.IntArray(1024);
+            directorOffsets = link(movie_director_set, directorPersons, directorLinks);
+            directorPersons = null;
+        }
+
+        public void addActors(ResultSet actor_set) throws SQLException {
+            addPersons(actor_set, actorPersons);
+        }
+
+        public void addCasts(ResultSet cast_set) throws SQLException {
+            actorLinks = new TitleIndex.IntArray(1024);
+            actorOffsets = link(cast_set, actorPersons, actorLinks);
+            actorPersons = null;
+        }
+
+        private void addPersons(ResultSet person_set, IntIntMap numbers) throws SQLException {
+            while (person_set.next()) {
+                numbers.put(person_set.getInt(1), persons++);
+                nameOffsets.add(chars.length());
+                String fname = person_set.getString(2);
+                if (fname != null)
+                    chars.append(fname);
+                nameOffsets.add(chars.length());
+                String lname = person_set.getString(3);
+                if (lname != null)
+                    chars.append(lname);
+            }
+        }
+
+        /* turns (mid, person id) rows into CSR offsets per movie row plus person numbers */
+        private int[] link(ResultSet link_set, IntIntMap numbers, TitleIndex.IntArray links) throws SQLException {
+            int movies = movieIds.size;
+            TitleIndex.IntArray rows = new TitleIndex.IntArray(1024);
+            TitleIndex.IntArray people = new TitleIndex.IntArray(1024);
+            while (link_set.next()) {
+                int row = Arrays.binarySearch(movieIds.data, 0, movies, link_set.getInt(1));
+                int person = numbers.get(link_set.getInt(2), -1);
+                if (row >= 0 && person >= 0) {
+                    rows.add(row);
+                    people.add(person);
+                }
+            }
+
+            int[] offsets = new int[movies + 1];
+            for (int i = 0; i < rows.size; i++)
+                offsets[rows.data[i] + 1]++;
+            for (int r = 0; r < movies; r++)
+                offsets[r + 1] += offsets[r];
+            int[] fill = Arrays.copyOf(offsets, movies);
+            links.data = new int[rows.size];
+            links.size = rows.size;
+            for (int i = 0; i < rows.size; i++)
+                links.data[fill[rows.data[i]]++] = people.data[i];
+            return offsets;
+        }
+
+        /* writes to file.tmp, then renames it over file in one step */
+        public void write(File file, long version) throws IOException {
+            if (directorOffsets == null || actorOffsets == null)
+                throw new IllegalStateException("movie_directors and casts have not been added");
+            int movies = movieIds.size;
+            nameOffsets.add(chars.length());
+            long bytes = HEADER_BYTES
+                    + 4L * (movies + movies + (movies + 1) + (movies + 1) + directorLinks.size
+                            + (movies + 1) + actorLinks.size + nameOffsets.size)
+                    + 2L * chars.length();
+            if (bytes > Integer.MAX_VALUE)
+                throw new IOException("catalog snapshot would need " + bytes + " bytes");
+
+            File tmp = new File(file.getPath() + ".tmp");
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            try {
+                raf.setLength(0);
+                MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+                map.putInt(MAGIC).putInt(FORMAT).putLong(version)
+                        .putInt(movies).putInt(persons).putInt(directorLinks.size)
+                        .putInt(actorLinks.size).putInt(chars.length());
+                IntBuffer out = map.asIntBuffer();
+                out.put(movieIds.data, 0, movies);
+                out.put(movieYears.data, 0, movies);
+                out.put(titleOffsets.data, 0, movies + 1);
+                out.put(directorOffsets);
+                out.put(directorLinks.data, 0, directorLinks.size);
+                out.put(actorOffsets);
+                out.put(actorLinks.data, 0, actorLinks.size);
+                out.put(nameOffsets.data, 0, nameOffsets.size);
+                ByteBuffer char_bytes = map.duplicate();
+                char_bytes.position(map.position() + 4 * out.position());
+                char_bytes.slice().asCharBuffer().put(chars.toString());
+                map.force();
+            } finally {
+                raf.close();
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Bounded pool of JDBC connections to a single database URL.
+ * At most maxSize connections are ever open; borrowers block (up to the
+ * configured timeout) until one is released.
+ */
+public class ConnectionPool {
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int maxSize;
+    private final long borrowTimeoutMillis;
+
+    private final Semaphore permits;
+    private final LinkedBlockingQueue<PooledConnection> idle = new LinkedBlockingQueue<PooledConnection>();
+    private final List<PooledConnection> opened = Collections.synchronizedList(new ArrayList<PooledConnection>());
+    private volatile boolean closed = false;
+    private volatile Metrics metrics;
+    private volatile StatementRegistry statements;
+
+    public ConnectionPool(String url, String user, String password, int maxSize, long borrowTimeoutMillis) {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("pool size must be at least 1: " + maxSize);
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.maxSize = maxSize;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /* statements prepared on connections opened from now on report to metrics */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /* connections opened from now on prepare the registry's hot set right away */
+    public void setStatements(StatementRegistry statements) {
+        this.statements = statements;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /* number of connections physically open right now (idle + borrowed) */
+    public int getOpenCount() {
+        return opened.size();
+    }
+
+    /* takes an idle connection, or opens a new one if the pool is not yet full */
+    public PooledConnection borrow() throws Exception {
+        if (closed)
+            throw new SQLException("connection pool for " + url + " is closed");
+        if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS))
+            throw new SQLException("timed out after " + borrowTimeoutMillis + "ms waiting for a connection to " + url);
+
+        PooledConnection pc = idle.poll();
+        if (pc != null)
+            return pc;
+
+        try {
+            pc = open();
+        } catch (Exception e) {
+            permits.release();
+            throw e;
+        }
+        return pc;
+    }
+
+    /* hands a connection back; a connection left mid-transaction is rolled back first */
+    public void release(PooledConnection pc) {
+        if (pc == null)
+            return;
+        try {
+            if (!closed && pc.reset()) {
+                idle.offer(pc);
+            } else {
+                discard(pc);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    public void close() {
+        closed = true;
+        PooledConnection pc;
+        while ((pc = idle.poll()) != null)
+            discard(pc);
+    }
+
+    private PooledConnection open() throws Exception {
+        Connection c = DriverManager.getConnection(url, user, password);
+        c.setAutoCommit(true); //by default automatically commit after each statement
+        PooledConnection pc = new PooledConnection(c, metrics);
+        if (statements != null) {
+            try {
+                statements.warm(pc);
+            } catch (SQLException e) {
+                pc.close();
+                throw e;
+            }
+        }
+        opened.add(pc);
+        return pc;
+    }
+
+    private void discard(PooledConnection pc) {
+        opened.remove(pc);
+        pc.close();
+    }
+}
@@ -0,0 +1,130 @@
+import java.io.FileInputStream;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Audits the customer database behind dbconn.properties (or the file named
+ * by -Dvideostore.config):
+ *
+ *   java ConsistencyChecker [fix]
+ *
+ * Reports customers whose CUSTOMERS.open_rentals differs from their open
+ * RENTALS rows, customers with more open rentals than their plan allows, and
+ * movies rented out more than once. With "fix", the counters that are off are
+ * recounted from RENTALS in one SERIALIZABLE transaction; the other findings
+ * need a person to decide. Exits with status 1 if anything is left wrong.
+ *
+ * Safe to run against a live store: rent and return change RENTALS and the
+ * counter in the same transaction, so a committed state never differs.
+ */
+public class ConsistencyChecker {
+    private static final String DBCONFIG_FILENAME = System.getProperty("videostore.config", "dbconn.properties");
+
+    private static final String COUNTER_MISMATCH_SQL =
+            "SELECT C.id, C.open_rentals, COUNT(R.movieid) " +
+            "FROM CUSTOMERS AS C LEFT OUTER JOIN RENTALS AS R ON R.customerid = C.id AND R.status = 1 " +
+            "GROUP BY C.id, C.open_rentals " +
+            "HAVING C.open_rentals <> COUNT(R.movieid) " +
+            "ORDER BY C.id";
+
+    private static final String OVER_PLAN_SQL =
+            "SELECT C.id, C.open_rentals, P.maxrentals " +
+            "FROM CUSTOMERS AS C INNER JOIN PLANS AS P ON P.id = C.plan_id " +
+            "WHERE C.open_rentals > P.maxrentals " +
+            "ORDER BY C.id";
+
+    private static final String MOVIE_RENTED_TWICE_SQL =
+            "SELECT R.movieid, COUNT(*) FROM RENTALS AS R WHERE R.status = 1 " +
+            "GROUP BY R.movieid HAVING COUNT(*) > 1 " +
+            "ORDER BY R.movieid";
+
+    private static final String RECOUNT_SQL =
+            "UPDATE CUSTOMERS SET open_rentals = " +
+            "(SELECT COUNT(*) FROM RENTALS AS R WHERE R.customerid = CUSTOMERS.id AND R.status = 1) " +
+            "WHERE id = ?";
+
+    public static void main(String[] args) throws Exception {
+        boolean fix = args.length > 0 && args[0].equals("fix");
+        if (args.length > 1 || (args.length == 1 && !fix)) {
+            System.out.println("Usage: java ConsistencyChecker [fix]");
+            System.exit(1);
+        }
+
+        Properties props = new Properties();
+        props.load(new FileInputStream(DBCONFIG_FILENAME));
+        Class.forName(props.getProperty("videostore.jdbc_driver").trim());
+        Connection c = DriverManager.getConnection(props.getProperty("videostore.customer_url"),
+                props.getProperty("videostore.sqlazure_username"), props.getProperty("videostore.sqlazure_password"));
+        int problems;
+        try {
+            problems = check(c, fix);
+        } finally {
+            c.close();
+        }
+        System.out.println(problems == 0 ? "consistent" : problems + " problems left");
+        System.exit(problems == 0 ? 0 : 1);
+    }
+
+    /* prints what is wrong, recounting the counters when fix is set; returns how many problems remain */
+    public static int check(Connection c, boolean fix) throws SQLException {
+        int problems = 0;
+        Statement st = c.createStatement();
+        try {
+            List<Integer> mismatched = new ArrayList<Integer>();
+            ResultSet rs = st.executeQuery(COUNTER_MISMATCH_SQL);
+            while (rs.next()) {
+                mismatched.add(rs.getInt(1));
+                System.out.println("customer " + rs.getInt(1) + ": open_rentals " + rs.getInt(2)
+                        + ", open RENTALS rows " + rs.getInt(3));
+            }
+            rs.close();
+            if (fix && !mismatched.isEmpty()) {
+                recount(c, mismatched);
+                System.out.println("recounted open_rentals of " + mismatched.size() + " customers");
+            } else {
+                problems += mismatched.size();
+            }
+
+            rs = st.executeQuery(OVER_PLAN_SQL);
+            while (rs.next()) {
+                problems++;
+                System.out.println("customer " + rs.getInt(1) + ": " + rs.getInt(2)
+                        + " open rentals, plan allows " + rs.getInt(3));
+            }
+            rs.close();
+
+            rs = st.executeQuery(MOVIE_RENTED_TWICE_SQL);
+            while (rs.next()) {
+                problems++;
+                System.out.println("movie " + rs.getInt(1) + ": " + rs.getInt(2) + " open rentals");
+            }
+            rs.close();
+        } finally {
+            st.close();
+        }
+        return problems;
+    }
+
+    /* recounts in a SERIALIZABLE transaction; c is left in autocommit at the level it had */
+    private static void recount(Connection c, List<Integer> cids) throws SQLException {
+        int isolation = c.getTransactionIsolation();
+        c.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+        c.setAutoCommit(false);
+        PreparedStatement ps = c.prepareStatement(RECOUNT_SQL);
+        try {
+            for (int cid : cids) {
+                ps.setInt(1, cid);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            c.commit();
+        } catch (SQLException e) {
+            c.rollback();
+            throw e;
+        } finally {
+            ps.close();
+            c.setAutoCommit(true);
+            c.setTransactionIsolation(isolation);
+        }
+    }
+}
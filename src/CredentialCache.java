@@ -0,0 +1,135 @@
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache in front of the CUSTOMERS lookup that every login runs.
+ *
+ * A login maps to the customer id and password hash it was loaded with, in an
+ * LRU map bounded by maxEntries, for ttlMillis. Logins are keyed the way the
+ * database compares them (case-insensitively, trailing blanks ignored), so
+ * "Alice" and "alice " share the entry of the one customer they both find. Logins that belong to no
+ * customer are cached too (negative entries), for the shorter negativeTtlMillis,
+ * so a storm of bad logins does not reach the database either; a customer
+ * created meanwhile can log in once that has passed.
+ *
+ * Only the stored PBKDF2 hash is kept, never the password or anything cheaper
+ * to attack than that hash: every login still runs the PBKDF2 iterations, the
+ * cache saves the database lookup. Query does the loading (read-through); a
+ * password changed in the database is noticed when the entry expires.
+ */
+public class CredentialCache {
+
+    public static class Credential {
+        public final int cid;
+        public final String hash;
+        private final long expires;
+
+        Credential(int cid, String hash, long expires) {
+            this.cid = cid;
+            this.hash = hash;
+            this.expires = expires;
+        }
+
+        /* false for a login that belongs to no customer */
+        public boolean exists() {
+            return cid >= 0;
+        }
+    }
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final long negativeTtlMillis;
+
+    private final LinkedHashMap<String, Credential> credentials;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong checks = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public CredentialCache(int maxEntries, long ttlMillis, long negativeTtlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+        this.credentials = new LinkedHashMap<String, Credential>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Credential> eldest) {
+                if (size() > CredentialCache.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /* the cached credential of login, or null if the caller has to load it */
+    public Credential get(String login) {
+        String key = keyOf(login);
+        synchronized (credentials) {
+            Credential c = credentials.get(key);
+            if (c != null && System.currentTimeMillis() > c.expires) {
+                credentials.remove(key);
+                c = null;
+            }
+            if (c == null)
+                misses.incrementAndGet();
+            else if (c.exists())
+                hits.incrementAndGet();
+            else
+                negativeHits.incrementAndGet();
+            return c;
+        }
+    }
+
+    /* the customer's credential as loaded; returns it for check() */
+    public Credential put(String login, int cid, String hash) {
+        Credential c = new Credential(cid, hash, System.currentTimeMillis() + ttlMillis);
+        synchronized (credentials) {
+            credentials.put(keyOf(login), c);
+        }
+        return c;
+    }
+
+    /* login belongs to no customer */
+    public void putUnknown(String login) {
+        synchronized (credentials) {
+            credentials.put(keyOf(login), new Credential(-1, null, System.currentTimeMillis() + negativeTtlMillis));
+        }
+    }
+
+    /* whether password matches the credential of an existing customer */
+    public boolean check(Credential c, String password) {
+        checks.incrementAndGet();
+        return PasswordHash.verify(password, c.hash);
+    }
+
+    public void remove(String login) {
+        synchronized (credentials) {
+            credentials.remove(keyOf(login));
+        }
+    }
+
+    /* login as the database's case-insensitive collation sees it: lower-cased, and
+       without the trailing blanks that = ignores */
+    private static String keyOf(String login) {
+        int end = login.length();
+        while (end > 0 && login.charAt(end - 1) == ' ')
+            end--;
+        return login.substring(0, end).toLowerCase(Locale.ROOT);
+    }
+
+    /**********************************************************/
+    /* statistics */
+
+    public String statistics() {
+        int cached;
+        synchronized (credentials) {
+            cached = credentials.size();
+        }
+        return "logins: " + cached + "/" + maxEntries + " cached, "
+                + hits.get() + " hits, " + negativeHits.get() + " unknown-login hits, "
+                + misses.get() + " misses, " + evictions.get() + " evicted; "
+                + checks.get() + " passwords hashed\n";
+    }
+}
@@ -0,0 +1,142 @@
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * The three answer sets of a classic fastsearch (movies, movies x directors,
+ * movies x actors), held column-wise until they are rendered. Each set is a
+ * Table of (movie id, two strings) rows: ids in an int[], the strings copied
+ * into one shared char[] and addressed by (start, length). Reading a row
+ * boxes nothing and keeps none of the driver's String objects alive. Strings
+ * are only made again when render() hands the rows to a ResultSink.
+ *
+ * All three queries return their rows ordered by movie id, so render() is a
+ * merge join over the three tables.
+ */
+public class FastSearchResult {
+
+    /* rows of (int key, String a, String b); a length of -1 stands for null */
+    public static final class Table {
+        private int size = 0;
+        private int[] keys = new int[16];
+        private int[] bounds = new int[4 * 16];
+        private char[] chars = new char[512];
+        private int used = 0;
+
+        /* appends every row of rs, closing it; rows whose a and b are both null
+           (the unmatched side of an outer join) are skipped when skipNulls is set */
+        public void read(ResultSet rs, int key_column, int a_column, int b_column, boolean skipNulls)
+                throws SQLException {
+            while (rs.next()) {
+                String a = rs.getString(a_column);
+                String b = rs.getString(b_column);
+                if (skipNulls && a == null && b == null)
+                    continue;
+                add(rs.getInt(key_column), a, b);
+            }
+            rs.close();
+        }
+
+        public void add(int key, String a, String b) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, 2 * size);
+                bounds = Arrays.copyOf(bounds, 8 * size);
+            }
+            keys[size] = key;
+            put(4 * size, a);
+            put(4 * size + 2, b);
+            size++;
+        }
+
+        private void put(int at, String s) {
+            if (s == null) {
+                bounds[at] = used;
+                bounds[at + 1] = -1;
+                return;
+            }
+            int n = s.length();
+            if (used + n > chars.length)
+                chars = Arrays.copyOf(chars, Math.max(2 * chars.length, used + n));
+            s.getChars(0, n, chars, used);
+            bounds[at] = used;
+            bounds[at + 1] = n;
+            used += n;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int key(int row) {
+            return keys[row];
+        }
+
+        public String a(int row) {
+            return get(4 * row);
+        }
+
+        public String b(int row) {
+            return get(4 * row + 2);
+        }
+
+        private String get(int at) {
+            int n = bounds[at + 1];
+            return n < 0 ? null : new String(chars, bounds[at], n);
+        }
+
+        /* bytes held by the arrays, for statistics */
+        public long sizeInBytes() {
+            return 4L * keys.length + 4L * bounds.length + 2L * chars.length;
+        }
+    }
+
+    private final Table movies;
+    private final Table directors;
+    private final Table actors;
+
+    public FastSearchResult() {
+        this(new Table(), new Table(), new Table());
+    }
+
+    /* tables read separately, e.g. on different connections at the same time */
+    public FastSearchResult(Table movies, Table directors, Table actors) {
+        this.movies = movies;
+        this.directors = directors;
+        this.actors = actors;
+    }
+
+    /* (id, title, year) */
+    public Table movies() {
+        return movies;
+    }
+
+    /* (movie id, last name, first name) */
+    public Table directors() {
+        return directors;
+    }
+
+    /* (movie id, last name, first name) */
+    public Table actors() {
+        return actors;
+    }
+
+    /* every movie followed by its directors and actors, in movie id order */
+    public void render(ResultSink sink) throws IOException {
+        int d = 0, a = 0;
+        for (int m = 0; m < movies.size(); m++) {
+            int mid = movies.key(m);
+            sink.movie(mid, movies.a(m), movies.b(m));
+
+            while (d < directors.size() && directors.key(d) < mid)
+                d++;
+            for (; d < directors.size() && directors.key(d) == mid; d++)
+                sink.director(directors.a(d), directors.b(d));
+
+            while (a < actors.size() && actors.key(a) < mid)
+                a++;
+            for (; a < actors.size() && actors.key(a) == mid; a++)
+                sink.actor(actors.a(a), actors.b(a));
+        }
+    }
+}
@@ -0,0 +1,141 @@
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from int to int with linear probing. Keys and values
+ * are stored in parallel primitive arrays, so lookups and updates never box.
+ * Not thread-safe; callers synchronize.
+ */
+public class IntIntMap {
+    private static final int FREE_KEY = Integer.MIN_VALUE;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private int[] keys;
+    private int[] values;
+    private int size = 0;
+    private int mask;
+
+    public IntIntMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity * LOAD_FACTOR < expectedSize)
+            capacity <<= 1;
+        allocate(capacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /* value stored for key, or missing if there is none */
+    public int get(int key, int missing) {
+        checkKey(key);
+        int i = slot(key);
+        while (keys[i] != FREE_KEY) {
+            if (keys[i] == key)
+                return values[i];
+            i = (i + 1) & mask;
+        }
+        return missing;
+    }
+
+    public boolean containsKey(int key) {
+        checkKey(key);
+        int i = slot(key);
+        while (keys[i] != FREE_KEY) {
+            if (keys[i] == key)
+                return true;
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    public void put(int key, int value) {
+        checkKey(key);
+        int i = slot(key);
+        while (keys[i] != FREE_KEY) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > keys.length * LOAD_FACTOR)
+            rehash(keys.length << 1);
+    }
+
+    /* removes key; returns true if it was present */
+    public boolean remove(int key) {
+        checkKey(key);
+        int i = slot(key);
+        while (keys[i] != FREE_KEY) {
+            if (keys[i] == key) {
+                shiftBack(i);
+                size--;
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, FREE_KEY);
+        size = 0;
+    }
+
+    /* approximate heap footprint of the two arrays, in bytes */
+    public long sizeInBytes() {
+        return 8L * keys.length;
+    }
+
+    /* closes the gap left at i by moving later entries of the probe run back,
+       so lookups never need tombstones */
+    private void shiftBack(int i) {
+        int gap = i;
+        int j = (i + 1) & mask;
+        while (keys[j] != FREE_KEY) {
+            int home = slot(keys[j]);
+            /* entry j may fill the gap only if its home slot is not in (gap, j] */
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+            j = (j + 1) & mask;
+        }
+        keys[gap] = FREE_KEY;
+    }
+
+    private void rehash(int capacity) {
+        int[] old_keys = keys;
+        int[] old_values = values;
+        allocate(capacity);
+        for (int i = 0; i < old_keys.length; i++) {
+            if (old_keys[i] != FREE_KEY) {
+                int j = slot(old_keys[i]);
+                while (keys[j] != FREE_KEY)
+                    j = (j + 1) & mask;
+                keys[j] = old_keys[i];
+                values[j] = old_values[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, FREE_KEY);
+        mask = capacity - 1;
+    }
+
+    private int slot(int key) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private static void checkKey(int key) {
+        if (key == FREE_KEY)
+            throw new IllegalArgumentException("key " + key + " is reserved");
+    }
+}
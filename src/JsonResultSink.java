@@ -0,0 +1,125 @@
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * One JSON object per result, on a single line, for programs rather than people:
+ *
+ *   {"transaction":"search","term":"star","movies":[{"id":1,"title":"...","year":"1977",
+ *    "directors":[{"lname":"...","fname":"..."}],"actors":[...],"status":"AVAILABLE"}]}
+ *
+ * fastsearch results have no "status".
+ */
+public class JsonResultSink extends BufferedResultSink {
+    private static final String[] STATUS_NAMES = { "AVAILABLE", "YOU HAVE IT", "UNAVAILABLE" };
+
+    /* what the last call left open */
+    private static final int IN_NOTHING = 0;
+    private static final int IN_MOVIES = 1;
+    private static final int IN_MOVIE = 2;
+    private static final int IN_DIRECTORS = 3;
+    private static final int IN_ACTORS = 4;
+
+    private int state = IN_NOTHING;
+    private boolean first;
+
+    public JsonResultSink(Writer writer) {
+        super(writer);
+    }
+
+    public void begin(String transaction, String term) throws IOException {
+        append("{\"transaction\":");
+        string(transaction);
+        append(",\"term\":");
+        string(term);
+        append(",\"movies\":[");
+        state = IN_MOVIES;
+        first = true;
+    }
+
+    public void movie(int id, String title, String year) throws IOException {
+        closeMovie();
+        if (!first)
+            append(',');
+        first = false;
+        append("{\"id\":");
+        append(id);
+        append(",\"title\":");
+        string(title);
+        append(",\"year\":");
+        string(year);
+        state = IN_MOVIE;
+    }
+
+    public void director(String lname, String fname) throws IOException {
+        person(IN_DIRECTORS, ",\"directors\":[", lname, fname);
+    }
+
+    public void actor(String lname, String fname) throws IOException {
+        person(IN_ACTORS, ",\"actors\":[", lname, fname);
+    }
+
+    private void person(int list, String opening, String lname, String fname) throws IOException {
+        if (state != list) {
+            closeList();
+            append(opening);
+            state = list;
+        } else {
+            append(',');
+        }
+        append("{\"lname\":");
+        string(lname);
+        append(",\"fname\":");
+        string(fname);
+        append('}');
+    }
+
+    public void status(int status) throws IOException {
+        closeList();
+        append(",\"status\":");
+        string(STATUS_NAMES[status]);
+    }
+
+    public void end() throws IOException {
+        closeMovie();
+        append("]}\n");
+        state = IN_NOTHING;
+        super.end();
+    }
+
+    private void closeList() throws IOException {
+        if (state == IN_DIRECTORS || state == IN_ACTORS) {
+            append(']');
+            state = IN_MOVIE;
+        }
+    }
+
+    private void closeMovie() throws IOException {
+        closeList();
+        if (state == IN_MOVIE) {
+            append('}');
+            state = IN_MOVIES;
+        }
+    }
+
+    private void string(String s) throws IOException {
+        if (s == null) {
+            append("null");
+            return;
+        }
+        append('"');
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                append('\\');
+                append(c);
+            } else if (c < 0x20) {
+                append("\\u00");
+                append(Character.forDigit(c >> 4, 16));
+                append(Character.forDigit(c & 0xf, 16));
+            } else {
+                append(c);
+            }
+        }
+        append('"');
+    }
+}
@@ -0,0 +1,171 @@
+import java.io.*;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives a VideoStoreServer with many concurrent customer sessions and reports
+ * throughput and latency per command.
+ *
+ *   java LoadGenerator <host> <port> [sessions] [seconds] [movies] [customers] [script]
+ *
+ * Each session logs in as one of the customers (1-8 from setup.sql, the rest
+ * the bench<id> customers made by SyntheticCatalog) and issues commands back to
+ * back. Without a script the commands follow the Benchmark suite's mix over
+ * SyntheticCatalog titles and movie ids 1..movies. A script is a file of
+ * command lines, e.g. captured from real sessions, that every session replays
+ * in a loop starting at a random line.
+ */
+public class LoadGenerator {
+    /* login and password of the customers created by setup.sql */
+    private static final String[][] SETUP_CUSTOMERS = {
+        { "jd", "j1o" }, { "ss", "s2s" }, { "ms", "m3s" }, { "vw", "v4w" },
+        { "sh", "s5h" }, { "id", "i6d" }, { "ff", "f7f" }, { "js", "j8s" },
+    };
+
+    /* the mix, in percent of commands */
+    private static final int MIX_SEARCH = 15;
+    private static final int MIX_FASTSEARCH = 35;
+    private static final int MIX_RENT_RETURN = 20;
+    private static final int MIX_PLAN = 10;
+
+    private static class CommandStats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong errors = new AtomicLong();
+    }
+
+    private static final ConcurrentHashMap<String, CommandStats> stats = new ConcurrentHashMap<String, CommandStats>();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: java LoadGenerator <host> <port> [sessions] [seconds] [movies] [customers] [script]");
+            System.exit(1);
+        }
+        final String host = args[0];
+        final int port = Integer.parseInt(args[1]);
+        int sessions = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+        final int movies = args.length > 4 ? Integer.parseInt(args[4]) : 10000;
+        final int customers = args.length > 5 ? Integer.parseInt(args[5]) : SETUP_CUSTOMERS.length;
+        final List<String> script = args.length > 6 ? readScript(new File(args[6])) : null;
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        final AtomicLong failedSessions = new AtomicLong();
+        ExecutorService clients = Executors.newFixedThreadPool(sessions);
+        for (int i = 0; i < sessions; i++) {
+            final int cid = 1 + i % customers;
+            clients.submit(new Runnable() {
+                public void run() {
+                    try {
+                        session(host, port, cid, movies, script, deadline);
+                    } catch (Exception e) {
+                        failedSessions.incrementAndGet();
+                        System.err.println("session for customer " + cid + " failed: " + e);
+                    }
+                }
+            });
+        }
+        clients.shutdown();
+        clients.awaitTermination(seconds + 60, TimeUnit.SECONDS);
+
+        System.out.println(sessions + " sessions, " + seconds + "s" + (script != null ? ", script " + args[6] : ""));
+        System.out.println("command\tcount\tops/s\tp50_ms\tp99_ms\tmax_ms\terrors");
+        for (Map.Entry<String, CommandStats> e : new TreeMap<String, CommandStats>(stats).entrySet()) {
+            LatencyHistogram h = e.getValue().latency;
+            System.out.println(e.getKey() + "\t" + h.getCount() + "\t" + (h.getCount() / seconds) + "\t"
+                    + String.format("%.2f\t%.2f\t%.2f", h.getPercentile(50) / 1e6, h.getPercentile(99) / 1e6, h.getMax() / 1e6)
+                    + "\t" + e.getValue().errors.get());
+        }
+        if (failedSessions.get() > 0)
+            System.out.println("(" + failedSessions.get() + " sessions failed)");
+    }
+
+    private static void session(String host, int port, int cid, int movies, List<String> script, long deadline)
+            throws Exception {
+        Socket socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+            Random random = new Random();
+
+            String[] login = cid <= SETUP_CUSTOMERS.length
+                    ? SETUP_CUSTOMERS[cid - 1] : new String[] { "bench" + cid, "bench" + cid };
+            if (call(in, out, "login", "login " + login[0] + " " + login[1]).contains("Sorry"))
+                throw new IOException("login failed for " + login[0]);
+
+            int next = script != null ? random.nextInt(script.size()) : 0;
+            while (System.nanoTime() < deadline) {
+                if (script != null) {
+                    String line = script.get(next);
+                    next = (next + 1) % script.size();
+                    call(in, out, new StringTokenizer(line).nextToken(), line);
+                    continue;
+                }
+
+                int p = random.nextInt(100);
+                String word = SyntheticCatalog.WORDS[random.nextInt(SyntheticCatalog.WORDS.length)];
+                if ((p -= MIX_SEARCH) < 0) {
+                    call(in, out, "search", "search " + word);
+                } else if ((p -= MIX_FASTSEARCH) < 0) {
+                    call(in, out, "fastsearch", "fastsearch " + word);
+                } else if ((p -= MIX_RENT_RETURN) < 0) {
+                    int mid = 1 + random.nextInt(movies);
+                    if (call(in, out, "rent", "rent " + mid).contains("COMMITED"))
+                        call(in, out, "return", "return " + mid);
+                } else if ((p -= MIX_PLAN) < 0) {
+                    call(in, out, "plan", "plan " + (3 + random.nextInt(2)));
+                } else {
+                    call(in, out, "me", "me");
+                }
+            }
+            call(in, out, "quit", "quit");
+        } finally {
+            socket.close();
+        }
+    }
+
+    /* sends one command and reads its whole response */
+    private static String call(BufferedReader in, Writer out, String command, String line) throws IOException {
+        long start = System.nanoTime();
+        out.write(line);
+        out.write('\n');
+        out.flush();
+
+        StringBuilder response = new StringBuilder();
+        String l;
+        while ((l = in.readLine()) != null && !l.equals(VideoStoreServer.END_OF_RESPONSE))
+            response.append(l).append('\n');
+        if (l == null)
+            throw new EOFException("server closed the connection");
+
+        CommandStats s = stats.get(command);
+        if (s == null) {
+            stats.putIfAbsent(command, new CommandStats());
+            s = stats.get(command);
+        }
+        s.latency.record(System.nanoTime() - start);
+        if (response.indexOf("Error") >= 0)
+            s.errors.incrementAndGet();
+        return response.toString();
+    }
+
+    private static List<String> readScript(File file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader r = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = r.readLine()) != null) {
+                line = line.trim();
+                if (line.length() > 0 && !line.startsWith("#") && !line.startsWith("login") && !line.equals("quit"))
+                    lines.add(line);
+            }
+        } finally {
+            r.close();
+        }
+        if (lines.isEmpty())
+            throw new IOException(file + " has no commands");
+        return lines;
+    }
+}
@@ -0,0 +1,262 @@
+import java.lang.reflect.*;
+import java.sql.PreparedStatement;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Where the time goes in a Query: a latency histogram, execution count and
+ * row count per SQL statement (named after its *_SQL constant), and per
+ * transaction_* method a latency histogram plus the round trips and rows it
+ * needed.
+ *
+ * Each statement also counts how often it was prepared and what that cost,
+ * next to the latency of the first execution of each preparation (drivers
+ * that prepare on the server lazily, like SQL Server's, pay for the plan
+ * there). Executions per prepare shows how well connections reuse them.
+ *
+ * Statements are measured by wrapping them (see wrap()), so the transaction
+ * code itself only marks where each transaction starts and ends; commits and
+ * rollbacks on the connection are reported by PooledConnection. Statements
+ * run while no transaction is open on the thread are still counted per
+ * statement, and helper threads working for a transaction (parallel
+ * fastsearch) count towards it once they join it. Without wrapped statements
+ * (videostore.metrics off) only the transaction latencies are measured, and
+ * dump() leaves out the round trips and rows it could not count.
+ */
+public class Metrics implements MetricsMBean {
+
+    static class StatementStats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong rows = new AtomicLong();
+        final LatencyHistogram prepares = new LatencyHistogram();
+        final LatencyHistogram firstExecutions = new LatencyHistogram();
+    }
+
+    private static class TransactionStats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LatencyHistogram roundTrips = new LatencyHistogram();
+        final AtomicLong rows = new AtomicLong();
+    }
+
+    /* the transaction running on a thread; nested transaction_* calls count towards the outermost */
+    public static class Context {
+        private int depth = 0;
+        private String name;
+        private long start;
+        private long roundTrips;
+        private long rows;
+        /* what helper threads did for it; added when each one leaves */
+        private final AtomicLong helperRoundTrips = new AtomicLong();
+        private final AtomicLong helperRows = new AtomicLong();
+        private Context parent;
+    }
+
+    private final AtomicLong executions = new AtomicLong();
+    private volatile boolean statementsMeasured = false;
+
+    private final ConcurrentHashMap<String, String> statementNames = new ConcurrentHashMap<String, String>();
+    private final ConcurrentHashMap<String, StatementStats> statements = new ConcurrentHashMap<String, StatementStats>();
+    private final ConcurrentHashMap<String, TransactionStats> transactions = new ConcurrentHashMap<String, TransactionStats>();
+    private final ThreadLocal<Context> context = new ThreadLocal<Context>() {
+        protected Context initialValue() {
+            return new Context();
+        }
+    };
+
+    /* the connections' statements are wrapped from now on, so round trips and rows are counted */
+    public void measureStatements() {
+        statementsMeasured = true;
+    }
+
+    /**********************************************************/
+    /* naming */
+
+    /* names every static String field ending in _SQL after the field, e.g. SEARCH_MOVIE_SQL */
+    public void nameStatements(Class<?> c) {
+        for (Field f : c.getDeclaredFields()) {
+            if (Modifier.isStatic(f.getModifiers()) && f.getType() == String.class && f.getName().endsWith("_SQL")) {
+                try {
+                    f.setAccessible(true);
+                    statementNames.put((String) f.get(null), f.getName());
+                } catch (IllegalAccessException e) {
+                    // leave it unnamed
+                }
+            }
+        }
+    }
+
+    /* gives sql (e.g. a template with its IN list filled in) the name of another statement */
+    public void nameStatement(String sql, String same_as) {
+        String name = statementNames.get(same_as);
+        if (name != null && !statementNames.containsKey(sql))
+            statementNames.put(sql, name);
+    }
+
+    private String nameOf(String sql) {
+        String name = statementNames.get(sql);
+        if (name != null)
+            return name;
+        return sql.length() > 40 ? sql.substring(0, 40) + "..." : sql;
+    }
+
+    /**********************************************************/
+    /* transactions */
+
+    public void beginTransaction(String name) {
+        Context c = context.get();
+        if (c.depth++ == 0) {
+            c.name = name;
+            c.start = System.nanoTime();
+            c.roundTrips = 0;
+            c.rows = 0;
+            c.helperRoundTrips.set(0);
+            c.helperRows.set(0);
+        }
+    }
+
+    public void endTransaction() {
+        Context c = context.get();
+        if (--c.depth > 0)
+            return;
+        TransactionStats stats = transactions.get(c.name);
+        if (stats == null) {
+            transactions.putIfAbsent(c.name, new TransactionStats());
+            stats = transactions.get(c.name);
+        }
+        stats.latency.record(System.nanoTime() - c.start);
+        stats.roundTrips.record(c.roundTrips + c.helperRoundTrips.get());
+        stats.rows.addAndGet(c.rows + c.helperRows.get());
+    }
+
+    /* the transaction open on this thread, for a helper thread to join; null if there is none */
+    public Context currentTransaction() {
+        Context c = context.get();
+        return c.depth > 0 ? c : null;
+    }
+
+    /* counts what this (helper) thread runs towards transaction t until leaveTransaction() */
+    public void joinTransaction(Context t) {
+        if (t == null)
+            return;
+        Context c = new Context();
+        c.depth = 1;
+        c.parent = t;
+        context.set(c);
+    }
+
+    public void leaveTransaction() {
+        Context c = context.get();
+        if (c.parent == null)
+            return;
+        c.parent.helperRoundTrips.addAndGet(c.roundTrips);
+        c.parent.helperRows.addAndGet(c.rows);
+        context.remove();
+    }
+
+    /**********************************************************/
+    /* statements */
+
+    /* a PreparedStatement that reports every execution and every row it returns;
+       prepare_nanos is what preparing ps took */
+    public PreparedStatement wrap(String sql, PreparedStatement ps, long prepare_nanos) {
+        StatementStats stats = statsOf(nameOf(sql));
+        stats.prepares.record(prepare_nanos);
+        return new MeteredStatement(ps, this, stats);
+    }
+
+    /* a round trip that is not a statement, such as a commit or rollback on the connection */
+    public void roundTrip(String name, long nanos) {
+        executed(statsOf(name), nanos, false);
+    }
+
+    private StatementStats statsOf(String name) {
+        StatementStats stats = statements.get(name);
+        if (stats == null) {
+            statements.putIfAbsent(name, new StatementStats());
+            stats = statements.get(name);
+        }
+        return stats;
+    }
+
+    /* called by MeteredStatement after each execution; first if it was the first of its preparation */
+    void executed(StatementStats stats, long nanos, boolean first) {
+        executions.incrementAndGet();
+        stats.latency.record(nanos);
+        if (first)
+            stats.firstExecutions.record(nanos);
+        Context c = context.get();
+        if (c.depth > 0)
+            c.roundTrips++;
+    }
+
+    /* called by MeteredResultSet for each row */
+    void rowRead(StatementStats stats) {
+        stats.rows.incrementAndGet();
+        Context c = context.get();
+        if (c.depth > 0)
+            c.rows++;
+    }
+
+    /**********************************************************/
+    /* reporting */
+
+    /* statements executed on any thread since the last reset(); each is one round trip */
+    public long getExecutions() {
+        return executions.get();
+    }
+
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        if (!statementsMeasured) {
+            sb.append(String.format("%-36s %9s %9s %9s %9s%n",
+                    "transaction", "count", "p50 ms", "p99 ms", "max ms"));
+            for (Map.Entry<String, TransactionStats> e : new TreeMap<String, TransactionStats>(transactions).entrySet()) {
+                TransactionStats t = e.getValue();
+                sb.append(String.format("%-36s %9d %9.2f %9.2f %9.2f%n", e.getKey(), t.latency.getCount(),
+                        millis(t.latency.getPercentile(50)), millis(t.latency.getPercentile(99)), millis(t.latency.getMax())));
+            }
+            sb.append("(round trips, rows and statements are measured with videostore.metrics = true)\n");
+            return sb.toString();
+        }
+        sb.append(String.format("%-36s %9s %10s %9s %9s %9s %9s%n",
+                "transaction", "count", "trips/tx", "rows/tx", "p50 ms", "p99 ms", "max ms"));
+        for (Map.Entry<String, TransactionStats> e : new TreeMap<String, TransactionStats>(transactions).entrySet()) {
+            TransactionStats t = e.getValue();
+            long n = t.latency.getCount();
+            sb.append(String.format("%-36s %9d %10.1f %9.1f %9.2f %9.2f %9.2f%n", e.getKey(), n,
+                    t.roundTrips.getMean(), n == 0 ? 0.0 : (double) t.rows.get() / n,
+                    millis(t.latency.getPercentile(50)), millis(t.latency.getPercentile(99)), millis(t.latency.getMax())));
+        }
+        sb.append(String.format("%-36s %9s %10s %9s %9s %9s %9s %9s %9s %9s%n",
+                "statement", "count", "rows", "mean ms", "p50 ms", "p99 ms", "max ms",
+                "prepares", "prep ms", "1st ms"));
+        for (Map.Entry<String, StatementStats> e : new TreeMap<String, StatementStats>(statements).entrySet()) {
+            StatementStats s = e.getValue();
+            sb.append(String.format("%-36s %9d %10d %9.2f %9.2f %9.2f %9.2f %9d %9.2f %9.2f%n", e.getKey(), s.latency.getCount(),
+                    s.rows.get(), s.latency.getMean() / 1e6,
+                    millis(s.latency.getPercentile(50)), millis(s.latency.getPercentile(99)), millis(s.latency.getMax()),
+                    s.prepares.getCount(), s.prepares.getMean() / 1e6, s.firstExecutions.getMean() / 1e6));
+        }
+        return sb.toString();
+    }
+
+    public void reset() {
+        executions.set(0);
+        for (TransactionStats t : transactions.values()) {
+            t.latency.reset();
+            t.roundTrips.reset();
+            t.rows.set(0);
+        }
+        for (StatementStats s : statements.values()) {
+            s.latency.reset();
+            s.rows.set(0);
+            s.prepares.reset();
+            s.firstExecutions.reset();
+        }
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
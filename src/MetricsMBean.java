@@ -0,0 +1,9 @@
+/**
+ * JMX view of a Query's Metrics (videostore:type=Metrics).
+ */
+public interface MetricsMBean {
+    /* the same report as the "metrics" command */
+    String dump();
+
+    void reset();
+}
@@ -0,0 +1,187 @@
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Brings the customer database up to date with the migrations next to
+ * setup.sql, and reports which are applied:
+ *
+ *   java Migrator [status|migrate]
+ *
+ * A migration is a file migrations/V<version>__<description>.sql of
+ * ;-separated statements (the same format as setup.sql). SCHEMA_VERSION
+ * records every version applied, with a checksum of its file; migrate applies
+ * the missing ones in version order, each in its own transaction together
+ * with its SCHEMA_VERSION row. The migrations themselves are written to be
+ * harmless on a database that already has what they add (e.g. one created
+ * by a newer setup.sql), so they can be applied to any database once.
+ *
+ * The database is the one behind dbconn.properties (or the file named by
+ * -Dvideostore.config); the migrations directory sits next to that file.
+ */
+public class Migrator {
+    private static final String DBCONFIG_FILENAME = System.getProperty("videostore.config", "dbconn.properties");
+
+    private static final Pattern MIGRATION_FILENAME = Pattern.compile("V(\\d+)__(\\w+)\\.sql");
+
+    private static final String CREATE_SCHEMA_VERSION_SQL =
+            "IF OBJECT_ID('SCHEMA_VERSION') IS NULL " +
+            "CREATE TABLE SCHEMA_VERSION(" +
+            "version integer PRIMARY KEY, " +
+            "description varchar(200) NOT NULL, " +
+            "checksum bigint NOT NULL, " +
+            "applied datetime2 NOT NULL DEFAULT SYSDATETIME())";
+
+    private static final String APPLIED_SQL =
+            "SELECT version, checksum FROM SCHEMA_VERSION";
+
+    private static final String INSERT_VERSION_SQL =
+            "INSERT INTO SCHEMA_VERSION (version, description, checksum) VALUES (?, ?, ?)";
+
+    public static class Migration {
+        public final int version;
+        public final String description;
+        public final File file;
+        public final long checksum;
+
+        Migration(int version, String description, File file, long checksum) {
+            this.version = version;
+            this.description = description;
+            this.file = file;
+            this.checksum = checksum;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String t = args.length > 0 ? args[0] : "status";
+        if (args.length > 1 || (!t.equals("status") && !t.equals("migrate"))) {
+            System.out.println("Usage: java Migrator [status|migrate]");
+            System.exit(1);
+        }
+
+        Properties props = new Properties();
+        props.load(new FileInputStream(DBCONFIG_FILENAME));
+        Class.forName(props.getProperty("videostore.jdbc_driver").trim());
+        Connection c = DriverManager.getConnection(props.getProperty("videostore.customer_url"),
+                props.getProperty("videostore.sqlazure_username"), props.getProperty("videostore.sqlazure_password"));
+        try {
+            File dir = directory(new File(DBCONFIG_FILENAME));
+            if (t.equals("migrate"))
+                System.out.println("applied " + migrate(c, dir) + " migrations");
+            status(c, dir);
+        } finally {
+            c.close();
+        }
+    }
+
+    /* the migrations directory that belongs with a dbconn.properties-style file */
+    public static File directory(File config) {
+        return new File(config.getAbsoluteFile().getParentFile(), "migrations");
+    }
+
+    /* the migrations in dir, in version order */
+    public static List<Migration> migrations(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null)
+            throw new FileNotFoundException("no migrations directory " + dir);
+
+        TreeMap<Integer, Migration> migrations = new TreeMap<Integer, Migration>();
+        for (File f : files) {
+            Matcher m = MIGRATION_FILENAME.matcher(f.getName());
+            if (!m.matches())
+                continue;
+            int version = Integer.parseInt(m.group(1));
+            if (migrations.containsKey(version))
+                throw new IOException("two migrations with version " + version + " in " + dir);
+            migrations.put(version, new Migration(version, m.group(2).replace('_', ' '), f, checksum(f)));
+        }
+        return new ArrayList<Migration>(migrations.values());
+    }
+
+    /* applies the migrations in dir that c has not seen yet; returns how many */
+    public static int migrate(Connection c, File dir) throws IOException, SQLException {
+        Map<Integer, Long> applied = applied(c);
+        int count = 0;
+        for (Migration m : migrations(dir)) {
+            if (applied.containsKey(m.version))
+                continue;
+            apply(c, m);
+            count++;
+        }
+        return count;
+    }
+
+    /* the highest version applied to c, 0 for none */
+    public static int currentVersion(Connection c) throws SQLException {
+        int version = 0;
+        for (int v : applied(c).keySet())
+            version = Math.max(version, v);
+        return version;
+    }
+
+    private static void status(Connection c, File dir) throws IOException, SQLException {
+        Map<Integer, Long> applied = applied(c);
+        for (Migration m : migrations(dir)) {
+            Long checksum = applied.get(m.version);
+            String state = checksum == null ? "pending"
+                    : checksum.longValue() == m.checksum ? "applied" : "applied, file changed since";
+            System.out.println("V" + m.version + "\t" + m.description + "\t" + state);
+        }
+    }
+
+    private static Map<Integer, Long> applied(Connection c) throws SQLException {
+        Map<Integer, Long> applied = new HashMap<Integer, Long>();
+        Statement st = c.createStatement();
+        try {
+            st.executeUpdate(CREATE_SCHEMA_VERSION_SQL);
+            ResultSet rs = st.executeQuery(APPLIED_SQL);
+            while (rs.next())
+                applied.put(rs.getInt(1), rs.getLong(2));
+            rs.close();
+        } finally {
+            st.close();
+        }
+        return applied;
+    }
+
+    private static void apply(Connection c, Migration m) throws IOException, SQLException {
+        System.out.println("applying V" + m.version + " " + m.description);
+        c.setAutoCommit(false);
+        Statement st = c.createStatement();
+        PreparedStatement version = c.prepareStatement(INSERT_VERSION_SQL);
+        try {
+            for (String sql : SyntheticCatalog.statements(m.file))
+                st.execute(sql);
+            version.setInt(1, m.version);
+            version.setString(2, m.description);
+            version.setLong(3, m.checksum);
+            version.executeUpdate();
+            c.commit();
+        } catch (SQLException e) {
+            c.rollback();
+            throw new SQLException("migration V" + m.version + " failed: " + e.getMessage(),
+                    e.getSQLState(), e.getErrorCode(), e);
+        } finally {
+            st.close();
+            version.close();
+            c.setAutoCommit(true);
+        }
+    }
+
+    private static long checksum(File f) throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream in = new FileInputStream(f);
+        try {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0)
+                crc.update(buf, 0, n);
+        } finally {
+            in.close();
+        }
+        return crc.getValue();
+    }
+}
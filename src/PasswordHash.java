@@ -0,0 +1,145 @@
+import java.io.FileInputStream;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.sql.*;
+import java.util.*;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Salted PBKDF2 password hashes, as stored in CUSTOMERS.password_hash:
+ *
+ *   pbkdf2-sha1:<iterations>:<salt, hex>:<hash, hex>
+ *
+ * Customers created before the column existed still have their password in
+ * CUSTOMERS.password. Query hashes it (and empties password) the first time
+ * such a customer logs in; to hash everybody at once, run
+ *
+ *   java PasswordHash upgrade [iterations]
+ *
+ * against the customer database behind dbconn.properties (or the file named
+ * by -Dvideostore.config).
+ */
+public class PasswordHash {
+    private static final String DBCONFIG_FILENAME = System.getProperty("videostore.config", "dbconn.properties");
+
+    public static final int DEFAULT_ITERATIONS = 10000;
+
+    private static final String ALGORITHM = "pbkdf2-sha1";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 160;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private static final String PLAINTEXT_PASSWORDS_SQL =
+            "SELECT id, password FROM CUSTOMERS WHERE password_hash IS NULL";
+
+    // whether a customer without a hash typed their plaintext password, compared
+    // by the database as it always was (its collation decides case and trailing blanks)
+    static final String PLAINTEXT_LOGIN_SQL =
+            "SELECT 1 FROM CUSTOMERS WHERE id = ? AND password = ? AND password <> '' AND password_hash IS NULL";
+
+    // stores a new hash for a customer whose hash is still the one it was checked
+    // against ('' for none), so two logins upgrading at once write it only once
+    static final String UPGRADE_PASSWORD_SQL =
+            "UPDATE CUSTOMERS SET password_hash = ?, password = '' " +
+            "WHERE id = ? AND ISNULL(password_hash, '') = ?";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 2 || !args[0].equals("upgrade")) {
+            System.out.println("Usage: java PasswordHash upgrade [iterations]");
+            System.exit(1);
+        }
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ITERATIONS;
+
+        Properties props = new Properties();
+        props.load(new FileInputStream(DBCONFIG_FILENAME));
+        Class.forName(props.getProperty("videostore.jdbc_driver").trim());
+        Connection c = DriverManager.getConnection(props.getProperty("videostore.customer_url"),
+                props.getProperty("videostore.sqlazure_username"), props.getProperty("videostore.sqlazure_password"));
+        try {
+            System.out.println("hashed the passwords of " + upgradeAll(c, iterations) + " customers");
+        } finally {
+            c.close();
+        }
+    }
+
+    /* hashes every password still stored in plaintext; returns how many */
+    public static int upgradeAll(Connection c, int iterations) throws SQLException {
+        Map<Integer, String> plaintext = new LinkedHashMap<Integer, String>();
+        Statement st = c.createStatement();
+        try {
+            ResultSet rs = st.executeQuery(PLAINTEXT_PASSWORDS_SQL);
+            while (rs.next())
+                plaintext.put(rs.getInt(1), rs.getString(2));
+            rs.close();
+        } finally {
+            st.close();
+        }
+
+        int count = 0;
+        PreparedStatement ps = c.prepareStatement(UPGRADE_PASSWORD_SQL);
+        try {
+            for (Map.Entry<Integer, String> e : plaintext.entrySet()) {
+                ps.setString(1, hash(e.getValue(), iterations));
+                ps.setInt(2, e.getKey());
+                ps.setString(3, "");
+                count += ps.executeUpdate();
+            }
+        } finally {
+            ps.close();
+        }
+        return count;
+    }
+
+    /* a new hash of password, with a fresh salt */
+    public static String hash(String password, int iterations) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        return ALGORITHM + ":" + iterations + ":" + hex(salt) + ":" + hex(pbkdf2(password, salt, iterations));
+    }
+
+    /* whether password is the one hashed into stored */
+    public static boolean verify(String password, String stored) {
+        String[] parts = split(stored);
+        byte[] expected = unhex(parts[3]);
+        return MessageDigest.isEqual(expected, pbkdf2(password, unhex(parts[2]), Integer.parseInt(parts[1])));
+    }
+
+    /* the iteration count stored was hashed with; a login rehashes with the configured one */
+    public static int iterations(String stored) {
+        return Integer.parseInt(split(stored)[1]);
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1").generateSecret(spec).getEncoded();
+        } catch (Exception e) {
+            throw new IllegalStateException("PBKDF2WithHmacSHA1 is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static String[] split(String stored) {
+        String[] parts = stored.split(":");
+        if (parts.length != 4 || !parts[0].equals(ALGORITHM))
+            throw new IllegalArgumentException("not a " + ALGORITHM + " password hash");
+        return parts;
+    }
+
+    private static String hex(byte[] b) {
+        StringBuilder sb = new StringBuilder(2 * b.length);
+        for (byte x : b)
+            sb.append(Character.forDigit((x >> 4) & 0xf, 16)).append(Character.forDigit(x & 0xf, 16));
+        return sb.toString();
+    }
+
+    private static byte[] unhex(String s) {
+        byte[] b = new byte[s.length() / 2];
+        for (int i = 0; i < b.length; i++)
+            b[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        return b;
+    }
+}
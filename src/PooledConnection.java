@@ -0,0 +1,107 @@
+import java.sql.*;
+import java.util.*;
+
+/**
+ * One physical connection handed out by a ConnectionPool, together with the
+ * statements prepared on it. Statements are cached by their SQL text (the
+ * *_SQL constants in Query), so each one is prepared at most once per
+ * connection. Only one thread uses a PooledConnection at a time.
+ */
+public class PooledConnection {
+    private final Connection connection;
+    private final Metrics metrics;
+    private final HashMap<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+
+    /* the isolation level every connection is handed out at; a transaction that
+       needs another one sets it with setIsolation() and reset() puts this back */
+    static final int DEFAULT_ISOLATION = Connection.TRANSACTION_READ_COMMITTED;
+    private int isolation;
+
+    PooledConnection(Connection connection, Metrics metrics) throws SQLException {
+        this.connection = connection;
+        this.metrics = metrics;
+        connection.setTransactionIsolation(DEFAULT_ISOLATION);
+        this.isolation = DEFAULT_ISOLATION;
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    /* returns the cached statement for sql, preparing it on first use (again,
+       if the driver has closed the cached one) */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement ps = statements.get(sql);
+        if (ps == null || ps.isClosed()) {
+            long start = System.nanoTime();
+            ps = connection.prepareStatement(sql);
+            if (metrics != null)
+                ps = metrics.wrap(sql, ps, System.nanoTime() - start);
+            statements.put(sql, ps);
+        }
+        ps.clearParameters();
+        return ps;
+    }
+
+    /* sets the isolation level for the next transaction; call it outside a transaction */
+    public void setIsolation(int level) throws SQLException {
+        if (level == isolation)
+            return;
+        connection.setTransactionIsolation(level);
+        isolation = level;
+    }
+
+    /* commits on the connection, counted as a round trip by the metrics */
+    public void commit() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            connection.commit();
+        } finally {
+            if (metrics != null)
+                metrics.roundTrip("Connection.commit", System.nanoTime() - start);
+        }
+    }
+
+    public void rollback() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            connection.rollback();
+        } finally {
+            if (metrics != null)
+                metrics.roundTrip("Connection.rollback", System.nanoTime() - start);
+        }
+    }
+
+    /* puts the connection back in autocommit mode at DEFAULT_ISOLATION; false if it
+       is no longer usable */
+    boolean reset() {
+        try {
+            if (connection.isClosed())
+                return false;
+            if (!connection.getAutoCommit()) {
+                rollback();
+                connection.setAutoCommit(true);
+            }
+            setIsolation(DEFAULT_ISOLATION);
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    void close() {
+        for (PreparedStatement ps : statements.values()) {
+            try {
+                ps.close();
+            } catch (SQLException e) {
+                // ignore, the connection is going away
+            }
+        }
+        statements.clear();
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            // ignore
+        }
+    }
+}
@@ -1,7 +1,17 @@
 import java.sql.*;
 import java.util.*;
 
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.management.ObjectName;
 
 /**
  * Runs queries against a back-end database
@@ -18,21 +28,179 @@ public class Query {
     private static final Integer RENTAL_STATUS_OPENED = 1;
     private static final Integer RENTAL_STATUS_CLOSED = 0;
 
-    // DB Connection
-    private Connection conn;
-    private Connection customerConn;
+    private static final String FAST_SEARCH_MODE_CLASSIC = "classic";
+    private static final String FAST_SEARCH_MODE_STREAM = "stream";
+    private static final String FAST_SEARCH_MODE_PARALLEL = "parallel";
+
+    // SQL Server accepts at most 2100 parameters per statement
+    private static final int MAX_SEARCH_BATCH_SIZE = 2000;
+
+    private static final int DEFAULT_CACHE_PROFILES = 10000;
+    private static final long DEFAULT_CACHE_PROFILE_TTL_MS = 60000;
+
+    // ids per round trip when fetching movies found by the title index
+    private static final int DEFAULT_TITLE_INDEX_BATCH_SIZE = 200;
+
+    private static final long DEFAULT_CATALOG_SNAPSHOT_CHECK_MS = 60000;
+
+    private static final long DEFAULT_CAST_CACHE_KB = 65536;
+
+    private static final int DEFAULT_SEARCH_CACHE_ROWS = 100000;
+    private static final int DEFAULT_SEARCH_CACHE_ENTRY_ROWS = 5000;
+    private static final long DEFAULT_SEARCH_CACHE_TTL_MS = 600000;
+
+    private static final int DEFAULT_LOGIN_CACHE_SIZE = 10000;
+    private static final long DEFAULT_LOGIN_CACHE_TTL_MS = 300000;
+    private static final long DEFAULT_LOGIN_NEGATIVE_TTL_MS = 10000;
+
+    // rental log events per transaction when copying them into RENTALS
+    private static final long DEFAULT_RENTAL_LOG_FLUSH_MS = 200;
+    private static final int RENTAL_LOG_BATCH_SIZE = 1000;
+
+    private static final String RENT_MODE_SERIALIZABLE = "serializable";
+    private static final String RENT_MODE_OPTIMISTIC = "optimistic";
+    private static final int DEFAULT_RENT_RETRIES = 3;
+
+    // movies per rentMany/returnMany cart; the IN lists of a cart always have this many markers
+    public static final int MAX_CART_SIZE = 32;
+
+    // SQL Server errors after which an optimistic rent is simply tried again
+    private static final int SQL_ERROR_DUPLICATE_KEY_ROW = 2601;
+    private static final int SQL_ERROR_DUPLICATE_KEY = 2627;
+
+    private static final int DEFAULT_TX_MAX_ATTEMPTS = 5;
+    private static final long DEFAULT_TX_BACKOFF_MS = 20;
+    private static final long DEFAULT_TX_BACKOFF_MAX_MS = 1000;
+
+    private static final int DEFAULT_POOL_SIZE = 8;
+    private static final long DEFAULT_POOL_TIMEOUT_MS = 30000;
+
+    // DB Connection pools. Every transaction_* call borrows what it needs and
+    // hands it back, so one Query can serve many customers concurrently.
+    // Always borrow from imdbPool before customerPool (never the other way
+    // around) so two threads can never wait on each other's connections.
+    private int poolSize = -1;
+    private long poolTimeout;
+    private ConnectionPool imdbPool;
+    private ConnectionPool customerPool;
+
+    private String fastSearchMode = null;
+
+    // runs the directors and actors queries of a parallel fastsearch; each task
+    // borrows (and returns) its own imdb connection
+    private ExecutorService searchExecutor;
+    private int searchBatchSize = -1;
+    private Boolean metricsEnabled = null;
+    private int pageSize = 0;
+    private String rentMode = null;
+    private int rentRetries = DEFAULT_RENT_RETRIES;
+
+    private TransactionExecutor transactionExecutor;
+
+    // the statements each pool's connections prepare on first use, and the hot
+    // set (videostore.warm_statements) they prepare as soon as they are opened
+    private final StatementRegistry imdbStatements = new StatementRegistry(Query.class,
+            "SEARCH_MOVIE_SQL", "SEARCH_DIRECTOR_SQL", "SEARCH_ACTOR_SQL", "SEARCH_MOVIE_PAGE_SQL", "SEARCH_MOVIE_TOP_SQL",
+            "FAST_SEARCH_SQL", "FAST_SEARCH_DIRECTORS_SQL", "FAST_SEARCH_ACTORS_SQL",
+            "FAST_SEARCH_STREAM_SQL", "FAST_SEARCH_STREAM_PAGE_SQL", "IS_VALID_MOVIE_ID_SQL");
+    private final StatementRegistry customerStatements = new StatementRegistry(Query.class,
+            "BEGIN_TRANSACTION_SQL", "COMMIT_SQL", "ROLLBACK_SQL", "CUSTOMER_LOGIN_SQL",
+            "REMAINING_RENTALS_SQL", "CUSTOMER_NAME_SQL", "CUSTOMER_PROFILE_SQL", "IS_VALID_PLAN_ID_SQL",
+            "CUSTOMER_ID_FROM_RENTAL_SQL", "SHOW_PLANS_SQL", "GET_PLAN_SQL", "GET_PLAN_INFO_FROM_CUSTOMERID_SQL",
+            "UPDATE_PLAN_SQL", "UPGRADE_PASSWORD_SQL", "PLAINTEXT_LOGIN_SQL", "UPDATE_RENTAL_SQL", "GET_RENTAL_STATUS_COUNT_SQL", "RETURN_RENTAL_SQL", "UPDATE_OPEN_RENTALS_SQL",
+            "RENT_IF_ALLOWED_SQL", "RETURN_IF_RENTED_SQL");
+    private static final String WARM_ALL_STATEMENTS = "all";
+    private String warmStatements = null;
+
+    // where the transactions print on each thread; System.out unless a
+    // VideoStoreServer worker has pointed it at a session
+    private static final ThreadLocal<PrintStream> output = new ThreadLocal<PrintStream>();
+
+    // where search and fastsearch results go on each thread, when it has chosen
+    // a sink itself; otherwise they are rendered as configured onto out()
+    private static final ThreadLocal<ResultSink> resultSink = new ThreadLocal<ResultSink>();
+
+    private static final String RESULT_FORMAT_TEXT = "text";
+    private static final String RESULT_FORMAT_JSON = "json";
+
+    private String resultFormat = RESULT_FORMAT_TEXT;
+    private int resultQueue = 0;
+
+    /* the sink made for a thread's output stream, kept so its buffer is reused */
+    private static class DefaultSink {
+        PrintStream out;
+        ResultSink sink;
+    }
+    private final ThreadLocal<DefaultSink> defaultSink = new ThreadLocal<DefaultSink>() {
+        protected DefaultSink initialValue() {
+            return new DefaultSink();
+        }
+    };
+
+    // per-statement and per-transaction latency; statements are only measured
+    // when videostore.metrics is on, the transaction timings always are
+    private final Metrics metrics = new Metrics();
+    private ObjectName metricsName;
+    private static final AtomicInteger metricsInstances = new AtomicInteger();
+
+    // open rentals held in memory; null when videostore.availability_index is off
+    private AvailabilityIndex availabilityIndex;
+
+    // plans and customer profiles for the helpers outside transactions; null when videostore.cache is off
+    private StoreCache storeCache;
+
+    // customer ids and password hashes by login; null when videostore.login_cache_size is 0
+    private CredentialCache credentialCache;
+    private int passwordIterations = PasswordHash.DEFAULT_ITERATIONS;
+
+    // write-behind log of rentals and returns; null when videostore.rental_log is off.
+    // While it is on, it decides rent and return and applyRentalLog() copies
+    // its events into RENTALS in the background
+    private RentalLog rentalLog;
+    // with the rental log on, a customer's rents and plan changes take the same one
+    // of these, so a rent never checks its limit while the plan is being changed
+    private final Object[] planLocks = newLocks(64);
+    private ScheduledExecutorService rentalLogFlusher;
+
+    // trigram index over MOVIE.name; null when videostore.title_index is off
+    private TitleIndex titleIndex;
+    private boolean useTitleIndex = true;
+
+    // MOVIE titles on the heap, scanned on every core; null when videostore.title_scan is off
+    private TitleScan titleScan;
+
+    // directors and actors of recently searched movies; null when videostore.cast_cache is off
+    private CastCache castCache;
+
+    // the movies matching recent search terms; null when videostore.search_cache is off
+    private SearchCache searchCache;
+
+    // mapped copy of the catalog; search and fastsearch use whichever snapshot
+    // is current when they start, and a newer file on disk replaces it
+    private File catalogSnapshotFile;
+    private final AtomicReference<CatalogSnapshot> catalogSnapshot = new AtomicReference<CatalogSnapshot>();
+    private long catalogSnapshotCheckMillis = DEFAULT_CATALOG_SNAPSHOT_CHECK_MS;
+    private volatile long catalogSnapshotCheckedAt = 0;
 
     // Canned queries
 
     private static final String SEARCH_MOVIE_SQL =
             "SELECT * FROM movie WHERE name LIKE ? ORDER BY id";
-    private PreparedStatement searchStatement;
+
+    private static final String ALL_TITLES_SQL =
+            "SELECT M.id, M.name FROM MOVIE AS M ORDER BY M.id";
+
+    // what the search cache loads: all the matches, unless there are more than it keeps
+    private static final String SEARCH_MOVIE_TOP_SQL =
+            "SELECT TOP (?) * FROM movie WHERE name LIKE ? ORDER BY id";
+
+    private static final String SEARCH_MOVIE_IN_SQL =
+            "SELECT * FROM movie WHERE id IN (%s) ORDER BY id";
 
     private static final String SEARCH_DIRECTOR_SQL =
             "SELECT y.* " +
             "FROM movie_directors x, directors y " +
             "WHERE x.mid = ? and x.did = y.id";
-    private PreparedStatement directorMidStatement;
 
     private static final String SEARCH_ACTOR_SQL =
             "SELECT A.fname, A.lname " +
@@ -41,38 +209,91 @@ public class Query {
             "INNER JOIN ACTOR A ON A.id = C.pid " +
             "WHERE M.id = ? " +
             "GROUP BY A.id, A.fname, A.lname";
-    private PreparedStatement actorMidStatement;
 
+    // Batched search: the dependent joins are run once per chunk of movie ids
+    // instead of once per movie. The IN lists are filled in by inList(), always
+    // with search_batch_size markers, so each database sees a single statement shape.
+    private static final String SEARCH_DIRECTORS_IN_SQL =
+            "SELECT x.mid, y.fname, y.lname " +
+            "FROM movie_directors x, directors y " +
+            "WHERE x.did = y.id and x.mid IN (%s) " +
+            "ORDER BY x.mid";
+
+    private static final String SEARCH_ACTORS_IN_SQL =
+            "SELECT C.mid, A.fname, A.lname " +
+            "FROM CASTS AS C " +
+            "INNER JOIN ACTOR A ON A.id = C.pid " +
+            "WHERE C.mid IN (%s) " +
+            "GROUP BY C.mid, A.id, A.fname, A.lname " +
+            "ORDER BY C.mid";
+
+    // full dump of the catalog for CatalogSnapshot
+    private static final String SNAPSHOT_MOVIES_SQL =
+            "SELECT M.id, M.name, M.year FROM MOVIE AS M ORDER BY M.id";
+
+    private static final String SNAPSHOT_DIRECTORS_SQL =
+            "SELECT D.id, D.fname, D.lname FROM DIRECTORS AS D";
+
+    private static final String SNAPSHOT_MOVIE_DIRECTORS_SQL =
+            "SELECT MD.mid, MD.did FROM MOVIE_DIRECTORS AS MD";
+
+    private static final String SNAPSHOT_ACTORS_SQL =
+            "SELECT A.id, A.fname, A.lname FROM ACTOR AS A";
+
+    private static final String SNAPSHOT_CASTS_SQL =
+            "SELECT C.mid, C.pid FROM CASTS AS C GROUP BY C.mid, C.pid";
+
+    // served by the CUSTOMERS_Login index; customers whose password_hash has not
+    // been written yet are checked against their plaintext password (see PasswordHash)
     private static final String CUSTOMER_LOGIN_SQL =
-            "SELECT * FROM CUSTOMERS WHERE login = ? and password = ?";
-    private PreparedStatement customerLoginStatement;
+            "SELECT id, password_hash FROM CUSTOMERS WHERE login = ?";
+
+    private static final String PLAINTEXT_LOGIN_SQL = PasswordHash.PLAINTEXT_LOGIN_SQL;
 
+    private static final String UPGRADE_PASSWORD_SQL = PasswordHash.UPGRADE_PASSWORD_SQL;
+
+    // CUSTOMERS.open_rentals counts the customer's open RENTALS rows; every
+    // transaction that opens or closes a rental adjusts it before committing
+    // (ConsistencyChecker audits it against RENTALS)
     private static final String REMAINING_RENTALS_SQL =
-            "SELECT " +
-            "(SELECT P.maxrentals FROM CUSTOMERS AS C INNER JOIN PLANS AS P ON P.id=C.plan_id WHERE C.id=? GROUP BY P.maxrentals) " +
-            "- " +
-            "(SELECT COUNT(*) FROM CUSTOMERS AS C INNER JOIN PLANS AS P ON P.id=C.plan_id INNER JOIN RENTALS AS R ON R.customerid=C.id WHERE C.id=? AND R.status=" + RENTAL_STATUS_OPENED + ")";
-    private PreparedStatement remainingRentalsStatement;
+            "SELECT P.maxrentals - C.open_rentals " +
+            "FROM CUSTOMERS AS C INNER JOIN PLANS AS P ON P.id=C.plan_id " +
+            "WHERE C.id=?";
+
+    private static final String UPDATE_OPEN_RENTALS_SQL =
+            "UPDATE CUSTOMERS SET open_rentals = open_rentals + ? WHERE id = ?";
 
     private static final String CUSTOMER_NAME_SQL =
             "SELECT C.fname, C.lname FROM CUSTOMERS AS C WHERE C.id=?";
-    private PreparedStatement customerNameStatement;
+
+    private static final String CUSTOMER_PROFILE_SQL =
+            "SELECT C.fname, C.lname, C.plan_id, C.open_rentals " +
+            "FROM CUSTOMERS AS C WHERE C.id=?";
 
     private static final String IS_VALID_MOVIE_ID_SQL =
             "SELECT COUNT(*) FROM MOVIE AS M WHERE M.id=?";
-    private PreparedStatement isValidMovieIdStatement;
 
     private static final String IS_VALID_PLAN_ID_SQL =
             "SELECT COUNT(*) FROM PLANS AS P WHERE P.id=?";
-    private PreparedStatement isValidPlanIdStatement;
 
     private static final String CUSTOMER_ID_FROM_RENTAL_SQL =
             "SELECT R.customerid FROM RENTALS AS R WHERE R.movieid=? AND R.status = " + RENTAL_STATUS_OPENED;
-    private PreparedStatement customerIdFromRentalStatement;
+
+    private static final String VALID_MOVIE_IDS_IN_SQL =
+            "SELECT M.id FROM MOVIE AS M WHERE M.id IN (%s)";
+
+    private static final String CUSTOMER_ID_FROM_RENTALS_IN_SQL =
+            "SELECT R.movieid, R.customerid FROM RENTALS AS R WHERE R.movieid IN (%s) AND R.status = " + RENTAL_STATUS_OPENED;
+
+    // the movies videostore.cast_cache_preload loads into the cast cache at startup
+    private static final String MOST_RENTED_MOVIES_SQL =
+            "SELECT TOP (?) R.movieid FROM RENTALS AS R GROUP BY R.movieid ORDER BY COUNT(*) DESC";
+
+    private static final String OPEN_RENTALS_SQL =
+            "SELECT R.movieid, R.customerid FROM RENTALS AS R WHERE R.status = " + RENTAL_STATUS_OPENED;
 
     private static final String FAST_SEARCH_SQL =
             "SELECT * FROM MOVIE AS M WHERE LOWER(M.name) LIKE ? ORDER BY M.id";
-    private PreparedStatement fastSearchStatement;
 
     private static final String FAST_SEARCH_DIRECTORS_SQL =
             "SELECT X.id AS mid, D.fname, D.lname " +
@@ -84,7 +305,6 @@ public class Query {
                     "WHERE LOWER(M.name) LIKE ?) AS X " +
                     "ON X.id = MD.mid " +
                     "ORDER BY X.id";
-    private PreparedStatement fastSearchDirectorsStatement;
 
     private static final String FAST_SEARCH_ACTORS_SQL =
             "SELECT X.id AS mid, A.id, A.fname, A.lname " +
@@ -97,67 +317,205 @@ public class Query {
             "ON X.id = C.mid " +
             "GROUP BY X.id, A.id, A.fname, A.lname " +
             "ORDER BY X.id";
-    private PreparedStatement fastSearchActorsStatement;
 
+    // One round trip for fastsearch: the matching movies are computed once (X)
+    // and the movie, director and actor rows come back as a single cursor tagged
+    // with a row kind and ordered by (mid, kind), so each movie's rows arrive
+    // together, header first, and can be printed as they are read.
+    private static final int FAST_SEARCH_ROW_MOVIE = 0;
+    private static final int FAST_SEARCH_ROW_DIRECTOR = 1;
+    private static final int FAST_SEARCH_ROW_ACTOR = 2;
+
+    private static final String FAST_SEARCH_STREAM_SQL =
+            fastSearchStreamSql("SELECT M.id, M.name, M.year FROM MOVIE AS M WHERE LOWER(M.name) LIKE ?");
+
+    // the same, for movie ids already resolved by the title index
+    private static final String FAST_SEARCH_STREAM_IN_SQL =
+            fastSearchStreamSql("SELECT M.id, M.name, M.year FROM MOVIE AS M WHERE M.id IN (%s)");
+
+    // the same, for one page: the first TOP (?) matches after id ?. The directors
+    // and actors branches join only the movies of that page.
+    private static final String FAST_SEARCH_STREAM_PAGE_SQL =
+            fastSearchStreamSql("SELECT TOP (?) M.id, M.name, M.year FROM MOVIE AS M " +
+                                "WHERE LOWER(M.name) LIKE ? AND M.id > ? ORDER BY M.id");
+
+    // one page of search: keyset paging on the clustered id, so a page reads
+    // about as many rows as it shows, wherever it starts
+    private static final String SEARCH_MOVIE_PAGE_SQL =
+            "SELECT TOP (?) * FROM movie WHERE name LIKE ? AND id > ? ORDER BY id";
+
+    private static String fastSearchStreamSql(String movie_select) {
+        return
+            "WITH X AS (" + movie_select + ") " +
+            "SELECT X.id AS mid, " + FAST_SEARCH_ROW_MOVIE + " AS kind, X.name AS a, CAST(X.year AS varchar(10)) AS b " +
+            "FROM X " +
+            "UNION ALL " +
+            "SELECT MD.mid, " + FAST_SEARCH_ROW_DIRECTOR + ", D.lname, D.fname " +
+            "FROM X " +
+            "INNER JOIN MOVIE_DIRECTORS AS MD ON MD.mid = X.id " +
+            "INNER JOIN DIRECTORS AS D ON MD.did = D.id " +
+            "UNION ALL " +
+            "SELECT C.mid, " + FAST_SEARCH_ROW_ACTOR + ", A.lname, A.fname " +
+            "FROM X " +
+            "INNER JOIN CASTS AS C ON C.mid = X.id " +
+            "INNER JOIN ACTOR AS A ON A.id = C.pid " +
+            "GROUP BY C.mid, A.id, A.fname, A.lname " +
+            "ORDER BY mid, kind";
+    }
+
+	// runs at SERIALIZABLE, set on the connection by beginTransaction()
 	private static final String BEGIN_TRANSACTION_SQL =
-		    "SET TRANSACTION ISOLATION LEVEL SERIALIZABLE; BEGIN TRANSACTION;";
-	private PreparedStatement beginTransactionStatement;
+		    "BEGIN TRANSACTION;";
 
 	private static final String COMMIT_SQL =
             "COMMIT TRANSACTION";
-	private PreparedStatement commitTransactionStatement;
 
 	private static final String ROLLBACK_SQL =
             "ROLLBACK TRANSACTION";
-	private PreparedStatement rollbackTransactionStatement;
 
     private static final String SHOW_PLANS_SQL =
             "SELECT * FROM PLANS";
-    private PreparedStatement plansStatement;
 
     private static final String GET_PLAN_SQL =
             "SELECT * FROM PLANS WHERE id = ?";
-    private PreparedStatement getPlansStatement;
 
     private static final String GET_PLAN_INFO_FROM_CUSTOMERID_SQL =
             "SELECT C.plan_id, P.maxrentals " +
             "FROM PLANS AS P " +
             "INNER JOIN CUSTOMERS AS C ON C.plan_id=P.id " +
             "WHERE C.id=?";
-    private PreparedStatement getPlansInfoForCustomerStatement;
 
     private static final String UPDATE_PLAN_SQL =
             "UPDATE CUSTOMERS SET plan_id=? WHERE id=?";
-    private PreparedStatement updatePlanStatement;
 
     private static final String UPDATE_RENTAL_SQL =
             "INSERT INTO RENTALS VALUES (?, ?, " + RENTAL_STATUS_OPENED + ", SYSDATETIME())";
-    private PreparedStatement updateRentalStatement;
 
     private static final String GET_RENTAL_STATUS_COUNT_SQL =
-            "SELECT SUM(R.status) " +
+            "SELECT COUNT(*) " +
             "FROM RENTALS AS R " +
-            "WHERE R.movieid = ?";
-    private PreparedStatement getRentalStatusCountStatement;
+            "WHERE R.movieid = ? AND R.status = " + RENTAL_STATUS_OPENED;
 
     private static final String RETURN_RENTAL_SQL =
             "UPDATE RENTALS " +
             "SET status=" + RENTAL_STATUS_CLOSED + " " +
-            "WHERE customerid=? AND movieid=?";
-    private PreparedStatement returnRentalStatement;
+            "WHERE customerid=? AND movieid=? AND status=" + RENTAL_STATUS_OPENED;
+
+    // Optimistic rent and return: each is one statement that only writes when
+    // the rental is allowed, followed by the open_rentals update, instead of a
+    // SERIALIZABLE insert-check-rollback. The customer row is locked so one
+    // customer's concurrent rents cannot both pass the plan limit, and the filtered unique
+    // index RENTALS_Open_Movie (setup.sql) rejects a second open rental of the
+    // same movie that slips past the NOT EXISTS check.
+    private static final String RENT_IF_ALLOWED_SQL =
+            "INSERT INTO RENTALS (customerid, movieid, status, date) " +
+            "SELECT C.id, ?, " + RENTAL_STATUS_OPENED + ", SYSDATETIME() " +
+            "FROM CUSTOMERS AS C WITH (UPDLOCK, ROWLOCK) " +
+            "INNER JOIN PLANS AS P ON P.id = C.plan_id " +
+            "WHERE C.id = ? " +
+            "AND NOT EXISTS (SELECT * FROM RENTALS AS R WHERE R.movieid = ? AND R.status = " + RENTAL_STATUS_OPENED + ") " +
+            "AND P.maxrentals > C.open_rentals";
+
+    private static final String RETURN_IF_RENTED_SQL =
+            "UPDATE RENTALS " +
+            "SET status=" + RENTAL_STATUS_CLOSED + " " +
+            "WHERE customerid=? AND movieid=? AND status=" + RENTAL_STATUS_OPENED;
 
 
     public Query(String configFilename) {
         this.configFilename = configFilename;
     }
 
+    /* overrides videostore.pool_size; must be called before openConnection() */
+    public void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    /* lets a benchmark compare searches with and without the title index and title scan */
+    public void setUseTitleIndex(boolean useTitleIndex) {
+        this.useTitleIndex = useTitleIndex;
+    }
+
+    public TitleIndex getTitleIndex() {
+        return titleIndex;
+    }
+
+    /* the retry and abort counters of rent, return and the others */
+    public TransactionExecutor getTransactionExecutor() {
+        return transactionExecutor;
+    }
+
+    public TitleScan getTitleScan() {
+        return titleScan;
+    }
+
+    /* overrides videostore.rent_mode: "serializable" or "optimistic" */
+    public void setRentMode(String rentMode) {
+        if (!rentMode.equals(RENT_MODE_SERIALIZABLE) && !rentMode.equals(RENT_MODE_OPTIMISTIC))
+            throw new IllegalArgumentException("unknown rent mode " + rentMode);
+        this.rentMode = rentMode;
+    }
+
+    /* overrides videostore.fastsearch_mode: "classic", "stream" or "parallel" */
+    public void setFastSearchMode(String fastSearchMode) {
+        if (!fastSearchMode.equals(FAST_SEARCH_MODE_CLASSIC) && !fastSearchMode.equals(FAST_SEARCH_MODE_STREAM)
+                && !fastSearchMode.equals(FAST_SEARCH_MODE_PARALLEL))
+            throw new IllegalArgumentException("unknown fastsearch mode " + fastSearchMode);
+        this.fastSearchMode = fastSearchMode;
+    }
+
+    /* movies per page for the menu's search and fastsearch (videostore.page_size); 0 shows all of them */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /* overrides videostore.warm_statements: a comma-separated list of statement
+       names (e.g. "CUSTOMER_LOGIN_SQL, FAST_SEARCH_SQL"), "all", or "" for none;
+       must be called before openConnection() */
+    public void setWarmStatements(String names) {
+        List<String> hot = new ArrayList<String>();
+        if (names.equals(WARM_ALL_STATEMENTS)) {
+            hot.addAll(imdbStatements.getNames());
+            hot.addAll(customerStatements.getNames());
+        } else {
+            for (String name : names.split(",")) {
+                name = name.trim();
+                if (name.length() == 0)
+                    continue;
+                if (!imdbStatements.contains(name) && !customerStatements.contains(name))
+                    throw new IllegalArgumentException("unknown statement " + name + " in videostore.warm_statements");
+                hot.add(name);
+            }
+        }
+        imdbStatements.setHot(hot);
+        customerStatements.setHot(hot);
+        warmStatements = names;
+    }
+
+    /* overrides videostore.metrics; must be called before openConnection() */
+    public void setMetricsEnabled(boolean metricsEnabled) {
+        this.metricsEnabled = metricsEnabled;
+    }
+
+    /* overrides videostore.search_batch_size; 0 runs the per-movie dependent joins */
+    public void setSearchBatchSize(int searchBatchSize) {
+        if (searchBatchSize > MAX_SEARCH_BATCH_SIZE)
+            throw new IllegalArgumentException("search batch size must be at most " + MAX_SEARCH_BATCH_SIZE + ": " + searchBatchSize);
+        this.searchBatchSize = searchBatchSize;
+    }
+
     /**********************************************************/
     /* Connection code to SQL Azure. Example code below will connect to the imdb database on Azure
-       IMPORTANT NOTE:  You will need to create (and connect to) your new customer database before 
+       IMPORTANT NOTE:  You will need to create (and connect to) your new customer database before
        uncommenting and running the query statements in this file .
      */
 
-    public void openConnection() throws Exception {
+    /* opens the customer database only, which is all transaction_login needs, so
+       a client can authenticate before it pays for the IMDB connection and the
+       rest of openConnection(), which it calls once the login has succeeded */
+    public void openCustomerConnection() throws Exception {
+        if (customerPool != null)
+            return;
         configProps.load(new FileInputStream(configFilename));
 
         jSQLDriver   = configProps.getProperty("videostore.jdbc_driver");
@@ -165,76 +523,504 @@ public class Query {
         jSQLUser	   = configProps.getProperty("videostore.sqlazure_username");
         jSQLPassword = configProps.getProperty("videostore.sqlazure_password");
 
+        if (poolSize < 1)
+            poolSize = Integer.parseInt(configProps.getProperty("videostore.pool_size", "" + DEFAULT_POOL_SIZE).trim());
+        poolTimeout = Long.parseLong(configProps.getProperty("videostore.pool_timeout_ms", "" + DEFAULT_POOL_TIMEOUT_MS).trim());
+        if (fastSearchMode == null)
+            setFastSearchMode(configProps.getProperty("videostore.fastsearch_mode", FAST_SEARCH_MODE_CLASSIC).trim());
+        resultFormat = configProps.getProperty("videostore.result_format", RESULT_FORMAT_TEXT).trim();
+        resultQueue = Integer.parseInt(configProps.getProperty("videostore.result_queue", "0").trim());
+        pageSize = Integer.parseInt(configProps.getProperty("videostore.page_size", "0").trim());
+        if (pageSize != 0)
+            checkPageLimit(pageSize);
+        if (searchBatchSize < 0)
+            setSearchBatchSize(Integer.parseInt(configProps.getProperty("videostore.search_batch_size", "0").trim()));
+        if (rentMode == null)
+            setRentMode(configProps.getProperty("videostore.rent_mode", RENT_MODE_SERIALIZABLE).trim());
+        rentRetries = Integer.parseInt(configProps.getProperty("videostore.rent_retries", "" + DEFAULT_RENT_RETRIES).trim());
+        transactionExecutor = new TransactionExecutor(
+                Integer.parseInt(configProps.getProperty("videostore.tx_max_attempts", "" + DEFAULT_TX_MAX_ATTEMPTS).trim()),
+                Long.parseLong(configProps.getProperty("videostore.tx_backoff_ms", "" + DEFAULT_TX_BACKOFF_MS).trim()),
+                Long.parseLong(configProps.getProperty("videostore.tx_backoff_max_ms", "" + DEFAULT_TX_BACKOFF_MAX_MS).trim()));
+
+        passwordIterations = Integer.parseInt(configProps.getProperty(
+                "videostore.password_iterations", "" + PasswordHash.DEFAULT_ITERATIONS).trim());
+        int login_cache_size = Integer.parseInt(configProps.getProperty(
+                "videostore.login_cache_size", "" + DEFAULT_LOGIN_CACHE_SIZE).trim());
+        if (login_cache_size > 0)
+            credentialCache = new CredentialCache(login_cache_size,
+                    Long.parseLong(configProps.getProperty("videostore.login_cache_ttl_ms", "" + DEFAULT_LOGIN_CACHE_TTL_MS).trim()),
+                    Long.parseLong(configProps.getProperty("videostore.login_negative_ttl_ms", "" + DEFAULT_LOGIN_NEGATIVE_TTL_MS).trim()));
+
 		/* load jdbc drivers */
-        Class.forName(jSQLDriver).newInstance();
+        Class.forName(jSQLDriver);
+
+		/* pool of connections to the customer DB database */
+        customerPool = new ConnectionPool(configProps.getProperty("videostore.customer_url"),
+                jSQLUser, jSQLPassword, poolSize, poolTimeout);
+
+        if (warmStatements == null)
+            setWarmStatements(configProps.getProperty("videostore.warm_statements", "").trim());
+        customerPool.setStatements(customerStatements);
+
+        if (metricsEnabled == null)
+            metricsEnabled = Boolean.parseBoolean(configProps.getProperty("videostore.metrics", "false").trim());
+        if (metricsEnabled) {
+            metrics.nameStatements(Query.class);
+            metrics.measureStatements();
+            customerPool.setMetrics(metrics);
+            metricsName = new ObjectName("videostore:type=Metrics,name=query" + metricsInstances.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metricsName);
+        }
+
+        /* open one connection right away so bad settings fail at startup */
+        customerPool.release(customerPool.borrow());
+    }
+
+    public void openConnection() throws Exception {
+        openCustomerConnection();
+
+		/* pool of connections to the imdb database */
+        imdbPool = new ConnectionPool(jSQLUrl, jSQLUser, jSQLPassword, poolSize, poolTimeout);
+        imdbPool.setStatements(imdbStatements);
+        if (metricsName != null)
+            imdbPool.setMetrics(metrics);
+
+        /* two helper tasks per parallel fastsearch; threads are only started when used */
+        searchExecutor = Executors.newFixedThreadPool(2 * poolSize, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "fastsearch");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        /* open one connection right away so bad settings fail at startup */
+        imdbPool.release(imdbPool.borrow());
+
+        if (Boolean.parseBoolean(configProps.getProperty("videostore.availability_index", "false").trim()))
+            loadAvailabilityIndex();
+
+        String rental_log_filename = configProps.getProperty("videostore.rental_log", "").trim();
+        if (rental_log_filename.length() > 0)
+            openRentalLog(new File(rental_log_filename), Long.parseLong(configProps.getProperty(
+                    "videostore.rental_log_flush_ms", "" + DEFAULT_RENTAL_LOG_FLUSH_MS).trim()));
+
+        if (Boolean.parseBoolean(configProps.getProperty("videostore.cache", "false").trim())) {
+            int max_profiles = Integer.parseInt(configProps.getProperty("videostore.cache_profiles", "" + DEFAULT_CACHE_PROFILES).trim());
+            long ttl = Long.parseLong(configProps.getProperty("videostore.cache_profile_ttl_ms", "" + DEFAULT_CACHE_PROFILE_TTL_MS).trim());
+            loadStoreCache(max_profiles, ttl);
+        }
+
+        if (Boolean.parseBoolean(configProps.getProperty("videostore.cast_cache", "false").trim())) {
+            long kb = Long.parseLong(configProps.getProperty("videostore.cast_cache_kb", "" + DEFAULT_CAST_CACHE_KB).trim());
+            loadCastCache(1024 * kb, Integer.parseInt(configProps.getProperty("videostore.cast_cache_preload", "0").trim()));
+        }
+
+        if (Boolean.parseBoolean(configProps.getProperty("videostore.search_cache", "false").trim()))
+            searchCache = new SearchCache(
+                    Integer.parseInt(configProps.getProperty("videostore.search_cache_rows", "" + DEFAULT_SEARCH_CACHE_ROWS).trim()),
+                    Integer.parseInt(configProps.getProperty("videostore.search_cache_entry_rows", "" + DEFAULT_SEARCH_CACHE_ENTRY_ROWS).trim()),
+                    Long.parseLong(configProps.getProperty("videostore.search_cache_ttl_ms", "" + DEFAULT_SEARCH_CACHE_TTL_MS).trim()));
+
+        if (Boolean.parseBoolean(configProps.getProperty("videostore.title_index", "false").trim()))
+            loadTitleIndex(configProps.getProperty("videostore.title_index_file", "").trim());
+
+        if (Boolean.parseBoolean(configProps.getProperty("videostore.title_scan", "false").trim()))
+            loadTitleScan(Integer.parseInt(configProps.getProperty("videostore.title_scan_threads", "0").trim()));
+
+        String snapshot_filename = configProps.getProperty("videostore.catalog_snapshot", "").trim();
+        if (snapshot_filename.length() > 0) {
+            catalogSnapshotFile = new File(snapshot_filename);
+            catalogSnapshotCheckMillis = Long.parseLong(configProps.getProperty(
+                    "videostore.catalog_snapshot_check_ms", "" + DEFAULT_CATALOG_SNAPSHOT_CHECK_MS).trim());
+            if (catalogSnapshotFile.exists())
+                reloadCatalogSnapshot();
+            else
+                refreshCatalogSnapshot();
+        }
+    }
+
+    /**********************************************************/
+    /* catalog snapshot */
+
+    /* dumps the IMDB tables into a new snapshot file and switches to it */
+    public void refreshCatalogSnapshot() throws Exception {
+        if (catalogSnapshotFile == null)
+            throw new IllegalStateException("videostore.catalog_snapshot is not set");
+
+        CatalogSnapshot.Builder builder = new CatalogSnapshot.Builder();
+        PooledConnection imdb = imdbPool.borrow();
+        try {
+            ResultSet rs = imdb.prepare(SNAPSHOT_MOVIES_SQL).executeQuery();
+            builder.addMovies(rs);
+            rs.close();
+            rs = imdb.prepare(SNAPSHOT_DIRECTORS_SQL).executeQuery();
+            builder.addDirectors(rs);
+            rs.close();
+            rs = imdb.prepare(SNAPSHOT_MOVIE_DIRECTORS_SQL).executeQuery();
+            builder.addMovieDirectors(rs);
+            rs.close();
+            rs = imdb.prepare(SNAPSHOT_ACTORS_SQL).executeQuery();
+            builder.addActors(rs);
+            rs.close();
+            rs = imdb.prepare(SNAPSHOT_CASTS_SQL).executeQuery();
+            builder.addCasts(rs);
+            rs.close();
+        } finally {
+            imdbPool.release(imdb);
+        }
+
+        CatalogSnapshot current = catalogSnapshot.get();
+        long version = System.currentTimeMillis();
+        if (current != null && version <= current.getVersion())
+            version = current.getVersion() + 1;
+        builder.write(catalogSnapshotFile, version);
+        reloadCatalogSnapshot();
+    }
+
+    /* maps the snapshot file if it is newer than the one in use; true if it switched */
+    public synchronized boolean reloadCatalogSnapshot() throws Exception {
+        catalogSnapshotCheckedAt = System.currentTimeMillis();
+        CatalogSnapshot current = catalogSnapshot.get();
+        if (current != null && CatalogSnapshot.readVersion(catalogSnapshotFile) <= current.getVersion())
+            return false;
+        catalogSnapshot.set(CatalogSnapshot.open(catalogSnapshotFile));
+        return true;
+    }
+
+    /* the snapshot to search, after checking the file for a newer one every so often */
+    private CatalogSnapshot currentCatalogSnapshot() throws Exception {
+        if (catalogSnapshotFile != null
+                && System.currentTimeMillis() - catalogSnapshotCheckedAt > catalogSnapshotCheckMillis) {
+            try {
+                reloadCatalogSnapshot();
+            } catch (IOException e) {
+                /* a broken file on disk must not take searches down; keep the mapped one */
+                catalogSnapshotCheckedAt = System.currentTimeMillis();
+            }
+        }
+        return catalogSnapshot.get();
+    }
+
+    /* ids of the movies matching movie_title from the title index or title scan, ascending;
+       null if neither is loaded (or in use) or the term needs the database */
+    private int[] findTitleIds(String movie_title) {
+        if (!useTitleIndex || !TitleIndex.canAnswer(movie_title))
+            return null;
+        if (titleIndex != null)
+            return titleIndex.find(movie_title);
+        if (titleScan != null)
+            return titleScan.find(movie_title);
+        return null;
+    }
+
+    /* the cast cache, with the directors and actors of the preload most rented movies */
+    private void loadCastCache(long max_bytes, int preload) throws Exception {
+        castCache = new CastCache(max_bytes);
+        if (preload <= 0)
+            return;
+
+        ArrayList<Integer> popular = new ArrayList<Integer>();
+        PooledConnection customer = customerPool.borrow();
+        try {
+            PreparedStatement mostRentedStatement = customer.prepare(MOST_RENTED_MOVIES_SQL);
+            mostRentedStatement.setInt(1, preload);
+            ResultSet movie_set = mostRentedStatement.executeQuery();
+            while (movie_set.next())
+                popular.add(movie_set.getInt(1));
+            movie_set.close();
+        } finally {
+            customerPool.release(customer);
+        }
+
+        int[] mids = new int[DEFAULT_TITLE_INDEX_BATCH_SIZE];
+        PooledConnection imdb = imdbPool.borrow();
+        try {
+            for (int from = 0; from < popular.size(); from += mids.length) {
+                int count = Math.min(mids.length, popular.size() - from);
+                for (int i = 0; i < count; i++)
+                    mids[i] = popular.get(from + i);
+                getCredits(imdb, mids, count);
+            }
+        } finally {
+            imdbPool.release(imdb);
+        }
+    }
+
+    /* reads every title once into the heap */
+    private void loadTitleScan(int threads) throws Exception {
+        PooledConnection imdb = imdbPool.borrow();
+        try {
+            ResultSet title_set = imdb.prepare(ALL_TITLES_SQL).executeQuery();
+            titleScan = TitleScan.build(title_set, threads);
+            title_set.close();
+        } finally {
+            imdbPool.release(imdb);
+        }
+    }
+
+    /* reads every title once and writes the index to file (a temporary file if none is given) */
+    private void loadTitleIndex(String filename) throws Exception {
+        File file;
+        if (filename.length() == 0) {
+            file = File.createTempFile("videostore-titles", ".idx");
+            file.deleteOnExit();
+        } else {
+            file = new File(filename);
+        }
+
+        PooledConnection imdb = imdbPool.borrow();
+        try {
+            ResultSet title_set = imdb.prepare(ALL_TITLES_SQL).executeQuery();
+            titleIndex = TitleIndex.build(title_set, file);
+            title_set.close();
+        } finally {
+            imdbPool.release(imdb);
+        }
+    }
+
+    /* plans never change while the store is running, so they are read once */
+    private void loadStoreCache(int max_profiles, long ttl) throws Exception {
+        StoreCache cache = new StoreCache(max_profiles, ttl);
+        ArrayList<StoreCache.Plan> all_plans = new ArrayList<StoreCache.Plan>();
+        PooledConnection customer = customerPool.borrow();
+        try {
+            ResultSet plan_set = customer.prepare(SHOW_PLANS_SQL).executeQuery();
+            while (plan_set.next()) {
+                all_plans.add(new StoreCache.Plan(plan_set.getInt(1), plan_set.getString(2),
+                        plan_set.getInt(3), plan_set.getInt(4)));
+            }
+            plan_set.close();
+        } finally {
+            customerPool.release(customer);
+        }
+        cache.setPlans(all_plans);
+        storeCache = cache;
+    }
+
+    /* transaction retry counters, and hit and miss counters of the caches that are switched on */
+    public String getStatistics() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(transactionExecutor.statistics());
+        if (storeCache != null)
+            sb.append(storeCache.statistics()).append('\n');
+        if (credentialCache != null)
+            sb.append(credentialCache.statistics());
+        if (castCache != null)
+            sb.append(castCache.statistics());
+        if (searchCache != null)
+            sb.append(searchCache.statistics());
+        if (rentalLog != null)
+            sb.append(rentalLog.statistics());
+        if (availabilityIndex != null)
+            sb.append("availability index: ").append(availabilityIndex.size()).append(" open rentals\n");
+        CatalogSnapshot snapshot = catalogSnapshot.get();
+        if (snapshot != null)
+            sb.append("catalog snapshot: version ").append(snapshot.getVersion()).append(", ")
+                    .append(snapshot.size()).append(" movies, ")
+                    .append(snapshot.sizeInBytes() / 1024).append(" KB mapped\n");
+        if (titleIndex != null)
+            sb.append("title index: ").append(titleIndex.size()).append(" titles, ")
+                    .append(titleIndex.sizeInBytes() / 1024).append(" KB mapped\n");
+        if (titleScan != null)
+            sb.append("title scan: ").append(titleScan.size()).append(" titles, ")
+                    .append(titleScan.sizeInBytes() / 1024).append(" KB, ")
+                    .append(titleScan.getParallelism()).append(" threads\n");
+        return sb.toString();
+    }
+
+    /* reads every open rental once; afterwards rent and return keep the index current */
+    private void loadAvailabilityIndex() throws Exception {
+        AvailabilityIndex index = new AvailabilityIndex();
+        PooledConnection customer = customerPool.borrow();
+        try {
+            ResultSet open_rentals_set = customer.prepare(OPEN_RENTALS_SQL).executeQuery();
+            index.load(open_rentals_set);
+            open_rentals_set.close();
+        } finally {
+            customerPool.release(customer);
+        }
+        availabilityIndex = index;
+    }
 
-		/* open connections to the imdb database */
-        conn = DriverManager.getConnection(jSQLUrl, // database
-                jSQLUser, // user
-                jSQLPassword); // password
-        conn.setAutoCommit(true); //by default automatically commit after each statement
-		//conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE); // TODO: needed?
+    /* recovers the log and starts copying it into RENTALS every flush_millis */
+    private void openRentalLog(File file, long flush_millis) throws Exception {
+        PooledConnection customer = customerPool.borrow();
+        try {
+            rentalLog = RentalLog.open(file, customer.getConnection());
+        } finally {
+            customerPool.release(customer);
+        }
+
+        rentalLogFlusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "rental log flusher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        rentalLogFlusher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    applyRentalLog();
+                } catch (Exception e) {
+                    if (rentalLog.getFailure() != null) {
+                        /* RENTALS rejected the events: the log now refuses rents and returns,
+                           and flushing again would only fail the same way */
+                        System.err.println("rental log stopped, RENTALS rejected its events: " + e);
+                        rentalLogFlusher.shutdown();
+                        return;
+                    }
+                    /* the events stay in the log; the next run tries them again */
+                    System.err.println("rental log flush failed: " + e);
+                }
+            }
+        }, flush_millis, flush_millis, TimeUnit.MILLISECONDS);
+    }
 
-		/* open connections to the customer DB database */
-        jSQLUrl	   = configProps.getProperty("videostore.customer_url");
-        customerConn = DriverManager.getConnection(jSQLUrl, // database
-                        jSQLUser, // user
-                        jSQLPassword); // password
-        customerConn.setAutoCommit(true); //by default automatically commit after each statement
-        //customerConn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE); // TODO: needed?
+    /* copies every event of the rental log that is on disk into RENTALS */
+    public void applyRentalLog() throws Exception {
+        if (rentalLog == null)
+            return;
+        PooledConnection customer = customerPool.borrow();
+        try {
+            while (rentalLog.applyTo(customer.getConnection(), RENTAL_LOG_BATCH_SIZE) > 0)
+                ;
+        } finally {
+            customerPool.release(customer);
+        }
     }
 
+    /* also after openCustomerConnection() alone */
     public void closeConnection() throws Exception {
-        conn.close();
-        customerConn.close();
+        if (searchExecutor != null)
+            searchExecutor.shutdownNow();
+        if (rentalLog != null) {
+            rentalLogFlusher.shutdown();
+            rentalLogFlusher.awaitTermination(1, TimeUnit.MINUTES);
+            rentalLog.close();
+            /* what close() wrote last; anything left is applied when the log is next opened */
+            if (rentalLog.getFailure() == null)
+                applyRentalLog();
+        }
+        if (titleScan != null)
+            titleScan.close();
+        if (imdbPool != null)
+            imdbPool.close();
+        customerPool.close();
+        if (metricsName != null)
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+    }
+
+    /* sends what the transactions print on this thread to out (null: back to System.out) */
+    public static void setOutput(PrintStream out) {
+        if (out == null)
+            output.remove();
+        else
+            output.set(out);
+    }
+
+    private static PrintStream out() {
+        PrintStream out = output.get();
+        return out != null ? out : System.out;
+    }
+
+    /* sends this thread's search and fastsearch results to sink (null: the configured default) */
+    public static void setResultSink(ResultSink sink) {
+        if (sink == null)
+            resultSink.remove();
+        else
+            resultSink.set(sink);
+    }
+
+    private ResultSink sink() {
+        ResultSink sink = resultSink.get();
+        if (sink != null)
+            return sink;
+
+        DefaultSink d = defaultSink.get();
+        PrintStream out = out();
+        if (d.out != out) {
+            if (d.sink instanceof AsyncResultSink)
+                ((AsyncResultSink) d.sink).close();
+            Writer writer = new OutputStreamWriter(out);
+            d.sink = resultFormat.equals(RESULT_FORMAT_JSON) ? new JsonResultSink(writer) : new TextResultSink(writer);
+            if (resultQueue > 0)
+                d.sink = new AsyncResultSink(d.sink, resultQueue);
+            d.out = out;
+        }
+        return d.sink;
+    }
+
+    /* latency report; statements are included when videostore.metrics is on */
+    public Metrics getMetrics() {
+        return metrics;
     }
 
     /**********************************************************/
     /* prepare all the SQL statements in this method.
       "preparing" a statement is almost like compiling it.  Note
-       that the parameters (with ?) are still not filled in */
+       that the parameters (with ?) are still not filled in.
+       Statements are cached per pooled connection and prepared on first
+       use, apart from the hot set, which every connection prepares when it
+       is opened. This prepares every registered statement on one
+       connection of each pool, for runs that want none of them prepared
+       while they are measured. */
 
     public void prepareStatements() throws Exception {
+        PooledConnection imdb = imdbPool.borrow();
+        try {
+            imdbStatements.prepareAll(imdb);
+        } finally {
+            imdbPool.release(imdb);
+        }
 
-        searchStatement = conn.prepareStatement(SEARCH_MOVIE_SQL);
-        directorMidStatement = conn.prepareStatement(SEARCH_DIRECTOR_SQL);
-        actorMidStatement = conn.prepareStatement(SEARCH_ACTOR_SQL);
-        fastSearchStatement = conn.prepareStatement(FAST_SEARCH_SQL);
-        fastSearchDirectorsStatement = conn.prepareStatement(FAST_SEARCH_DIRECTORS_SQL);
-        fastSearchActorsStatement = conn.prepareStatement(FAST_SEARCH_ACTORS_SQL);
-        isValidMovieIdStatement = conn.prepareStatement(IS_VALID_MOVIE_ID_SQL);
-
-        beginTransactionStatement = customerConn.prepareStatement(BEGIN_TRANSACTION_SQL);
-        commitTransactionStatement = customerConn.prepareStatement(COMMIT_SQL);
-        rollbackTransactionStatement = customerConn.prepareStatement(ROLLBACK_SQL);
-        customerLoginStatement = customerConn.prepareStatement(CUSTOMER_LOGIN_SQL);
-        remainingRentalsStatement = customerConn.prepareStatement(REMAINING_RENTALS_SQL);
-        customerNameStatement = customerConn.prepareStatement(CUSTOMER_NAME_SQL);
-        isValidPlanIdStatement = customerConn.prepareStatement(IS_VALID_PLAN_ID_SQL);
-        customerIdFromRentalStatement = customerConn.prepareStatement(CUSTOMER_ID_FROM_RENTAL_SQL);
-        plansStatement = customerConn.prepareStatement(SHOW_PLANS_SQL);
-        getPlansStatement = customerConn.prepareStatement(GET_PLAN_SQL);
-        getPlansInfoForCustomerStatement = customerConn.prepareStatement(GET_PLAN_INFO_FROM_CUSTOMERID_SQL);
-        updatePlanStatement = customerConn.prepareStatement(UPDATE_PLAN_SQL);
-        updateRentalStatement = customerConn.prepareStatement(UPDATE_RENTAL_SQL);
-        getRentalStatusCountStatement = customerConn.prepareStatement(GET_RENTAL_STATUS_COUNT_SQL);
-        returnRentalStatement = customerConn.prepareStatement(RETURN_RENTAL_SQL);
+        PooledConnection customer = customerPool.borrow();
+        try {
+            customerStatements.prepareAll(customer);
+        } finally {
+            customerPool.release(customer);
+        }
     }
 
 
     /**********************************************************/
     /* Suggested helper functions; you can complete these, or write your own
-       (but remember to delete the ones you are not using!) */
+       (but remember to delete the ones you are not using!)
+       Each public helper borrows its own connection; the private overloads
+       run on a connection the caller already holds (e.g. inside a transaction). */
 
     public int getRemainingRentals(int cid) throws Exception {
+        if (storeCache != null) {
+            StoreCache.Profile profile = getProfile(cid);
+            if (profile == null)
+                return 0;
+            StoreCache.Plan plan = storeCache.getPlan(profile.getPlanId());
+            /* a profile read from RENTALS can be behind the rental log */
+            int open_rentals = rentalLog != null ? rentalLog.getOpenRentals(cid) : profile.getOpenRentals();
+            return (plan == null ? 0 : plan.maxRentals) - open_rentals;
+        }
+
+        PooledConnection customer = customerPool.borrow();
+        try {
+            return getRemainingRentals(customer, cid);
+        } finally {
+            customerPool.release(customer);
+        }
+    }
+
+    private int getRemainingRentals(PooledConnection customer, int cid) throws Exception {
 		/* How many movies can she/he still rent?
 		   You have to compute and return the difference between the customer's plan
 		   and the count of outstanding rentals */
+        if (rentalLog != null)
+            return getMaxRentals(customer, cid) - rentalLog.getOpenRentals(cid);
+
         int remaining_rentals = 0;
 
-        remainingRentalsStatement.clearParameters();
+        PreparedStatement remainingRentalsStatement = customer.prepare(REMAINING_RENTALS_SQL);
         remainingRentalsStatement.setInt(1, cid);
-        remainingRentalsStatement.setInt(2, cid);
         ResultSet remaining_rentals_set = remainingRentalsStatement.executeQuery();
         if (remaining_rentals_set.next())
             remaining_rentals = remaining_rentals_set.getInt(1);
@@ -243,11 +1029,64 @@ public class Query {
         return (remaining_rentals);
     }
 
+    private static Object[] newLocks(int n) {
+        Object[] locks = new Object[n];
+        for (int i = 0; i < n; i++)
+            locks[i] = new Object();
+        return locks;
+    }
+
+    private Object planLock(int cid) {
+        return planLocks[(cid & Integer.MAX_VALUE) % planLocks.length];
+    }
+
+    /* the number of movies the customer's plan allows, from the cache when it is on */
+    private int getMaxRentals(int cid) throws Exception {
+        StoreCache.Profile profile = storeCache != null ? getProfile(cid) : null;
+        StoreCache.Plan plan = profile != null ? storeCache.getPlan(profile.getPlanId()) : null;
+        if (plan != null)
+            return plan.maxRentals;
+
+        PooledConnection customer = customerPool.borrow();
+        try {
+            return getMaxRentals(customer, cid);
+        } finally {
+            customerPool.release(customer);
+        }
+    }
+
+    private int getMaxRentals(PooledConnection customer, int cid) throws Exception {
+        int max_rentals = 0;
+
+        PreparedStatement planInfoStatement = customer.prepare(GET_PLAN_INFO_FROM_CUSTOMERID_SQL);
+        planInfoStatement.setInt(1, cid);
+        ResultSet plan_info_set = planInfoStatement.executeQuery();
+        if (plan_info_set.next())
+            max_rentals = plan_info_set.getInt(2);
+        plan_info_set.close();
+
+        return max_rentals;
+    }
+
     public String getCustomerName(int cid) throws Exception {
+        if (storeCache != null) {
+            StoreCache.Profile profile = getProfile(cid);
+            return profile == null ? null : profile.name;
+        }
+
+        PooledConnection customer = customerPool.borrow();
+        try {
+            return getCustomerName(customer, cid);
+        } finally {
+            customerPool.release(customer);
+        }
+    }
+
+    private String getCustomerName(PooledConnection customer, int cid) throws Exception {
 		/* Find the first and last name of the current customer. */
         String customer_name = null;
 
-        customerNameStatement.clearParameters();
+        PreparedStatement customerNameStatement = customer.prepare(CUSTOMER_NAME_SQL);
         customerNameStatement.setInt(1, cid);
         ResultSet customer_name_set = customerNameStatement.executeQuery();
         if (customer_name_set.next())
@@ -257,16 +1096,49 @@ public class Query {
         return customer_name;
     }
 
+    /* read-through: the cached profile, or a fresh one from the database */
+    private StoreCache.Profile getProfile(int cid) throws Exception {
+        StoreCache.Profile profile = storeCache.getProfile(cid);
+        if (profile != null)
+            return profile;
+
+        long stamp = storeCache.loadStamp();
+        PooledConnection customer = customerPool.borrow();
+        try {
+            PreparedStatement customerProfileStatement = customer.prepare(CUSTOMER_PROFILE_SQL);
+            customerProfileStatement.setInt(1, cid);
+            ResultSet profile_set = customerProfileStatement.executeQuery();
+            if (profile_set.next())
+                profile = new StoreCache.Profile(cid, profile_set.getString(1) + " " + profile_set.getString(2),
+                        profile_set.getInt(3), profile_set.getInt(4));
+            profile_set.close();
+        } finally {
+            customerPool.release(customer);
+        }
+
+        if (profile != null)
+            storeCache.putProfile(profile, stamp);
+        return profile;
+    }
+
     public boolean isValidPlan(int planid) throws Exception {
 		/* Is planid a valid plan ID?  You have to figure it out */
+        if (storeCache != null)
+            return storeCache.getPlan(planid) != null;
+
         int plan_id_count = 0;
 
-        isValidPlanIdStatement.clearParameters();
-        isValidPlanIdStatement.setInt(1, planid);
-        ResultSet is_valid_plan_set = isValidPlanIdStatement.executeQuery();
-        if (is_valid_plan_set.next())
-            plan_id_count = is_valid_plan_set.getInt(1);
-        is_valid_plan_set.close();
+        PooledConnection customer = customerPool.borrow();
+        try {
+            PreparedStatement isValidPlanIdStatement = customer.prepare(IS_VALID_PLAN_ID_SQL);
+            isValidPlanIdStatement.setInt(1, planid);
+            ResultSet is_valid_plan_set = isValidPlanIdStatement.executeQuery();
+            if (is_valid_plan_set.next())
+                plan_id_count = is_valid_plan_set.getInt(1);
+            is_valid_plan_set.close();
+        } finally {
+            customerPool.release(customer);
+        }
 
         return (plan_id_count==1);
     }
@@ -275,58 +1147,164 @@ public class Query {
 		/* is mid a valid movie ID?  You have to figure it out */
         int movie_id_count = 0;
 
-        isValidMovieIdStatement.clearParameters();
-        isValidMovieIdStatement.setInt(1, mid);
-        ResultSet is_valid_movie_set = isValidMovieIdStatement.executeQuery();
-        if (is_valid_movie_set.next())
-            movie_id_count = is_valid_movie_set.getInt(1);
-        is_valid_movie_set.close();
+        PooledConnection imdb = imdbPool.borrow();
+        try {
+            PreparedStatement isValidMovieIdStatement = imdb.prepare(IS_VALID_MOVIE_ID_SQL);
+            isValidMovieIdStatement.setInt(1, mid);
+            ResultSet is_valid_movie_set = isValidMovieIdStatement.executeQuery();
+            if (is_valid_movie_set.next())
+                movie_id_count = is_valid_movie_set.getInt(1);
+            is_valid_movie_set.close();
+        } finally {
+            imdbPool.release(imdb);
+        }
 
         return (movie_id_count==1);
     }
 
     private int getRenterID(int mid) throws Exception {
 		/* Find the customer id (cid) of whoever currently rents the movie mid; return -1 if none */
-        int renter_id = -1;
+        if (rentalLog != null)
+            return rentalLog.getRenter(mid);
+
+        if (availabilityIndex != null) {
+            int renter_id = availabilityIndex.getRenter(mid);
+            if (renter_id != AvailabilityIndex.UNKNOWN)
+                return renter_id;
+        }
 
-        customerIdFromRentalStatement.clearParameters();
-        customerIdFromRentalStatement.setInt(1, mid);
-        ResultSet renter_id_set = customerIdFromRentalStatement.executeQuery();
-        if (renter_id_set.next())
-            renter_id = renter_id_set.getInt(1);
-        renter_id_set.close();
+        int renter_id = -1;
+        int stamp = availabilityIndex != null ? availabilityIndex.loadStamp(mid) : 0;
+
+        PooledConnection customer = customerPool.borrow();
+        try {
+            PreparedStatement customerIdFromRentalStatement = customer.prepare(CUSTOMER_ID_FROM_RENTAL_SQL);
+            customerIdFromRentalStatement.setInt(1, mid);
+            ResultSet renter_id_set = customerIdFromRentalStatement.executeQuery();
+            if (renter_id_set.next())
+                renter_id = renter_id_set.getInt(1);
+            renter_id_set.close();
+        } finally {
+            customerPool.release(customer);
+        }
 
+        if (availabilityIndex != null)
+            availabilityIndex.refreshed(mid, renter_id, stamp);
         return renter_id;
     }
 
     /**********************************************************/
     /* login transaction: invoked only once, when the app is started  */
     public int transaction_login(String name, String password) throws Exception {
+        metrics.beginTransaction("login");
+        try {
+            return login(name, password);
+        } finally {
+            metrics.endTransaction();
+        }
+    }
+
+    private int login(String name, String password) throws Exception {
 		/* authenticates the user, and returns the user id, or -1 if authentication fails */
-		int cid;
+        if (credentialCache != null) {
+            CredentialCache.Credential c = credentialCache.get(name);
+            if (c != null)
+                return c.exists() && credentialCache.check(c, password) ? c.cid : -1;
+        }
+
+        int cid;
+        String hash;
+        PooledConnection customer = customerPool.borrow();
+        try {
+            PreparedStatement customerLoginStatement = customer.prepare(CUSTOMER_LOGIN_SQL);
+            customerLoginStatement.setString(1,name);
+            ResultSet cid_set = customerLoginStatement.executeQuery();
+            if (cid_set.next()) {
+                cid = cid_set.getInt(1);
+                hash = cid_set.getString(2);
+            } else {
+                cid = -1;
+                hash = null;
+            }
+            cid_set.close();
+
+            if (cid < 0) {
+                if (credentialCache != null)
+                    credentialCache.putUnknown(name);
+                return -1;
+            }
 
-		customerLoginStatement.clearParameters();
-		customerLoginStatement.setString(1,name);
-		customerLoginStatement.setString(2,password);
-		ResultSet cid_set = customerLoginStatement.executeQuery();
-		if (cid_set.next()) cid = cid_set.getInt(1);
-		else cid = -1;
-		cid_set.close();
+			/* only hashes at the configured iteration count are cached, so a cache hit
+			   never skips the rehash below */
+            boolean valid;
+            if (hash == null) {
+                PreparedStatement plaintextStatement = customer.prepare(PLAINTEXT_LOGIN_SQL);
+                plaintextStatement.setInt(1, cid);
+                plaintextStatement.setString(2, password);
+                ResultSet plaintext_set = plaintextStatement.executeQuery();
+                valid = plaintext_set.next();
+                plaintext_set.close();
+            } else if (credentialCache != null && PasswordHash.iterations(hash) == passwordIterations) {
+                valid = credentialCache.check(credentialCache.put(name, cid, hash), password);
+            } else {
+                valid = PasswordHash.verify(password, hash);
+            }
+            if (!valid)
+                return -1;
+
+			/* store a hash of the password the first time it is seen in plaintext, and
+			   a new one when videostore.password_iterations has changed */
+            if (hash == null || PasswordHash.iterations(hash) != passwordIterations) {
+                String new_hash = PasswordHash.hash(password, passwordIterations);
+                PreparedStatement upgradeStatement = customer.prepare(UPGRADE_PASSWORD_SQL);
+                upgradeStatement.setString(1, new_hash);
+                upgradeStatement.setInt(2, cid);
+                upgradeStatement.setString(3, hash == null ? "" : hash);
+                upgradeStatement.executeUpdate();
+                if (credentialCache != null)
+                    credentialCache.remove(name);
+            }
+        } finally {
+            customerPool.release(customer);
+        }
 
         return(cid);
     }
 
     public void transaction_printPersonalData(int cid) throws Exception {
+        metrics.beginTransaction("printPersonalData");
+        try {
+            printPersonalData(cid);
+        } finally {
+            metrics.endTransaction();
+        }
+    }
+
+    private void printPersonalData(int cid) throws Exception {
 		/* println the customer's personal data: name, and plan number */
-        beginTransaction();
+        String name;
+        int remaining_rentals;
+
+        if (storeCache != null) {
+            name = getCustomerName(cid);
+            remaining_rentals = getRemainingRentals(cid);
+        }
+        else {
+            PooledConnection customer = customerPool.borrow();
+            try {
+                beginTransaction(customer);
 
-        String name = getCustomerName(cid);
-        int remaining_rentals = getRemainingRentals(cid);
+                name = getCustomerName(customer, cid);
+                remaining_rentals = getRemainingRentals(customer, cid);
 
-        commitTransaction();
+                commitTransaction(customer);
+            } finally {
+                customerPool.release(customer);
+            }
+        }
 
-        System.out.println("HELLO " + name + "!");
-        System.out.println("REMAINING RENTALS: " + remaining_rentals);
+        out().println("HELLO " + name + "!");
+        out().println("REMAINING RENTALS: " + remaining_rentals);
     }
 
 
@@ -334,306 +1312,1637 @@ public class Query {
     /* main functions in this project: */
 
     public void transaction_search(int cid, String movie_title)
+            throws Exception {
+        metrics.beginTransaction("search");
+        try {
+            search(cid, movie_title);
+        } finally {
+            metrics.endTransaction();
+        }
+    }
+
+    private void search(int cid, String movie_title)
             throws Exception {
 
 		/* searches for movies with matching titles: SELECT * FROM movie WHERE name LIKE movie_title */
 		/* prints the movies, directors, actors, and the availability status:
 		   AVAILABLE, or UNAVAILABLE, or YOU CURRENTLY RENT IT */
-        ResultSet movie_set = null;
-
-        searchStatement.clearParameters();
-        searchStatement.setString(1, "%" + movie_title + "%");
-        movie_set = searchStatement.executeQuery();
-        while (movie_set.next()) {
-            int mid = movie_set.getInt(1);
-            System.out.println(
-                    " ID: " + mid + " NAME: "
-                    + movie_set.getString(2) + " YEAR: "
-                    + movie_set.getString(3));
-
-			/* do a dependent join with directors */
-            directorMidStatement.clearParameters();
-            directorMidStatement.setInt(1, mid);
-            ResultSet director_set = directorMidStatement.executeQuery();
-            while (director_set.next()) {
-                System.out.println("\t\tDirector: " + director_set.getString(3)
-                        + " " + director_set.getString(2));
-            }
-            director_set.close();
-			/* now you need to retrieve the actors, in the same manner */
-            actorMidStatement.clearParameters();
-            actorMidStatement.setInt(1, mid);
-            ResultSet actor_set = actorMidStatement.executeQuery();
-            while (actor_set.next()) {
-                System.out.println("\t\t" + "Actor: " + actor_set.getString(2)
-                        + " " + actor_set.getString(1));
-            }
-            actor_set.close();
-
-
-			/* then you have to find the status: of "AVAILABLE" "YOU HAVE IT", "UNAVAILABLE" */
-            int temp_cid = getRenterID(mid);
-            if (temp_cid == -1) {
-                System.out.println("\t\tStatus: AVAILABLE");
-            }
-            else if (temp_cid == cid) {
-                System.out.println("\t\tStatus: YOU HAVE IT");
-            }
-            else {
-                System.out.println("\t\tStatus: UNAVAILABLE");
-            }
+        ResultSink sink = sink();
+        sink.begin("search", movie_title);
+        try {
+            search(sink, cid, movie_title);
+        } finally {
+            sink.end();
         }
-        movie_set.close();
-        System.out.println();
     }
 
-    public void transaction_choosePlan(int cid, int pid) throws Exception {
-	    /* updates the customer's plan to pid: UPDATE customer SET plid = pid */
-	    /* remember to enforce consistency ! */
-        int new_plan_max_rentals = 0;
-        int current_plan_remaining_rentals = 0;
-        int current_plan_max_rentals = 0;
-        int current_plan_id = -1;
-        int current_movies_rented = 0;
-
-        beginTransaction();
-
-        getPlansStatement.clearParameters();
-        getPlansStatement.setInt(1, pid);
-        ResultSet plan_set = getPlansStatement.executeQuery();
-        plan_set.next();
-        new_plan_max_rentals = plan_set.getInt(3);
-        plan_set.close();
-
-        getPlansInfoForCustomerStatement.clearParameters();
-        getPlansInfoForCustomerStatement.setInt(1, cid);
-        ResultSet plan_info_set = getPlansInfoForCustomerStatement.executeQuery();
-        plan_info_set.next();
-        current_plan_id = plan_info_set.getInt(1);
-        current_plan_max_rentals = plan_info_set.getInt(2);
-        plan_info_set.close();
+    private void search(ResultSink sink, int cid, String movie_title) throws Exception {
+        CatalogSnapshot snapshot = currentCatalogSnapshot();
+        if (snapshot != null && TitleIndex.canAnswer(movie_title)) {
+            searchSnapshot(sink, cid, snapshot, snapshot.find(movie_title));
+            return;
+        }
+        SearchCache.Result cached = cachedSearch(movie_title);
+        if (cached != null && !cached.isOversized()) {
+            printSearchResult(sink, cid, true, cached, -1, Integer.MAX_VALUE);
+            return;
+        }
+        int[] title_ids = titleIdsAfter(cached, movie_title);
+        if (title_ids != null) {
+            searchByIds(sink, cid, title_ids);
+            return;
+        }
+        if (searchBatchSize > 0) {
+            searchBatched(sink, cid, movie_title);
+            return;
+        }
 
-        current_plan_remaining_rentals = getRemainingRentals(cid);
+        ResultSet movie_set = null;
 
-        updatePlanStatement.clearParameters();
-        updatePlanStatement.setInt(1, pid);
-        updatePlanStatement.setInt(2, cid);
-        updatePlanStatement.executeUpdate();
+        PooledConnection imdb = imdbPool.borrow();
+        try {
+            PreparedStatement searchStatement = imdb.prepare(SEARCH_MOVIE_SQL);
+            searchStatement.setString(1, "%" + movie_title + "%");
+            movie_set = searchStatement.executeQuery();
+            while (movie_set.next()) {
+                int mid = movie_set.getInt(1);
+                sink.movie(mid, movie_set.getString(2), movie_set.getString(3));
+
+                CastCache.Credits credits = castCache != null ? castCache.get(mid) : null;
+                if (credits == null) {
+                    ArrayList<String> directors = new ArrayList<String>();
+                    ArrayList<String> actors = new ArrayList<String>();
+					/* do a dependent join with directors */
+                    PreparedStatement directorMidStatement = imdb.prepare(SEARCH_DIRECTOR_SQL);
+                    directorMidStatement.setInt(1, mid);
+                    ResultSet director_set = directorMidStatement.executeQuery();
+                    while (director_set.next()) {
+                        directors.add(director_set.getString(3));
+                        directors.add(director_set.getString(2));
+                    }
+                    director_set.close();
+					/* now you need to retrieve the actors, in the same manner */
+                    PreparedStatement actorMidStatement = imdb.prepare(SEARCH_ACTOR_SQL);
+                    actorMidStatement.setInt(1, mid);
+                    ResultSet actor_set = actorMidStatement.executeQuery();
+                    while (actor_set.next()) {
+                        actors.add(actor_set.getString(2));
+                        actors.add(actor_set.getString(1));
+                    }
+                    actor_set.close();
+                    credits = CastCache.Credits.of(directors, actors);
+                    if (castCache != null)
+                        castCache.put(mid, credits);
+                }
+                printCredits(sink, credits);
 
-        if (current_plan_id == pid)
-        {
-            System.out.println("SAME PLAN: noop!");
 
-            rollbackTransaction();
-        }
-        else
-        {
-            current_movies_rented = current_plan_max_rentals - current_plan_remaining_rentals;
-            System.out.println(
-                    "newID=" + pid +
-                            " newMax=" + new_plan_max_rentals +
-                            " oldID=" + current_plan_id +
-                            " oldMax=" + current_plan_max_rentals +
-                            " oldDelta=" + current_plan_remaining_rentals +
-                            " currentRented=" + current_movies_rented);
-
-            if (current_movies_rented <= new_plan_max_rentals) {
-                commitTransaction();
-                System.out.println("PLAN UPDATED TO !!" + pid);
-            }
-            else {
-                rollbackTransaction();
-                System.out.println("PLAN NOT UPDATED TO !!" + pid);
-                System.out.println("Please return some movies");
+				/* then you have to find the status: of "AVAILABLE" "YOU HAVE IT", "UNAVAILABLE" */
+                int temp_cid = getRenterID(mid);
+                if (temp_cid == -1) {
+                    sink.status(ResultSink.STATUS_AVAILABLE);
+                }
+                else if (temp_cid == cid) {
+                    sink.status(ResultSink.STATUS_YOU_HAVE_IT);
+                }
+                else {
+                    sink.status(ResultSink.STATUS_UNAVAILABLE);
+                }
             }
+            movie_set.close();
+        } finally {
+            imdbPool.release(imdb);
         }
-
-        exit:
-            return;
     }
 
-    public void transaction_listPlans() throws Exception {
-	    /* println all available plans: SELECT * FROM plan */
-        plansStatement.clearParameters();
-        ResultSet plan_set = plansStatement.executeQuery();
-
-        while(plan_set.next()) {
-            System.out.println(
-                    "ID: " + plan_set.getInt(1) + " " +
-                            "NAME: " + plan_set.getString(2) + " " +
-                            "RENTALS: " + plan_set.getInt(3) + " " +
-                            "FEE: " + plan_set.getInt(4));
+    private void searchBatched(ResultSink sink, int cid, String movie_title) throws Exception {
+		/* same output as the per-movie search, but movies are collected in chunks of
+		   searchBatchSize and each chunk costs three round trips (directors, actors,
+		   open rentals) instead of three per movie */
+        int[] mids = new int[searchBatchSize];
+        String[] names = new String[searchBatchSize];
+        String[] years = new String[searchBatchSize];
+        int count = 0;
+
+        PooledConnection imdb = imdbPool.borrow();
+        try {
+            PreparedStatement searchStatement = imdb.prepare(SEARCH_MOVIE_SQL);
+            searchStatement.setString(1, "%" + movie_title + "%");
+            ResultSet movie_set = searchStatement.executeQuery();
+            while (movie_set.next()) {
+                mids[count] = movie_set.getInt(1);
+                names[count] = movie_set.getString(2);
+                years[count] = movie_set.getString(3);
+                count++;
+                if (count == searchBatchSize) {
+                    printSearchChunk(sink, imdb, cid, mids, names, years, count);
+                    count = 0;
+                }
+            }
+            movie_set.close();
+            if (count > 0)
+                printSearchChunk(sink, imdb, cid, mids, names, years, count);
+        } finally {
+            imdbPool.release(imdb);
         }
-        plan_set.close();
     }
 
-    public void transaction_rent(int cid, int mid) throws Exception {
-	    /* rent the movie mid to the customer cid */
-	    /* remember to enforce consistency ! */
-
-        beginTransaction();
-
-        boolean is_valid_movie = isValidMovie(mid);
-        int rentals_remaining = getRemainingRentals(cid);
-
-        updateRentalStatement.clearParameters();
-        updateRentalStatement.setInt(1, cid);
-        updateRentalStatement.setInt(2, mid);
-        updateRentalStatement.executeUpdate();
-
-        getRentalStatusCountStatement.clearParameters();
-        getRentalStatusCountStatement.setInt(1, mid);
-        ResultSet rental_status_count_set = getRentalStatusCountStatement.executeQuery();
-        rental_status_count_set.next();
-
-        int rental_status_count = rental_status_count_set.getInt(1);
-        rental_status_count_set.close();
-
-        if (is_valid_movie == false
-            || rental_status_count != 1
-            || rentals_remaining == 0) {
-            rollbackTransaction();
-            System.out.println("ROLLED BACK RENTAL TRANS..." + is_valid_movie + " " + rental_status_count + " " + rentals_remaining);
-        }
-        else {
-            commitTransaction();
-            System.out.println("COMMITED RENTAL TRANS...");
+    private void searchByIds(ResultSink sink, int cid, int[] ids) throws Exception {
+		/* the title index already knows which movies match; fetch them by primary
+		   key, a chunk at a time, and print them like searchBatched does */
+        int batch_size = searchBatchSize > 0 ? searchBatchSize : DEFAULT_TITLE_INDEX_BATCH_SIZE;
+        int[] mids = new int[batch_size];
+        String[] names = new String[batch_size];
+        String[] years = new String[batch_size];
+
+        PooledConnection imdb = imdbPool.borrow();
+        try {
+            PreparedStatement searchInStatement = imdb.prepare(inSql(SEARCH_MOVIE_IN_SQL, batch_size));
+            for (int from = 0; from < ids.length; from += batch_size) {
+                int to = Math.min(from + batch_size, ids.length);
+                setInList(searchInStatement, Arrays.copyOfRange(ids, from, from + batch_size), to - from);
+                ResultSet movie_set = searchInStatement.executeQuery();
+                int count = 0;
+                while (movie_set.next()) {
+                    mids[count] = movie_set.getInt(1);
+                    names[count] = movie_set.getString(2);
+                    years[count] = movie_set.getString(3);
+                    count++;
+                }
+                movie_set.close();
+                if (count > 0)
+                    printSearchChunk(sink, imdb, cid, mids, names, years, count);
+            }
+        } finally {
+            imdbPool.release(imdb);
         }
     }
 
-    public void transaction_return(int cid, int mid) throws Exception {
-	    /* return the movie mid by the customer cid */
-        beginTransaction();
+    private void printSearchChunk(ResultSink sink, PooledConnection imdb, int cid, int[] mids, String[] names, String[] years, int count)
+            throws Exception {
+        CastCache.Credits[] chunk_credits = getCredits(imdb, mids, count);
+        HashMap<Integer, Integer> chunk_renters = getRenterIDs(mids, count);
 
-        boolean is_valid_movie = isValidMovie(mid);
-        int remaining_rentals_before = getRemainingRentals(cid);
+        for (int i = 0; i < count; i++) {
+            int mid = mids[i];
+            sink.movie(mid, names[i], years[i]);
+            printCredits(sink, chunk_credits[i]);
 
-        returnRentalStatement.clearParameters();
-        returnRentalStatement.setInt(1, cid);
-        returnRentalStatement.setInt(2, mid);
-        returnRentalStatement.executeUpdate();
+            Integer temp_cid = chunk_renters.get(mid);
+            if (temp_cid == null) {
+                sink.status(ResultSink.STATUS_AVAILABLE);
+            }
+            else if (temp_cid == cid) {
+                sink.status(ResultSink.STATUS_YOU_HAVE_IT);
+            }
+            else {
+                sink.status(ResultSink.STATUS_UNAVAILABLE);
+            }
+        }
+    }
 
-        int remaining_rentals_after = getRemainingRentals(cid);
+    /* directors and actors of the first count movies: from the cast cache where it
+       has them, and from two round trips (IN lists of mids.length) for the rest */
+    private CastCache.Credits[] getCredits(PooledConnection imdb, int[] mids, int count) throws Exception {
+        CastCache.Credits[] credits = new CastCache.Credits[count];
+        int[] missing = mids;
+        int missing_count = count;
+        if (castCache != null) {
+            missing = new int[mids.length];
+            missing_count = 0;
+            for (int i = 0; i < count; i++) {
+                credits[i] = castCache.get(mids[i]);
+                if (credits[i] == null)
+                    missing[missing_count++] = mids[i];
+            }
+            if (missing_count == 0)
+                return credits;
+        }
 
-        if (is_valid_movie == false
-            || (remaining_rentals_after - 1) != remaining_rentals_before) {
-            rollbackTransaction();
-            System.out.println("ROLLED BACK RETURN TRANS..." + is_valid_movie + " " + remaining_rentals_before + " " + remaining_rentals_after);
+        HashMap<Integer, ArrayList<String>> chunk_directors = new HashMap<Integer, ArrayList<String>>();
+        PreparedStatement directorsInStatement = imdb.prepare(inSql(SEARCH_DIRECTORS_IN_SQL, mids.length));
+        setInList(directorsInStatement, missing, missing_count);
+        ResultSet director_set = directorsInStatement.executeQuery();
+        while (director_set.next()) {
+            addToGroup(chunk_directors, director_set.getInt(1), director_set.getString(3), director_set.getString(2));
         }
-        else {
-            commitTransaction();
-            System.out.println("COMMITED RETURN TRANS...");
+        director_set.close();
+
+        HashMap<Integer, ArrayList<String>> chunk_actors = new HashMap<Integer, ArrayList<String>>();
+        PreparedStatement actorsInStatement = imdb.prepare(inSql(SEARCH_ACTORS_IN_SQL, mids.length));
+        setInList(actorsInStatement, missing, missing_count);
+        ResultSet actor_set = actorsInStatement.executeQuery();
+        while (actor_set.next()) {
+            addToGroup(chunk_actors, actor_set.getInt(1), actor_set.getString(3), actor_set.getString(2));
+        }
+        actor_set.close();
+
+        for (int i = 0; i < count; i++) {
+            if (credits[i] != null)
+                continue;
+            credits[i] = CastCache.Credits.of(chunk_directors.get(mids[i]), chunk_actors.get(mids[i]));
+            if (castCache != null)
+                castCache.put(mids[i], credits[i]);
+        }
+        return credits;
+    }
+
+    private static void printCredits(ResultSink sink, CastCache.Credits credits) throws IOException {
+        String[] names = credits.names;
+        int j = 0;
+        for (; j < 2 * credits.directors; j += 2)
+            sink.director(names[j], names[j + 1]);
+        for (; j < names.length; j += 2)
+            sink.actor(names[j], names[j + 1]);
+    }
+
+    /* the movies matching movie_title from the search cache, reading them from IMDB
+       (through the title index or scan if there is one) on a miss; null when the
+       cache is off or the term uses LIKE wildcards. A term that matches too many
+       movies gives an oversized result, remembered so the next search does not
+       read the first max_rows + 1 of them again; its ids are the title ids if they
+       were looked up here (see titleIdsAfter). search and fastsearch share the
+       results: under the database's case-insensitive collation, name LIKE and
+       LOWER(name) LIKE find the same movies */
+    private SearchCache.Result cachedSearch(String movie_title) throws Exception {
+        if (searchCache == null || !TitleIndex.canAnswer(movie_title))
+            return null;
+        SearchCache.Result result = searchCache.get(movie_title);
+        if (result != null)
+            return result;
+
+        int max_rows = searchCache.getMaxEntryRows();
+        int[] title_ids = findTitleIds(movie_title);
+        if (title_ids != null && title_ids.length > max_rows) {
+            searchCache.putOversized(movie_title);
+            return SearchCache.Result.oversized(title_ids);
+        }
+
+        int[] mids = new int[max_rows + 1];
+        ArrayList<String> names = new ArrayList<String>();
+        ArrayList<String> years = new ArrayList<String>();
+        int count = 0;
+        PooledConnection imdb = imdbPool.borrow();
+        try {
+            if (title_ids == null) {
+                PreparedStatement searchTopStatement = imdb.prepare(SEARCH_MOVIE_TOP_SQL);
+                searchTopStatement.setInt(1, max_rows + 1);
+                searchTopStatement.setString(2, "%" + movie_title + "%");
+                ResultSet movie_set = searchTopStatement.executeQuery();
+                while (movie_set.next()) {
+                    mids[count++] = movie_set.getInt(1);
+                    names.add(movie_set.getString(2));
+                    years.add(movie_set.getString(3));
+                }
+                movie_set.close();
+                if (count > max_rows) {
+                    searchCache.putOversized(movie_title);
+                    return SearchCache.Result.oversized(null);
+                }
+            } else {
+                int batch_size = searchBatchSize > 0 ? searchBatchSize : DEFAULT_TITLE_INDEX_BATCH_SIZE;
+                PreparedStatement searchInStatement = imdb.prepare(inSql(SEARCH_MOVIE_IN_SQL, batch_size));
+                for (int from = 0; from < title_ids.length; from += batch_size) {
+                    int to = Math.min(from + batch_size, title_ids.length);
+                    setInList(searchInStatement, Arrays.copyOfRange(title_ids, from, from + batch_size), to - from);
+                    ResultSet movie_set = searchInStatement.executeQuery();
+                    while (movie_set.next()) {
+                        mids[count++] = movie_set.getInt(1);
+                        names.add(movie_set.getString(2));
+                        years.add(movie_set.getString(3));
+                    }
+                    movie_set.close();
+                }
+            }
+        } finally {
+            imdbPool.release(imdb);
+        }
+
+        result = new SearchCache.Result(Arrays.copyOf(mids, count),
+                names.toArray(new String[count]), years.toArray(new String[count]));
+        searchCache.put(movie_title, result);
+        return result;
+    }
+
+    /* the title ids of a term the search cache did not answer: the ones cachedSearch
+       already looked up, or else a lookup of its own */
+    private int[] titleIdsAfter(SearchCache.Result cached, String movie_title) throws Exception {
+        if (cached != null && cached.ids != null)
+            return cached.ids;
+        return findTitleIds(movie_title);
+    }
+
+    /* prints at most limit movies of a cached result with an id above after_mid (-1: from
+       the start), as search (with_status) or fastsearch does. Only the movies are cached:
+       their directors and actors are fetched (or come from the cast cache), and their
+       rental status is read now, so it is never stale */
+    private void printSearchResult(ResultSink sink, int cid, boolean with_status, SearchCache.Result result,
+            int after_mid, int limit) throws Exception {
+        int from = result.indexAfter(after_mid);
+        int to = (int) Math.min((long) from + limit, result.size());
+        int batch_size = searchBatchSize > 0 ? searchBatchSize : DEFAULT_TITLE_INDEX_BATCH_SIZE;
+        int[] mids = new int[batch_size];
+
+        PooledConnection imdb = imdbPool.borrow();
+        try {
+            for (int start = from; start < to; start += batch_size) {
+                int count = Math.min(batch_size, to - start);
+                System.arraycopy(result.ids, start, mids, 0, count);
+                String[] names = Arrays.copyOfRange(result.titles, start, start + count);
+                String[] years = Arrays.copyOfRange(result.years, start, start + count);
+                if (with_status)
+                    printSearchChunk(sink, imdb, cid, mids, names, years, count);
+                else
+                    printFastSearchChunk(sink, imdb, mids, names, years, count);
+            }
+        } finally {
+            imdbPool.release(imdb);
+        }
+    }
+
+    /* renters of the first count movies (movie id -> customer id), one round trip at most:
+       with the availability index on, only the movies it has marked UNKNOWN are read */
+    private HashMap<Integer, Integer> getRenterIDs(int[] mids, int count) throws Exception {
+        HashMap<Integer, Integer> renters = new HashMap<Integer, Integer>();
+        if (rentalLog != null) {
+            for (int i = 0; i < count; i++) {
+                int renter_id = rentalLog.getRenter(mids[i]);
+                if (renter_id != -1)
+                    renters.put(mids[i], renter_id);
+            }
+            return renters;
+        }
+
+        int[] unknown = mids;
+        int unknown_count = count;
+        int[] stamps = null;
+        if (availabilityIndex != null) {
+            unknown = new int[mids.length];
+            stamps = new int[mids.length];
+            unknown_count = 0;
+            for (int i = 0; i < count; i++) {
+                int renter_id = availabilityIndex.getRenter(mids[i]);
+                if (renter_id == AvailabilityIndex.UNKNOWN) {
+                    stamps[unknown_count] = availabilityIndex.loadStamp(mids[i]);
+                    unknown[unknown_count++] = mids[i];
+                } else if (renter_id != AvailabilityIndex.NOT_RENTED) {
+                    renters.put(mids[i], renter_id);
+                }
+            }
+            if (unknown_count == 0)
+                return renters;
+        }
+
+        PooledConnection customer = customerPool.borrow();
+        try {
+            PreparedStatement rentersInStatement = customer.prepare(inSql(CUSTOMER_ID_FROM_RENTALS_IN_SQL, unknown.length));
+            setInList(rentersInStatement, unknown, unknown_count);
+            ResultSet renter_set = rentersInStatement.executeQuery();
+            while (renter_set.next()) {
+                renters.put(renter_set.getInt(1), renter_set.getInt(2));
+            }
+            renter_set.close();
+        } finally {
+            customerPool.release(customer);
+        }
+
+        if (availabilityIndex != null) {
+            for (int i = 0; i < unknown_count; i++) {
+                Integer renter_id = renters.get(unknown[i]);
+                availabilityIndex.refreshed(unknown[i],
+                        renter_id == null ? AvailabilityIndex.NOT_RENTED : renter_id, stamps[i]);
+            }
+        }
+        return renters;
+    }
+
+    private void searchSnapshot(ResultSink sink, int cid, CatalogSnapshot snapshot, int[] rows) throws Exception {
+		/* movies, directors and actors come from the mapped catalog; only the
+		   rental status still needs the customer database (or the availability index) */
+        int batch_size = searchBatchSize > 0 ? searchBatchSize : DEFAULT_TITLE_INDEX_BATCH_SIZE;
+        int[] mids = new int[batch_size];
+
+        for (int from = 0; from < rows.length; from += batch_size) {
+            int count = Math.min(batch_size, rows.length - from);
+            for (int i = 0; i < count; i++)
+                mids[i] = snapshot.movieId(rows[from + i]);
+            HashMap<Integer, Integer> renters = getRenterIDs(mids, count);
+
+            for (int i = 0; i < count; i++) {
+                int row = rows[from + i];
+                sink.movie(mids[i], snapshot.movieTitle(row), snapshot.movieYear(row));
+                printSnapshotPeople(sink, snapshot, row);
+
+                Integer temp_cid = renters.get(mids[i]);
+                if (temp_cid == null) {
+                    sink.status(ResultSink.STATUS_AVAILABLE);
+                }
+                else if (temp_cid == cid) {
+                    sink.status(ResultSink.STATUS_YOU_HAVE_IT);
+                }
+                else {
+                    sink.status(ResultSink.STATUS_UNAVAILABLE);
+                }
+            }
+        }
+    }
+
+    private static void printSnapshotPeople(ResultSink sink, CatalogSnapshot snapshot, int row) throws IOException {
+        for (int i = 0, n = snapshot.directorCount(row); i < n; i++) {
+            int person = snapshot.director(row, i);
+            sink.director(snapshot.lastName(person), snapshot.firstName(person));
+        }
+        for (int i = 0, n = snapshot.actorCount(row); i < n; i++) {
+            int person = snapshot.actor(row, i);
+            sink.actor(snapshot.lastName(person), snapshot.firstName(person));
+        }
+    }
+
+    /* template with its IN list filled in with n markers; metrics report it under the template's name */
+    private String inSql(String template, int n) {
+        String sql = String.format(template, inList(n));
+        metrics.nameStatement(sql, template);
+        return sql;
+    }
+
+    /* "?, ?, ..., ?" with n markers */
+    private static String inList(int n) {
+        StringBuilder sb = new StringBuilder(n * 3);
+        for (int i = 0; i < n; i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append('?');
+        }
+        return sb.toString();
+    }
+
+    /* binds the first count ids; unused markers repeat the last id so every chunk
+       can share one prepared statement */
+    private static void setInList(PreparedStatement ps, int[] ids, int count) throws SQLException {
+        for (int i = 0; i < ids.length; i++) {
+            ps.setInt(i + 1, ids[i < count ? i : count - 1]);
+        }
+    }
+
+    /* appends a (last name, first name) pair to the movie's group */
+    private static void addToGroup(HashMap<Integer, ArrayList<String>> groups, int mid, String lname, String fname) {
+        ArrayList<String> group = groups.get(mid);
+        if (group == null) {
+            group = new ArrayList<String>();
+            groups.put(mid, group);
+        }
+        group.add(lname);
+        group.add(fname);
+    }
+
+    /* rent, return and choosePlan go through the transaction executor, which
+       reruns them when the database aborts them as a deadlock victim or the like */
+    public void transaction_choosePlan(final int cid, final int pid) throws Exception {
+        metrics.beginTransaction("choosePlan");
+        try {
+            transactionExecutor.execute("choosePlan", new TransactionExecutor.Work<Void>() {
+                public Void run() throws Exception {
+                    if (rentalLog == null) {
+                        choosePlan(cid, pid);
+                        return null;
+                    }
+                    synchronized (planLock(cid)) {
+                        choosePlan(cid, pid);
+                    }
+                    return null;
+                }
+            });
+        } finally {
+            metrics.endTransaction();
+        }
+    }
+
+    public boolean transaction_rent(final int cid, final int mid) throws Exception {
+        metrics.beginTransaction("rent");
+        try {
+            return transactionExecutor.execute("rent", new TransactionExecutor.Work<Boolean>() {
+                public Boolean run() throws Exception {
+                    return rent(cid, mid);
+                }
+            });
+        } finally {
+            metrics.endTransaction();
+        }
+    }
+
+    public boolean transaction_return(final int cid, final int mid) throws Exception {
+        metrics.beginTransaction("return");
+        try {
+            return transactionExecutor.execute("return", new TransactionExecutor.Work<Boolean>() {
+                public Boolean run() throws Exception {
+                    return returnRental(cid, mid);
+                }
+            });
+        } finally {
+            metrics.endTransaction();
+        }
+    }
+
+    private void choosePlan(int cid, int pid) throws Exception {
+	    /* updates the customer's plan to pid: UPDATE customer SET plid = pid */
+	    /* remember to enforce consistency ! */
+        int new_plan_max_rentals = 0;
+        int current_plan_remaining_rentals = 0;
+        int current_plan_max_rentals = 0;
+        int current_plan_id = -1;
+        int current_movies_rented = 0;
+
+        PooledConnection customer = customerPool.borrow();
+        try {
+            beginTransaction(customer);
+
+            PreparedStatement getPlansStatement = customer.prepare(GET_PLAN_SQL);
+            getPlansStatement.setInt(1, pid);
+            ResultSet plan_set = getPlansStatement.executeQuery();
+            plan_set.next();
+            new_plan_max_rentals = plan_set.getInt(3);
+            plan_set.close();
+
+            PreparedStatement getPlansInfoForCustomerStatement = customer.prepare(GET_PLAN_INFO_FROM_CUSTOMERID_SQL);
+            getPlansInfoForCustomerStatement.setInt(1, cid);
+            ResultSet plan_info_set = getPlansInfoForCustomerStatement.executeQuery();
+            plan_info_set.next();
+            current_plan_id = plan_info_set.getInt(1);
+            current_plan_max_rentals = plan_info_set.getInt(2);
+            plan_info_set.close();
+
+            current_plan_remaining_rentals = getRemainingRentals(customer, cid);
+
+            PreparedStatement updatePlanStatement = customer.prepare(UPDATE_PLAN_SQL);
+            updatePlanStatement.setInt(1, pid);
+            updatePlanStatement.setInt(2, cid);
+            updatePlanStatement.executeUpdate();
+
+            if (current_plan_id == pid)
+            {
+                out().println("SAME PLAN: noop!");
+
+                rollbackTransaction(customer);
+            }
+            else
+            {
+                current_movies_rented = current_plan_max_rentals - current_plan_remaining_rentals;
+                out().println(
+                        "newID=" + pid +
+                                " newMax=" + new_plan_max_rentals +
+                                " oldID=" + current_plan_id +
+                                " oldMax=" + current_plan_max_rentals +
+                                " oldDelta=" + current_plan_remaining_rentals +
+                                " currentRented=" + current_movies_rented);
+
+                if (current_movies_rented <= new_plan_max_rentals) {
+                    commitTransaction(customer);
+                    if (storeCache != null)
+                        storeCache.planChanged(cid, pid);
+                    out().println("PLAN UPDATED TO !!" + pid);
+                }
+                else {
+                    rollbackTransaction(customer);
+                    out().println("PLAN NOT UPDATED TO !!" + pid);
+                    out().println("Please return some movies");
+                }
+            }
+        } catch (Exception e) {
+            if (storeCache != null)
+                storeCache.invalidate(cid);
+            throw e;
+        } finally {
+            customerPool.release(customer);
+        }
+    }
+
+    public void transaction_listPlans() throws Exception {
+        metrics.beginTransaction("listPlans");
+        try {
+            listPlans();
+        } finally {
+            metrics.endTransaction();
+        }
+    }
+
+    private void listPlans() throws Exception {
+	    /* println all available plans: SELECT * FROM plan */
+        if (storeCache != null) {
+            for (StoreCache.Plan plan : storeCache.getPlans()) {
+                out().println(
+                        "ID: " + plan.id + " " +
+                                "NAME: " + plan.name + " " +
+                                "RENTALS: " + plan.maxRentals + " " +
+                                "FEE: " + plan.monthlyFee);
+            }
+            return;
+        }
+
+        PooledConnection customer = customerPool.borrow();
+        try {
+            PreparedStatement plansStatement = customer.prepare(SHOW_PLANS_SQL);
+            ResultSet plan_set = plansStatement.executeQuery();
+
+            while(plan_set.next()) {
+                out().println(
+                        "ID: " + plan_set.getInt(1) + " " +
+                                "NAME: " + plan_set.getString(2) + " " +
+                                "RENTALS: " + plan_set.getInt(3) + " " +
+                                "FEE: " + plan_set.getInt(4));
+            }
+            plan_set.close();
+        } finally {
+            customerPool.release(customer);
+        }
+    }
+
+    private boolean rent(int cid, int mid) throws Exception {
+	    /* rent the movie mid to the customer cid; true if the rental committed */
+	    /* remember to enforce consistency ! */
+
+        /* the movie lives in the imdb database, so check it before taking a customer connection */
+        boolean is_valid_movie = isValidMovie(mid);
+
+        if (rentalLog != null)
+            return rentLogged(cid, mid, is_valid_movie);
+        if (rentMode.equals(RENT_MODE_OPTIMISTIC))
+            return rentOptimistic(cid, mid, is_valid_movie);
+
+        PooledConnection customer = customerPool.borrow();
+        try {
+            beginTransaction(customer);
+
+            int rentals_remaining = getRemainingRentals(customer, cid);
+
+            PreparedStatement updateRentalStatement = customer.prepare(UPDATE_RENTAL_SQL);
+            updateRentalStatement.setInt(1, cid);
+            updateRentalStatement.setInt(2, mid);
+            try {
+                updateRentalStatement.executeUpdate();
+            } catch (SQLException e) {
+                /* RENTALS_Open_Movie already refuses a second open rental of mid */
+                if (e.getErrorCode() != SQL_ERROR_DUPLICATE_KEY_ROW && e.getErrorCode() != SQL_ERROR_DUPLICATE_KEY)
+                    throw e;
+                rollbackTransaction(customer);
+                out().println("ROLLED BACK RENTAL TRANS..." + is_valid_movie + " movie already rented " + rentals_remaining);
+                return false;
+            }
+
+            PreparedStatement getRentalStatusCountStatement = customer.prepare(GET_RENTAL_STATUS_COUNT_SQL);
+            getRentalStatusCountStatement.setInt(1, mid);
+            ResultSet rental_status_count_set = getRentalStatusCountStatement.executeQuery();
+            rental_status_count_set.next();
+
+            int rental_status_count = rental_status_count_set.getInt(1);
+            rental_status_count_set.close();
+
+            if (is_valid_movie == false
+                || rental_status_count != 1
+                || rentals_remaining == 0) {
+                rollbackTransaction(customer);
+                out().println("ROLLED BACK RENTAL TRANS..." + is_valid_movie + " " + rental_status_count + " " + rentals_remaining);
+                return false;
+            }
+            else {
+                addOpenRentals(customer, cid, 1);
+                /* taken while the transaction still holds mid's rental row */
+                int version = availabilityIndex != null ? availabilityIndex.beginChange(mid) : 0;
+                commitTransaction(customer);
+                if (availabilityIndex != null)
+                    availabilityIndex.committed(mid, cid, version);
+                if (storeCache != null)
+                    storeCache.rentalOpened(cid);
+                out().println("COMMITED RENTAL TRANS...");
+                return true;
+            }
+        } catch (Exception e) {
+            /* the pool rolls the connection back, but a failed COMMIT leaves the outcome unknown */
+            if (availabilityIndex != null)
+                availabilityIndex.invalidate(mid);
+            if (storeCache != null)
+                storeCache.invalidate(cid);
+            throw e;
+        } finally {
+            customerPool.release(customer);
+        }
+    }
+
+    private boolean returnRental(int cid, int mid) throws Exception {
+	    /* return the movie mid by the customer cid; true if the return committed */
+        boolean is_valid_movie = isValidMovie(mid);
+
+        if (rentalLog != null)
+            return returnLogged(cid, mid, is_valid_movie);
+        if (rentMode.equals(RENT_MODE_OPTIMISTIC))
+            return returnOptimistic(cid, mid, is_valid_movie);
+
+        PooledConnection customer = customerPool.borrow();
+        try {
+            beginTransaction(customer);
+
+            PreparedStatement returnRentalStatement = customer.prepare(RETURN_RENTAL_SQL);
+            returnRentalStatement.setInt(1, cid);
+            returnRentalStatement.setInt(2, mid);
+            int rentals_closed = returnRentalStatement.executeUpdate();
+
+            if (is_valid_movie == false
+                || rentals_closed != 1) {
+                rollbackTransaction(customer);
+                out().println("ROLLED BACK RETURN TRANS..." + is_valid_movie + " " + rentals_closed);
+                return false;
+            }
+            else {
+                addOpenRentals(customer, cid, -1);
+                int version = availabilityIndex != null ? availabilityIndex.beginChange(mid) : 0;
+                commitTransaction(customer);
+                if (availabilityIndex != null)
+                    availabilityIndex.committed(mid, AvailabilityIndex.NOT_RENTED, version);
+                if (storeCache != null)
+                    storeCache.rentalClosed(cid);
+                out().println("COMMITED RETURN TRANS...");
+                return true;
+            }
+        } catch (Exception e) {
+            if (availabilityIndex != null)
+                availabilityIndex.invalidate(mid);
+            if (storeCache != null)
+                storeCache.invalidate(cid);
+            throw e;
+        } finally {
+            customerPool.release(customer);
+        }
+    }
+
+    private boolean rentOptimistic(int cid, int mid, boolean is_valid_movie) throws Exception {
+		/* one conditional INSERT: it writes a row only if the movie is free and the
+		   plan has room, so there is nothing to roll back when the rent is refused.
+		   When it does write, the customer's open_rentals goes up in the same
+		   READ COMMITTED transaction, the level the pool hands connections out at */
+        if (!is_valid_movie) {
+            out().println("ROLLED BACK RENTAL TRANS..." + is_valid_movie);
+            return false;
+        }
+
+        int inserted = 0;
+        int version = 0;
+        PooledConnection customer = customerPool.borrow();
+        try {
+            Connection c = customer.getConnection();
+            customer.setIsolation(Connection.TRANSACTION_READ_COMMITTED);
+            c.setAutoCommit(false);
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    PreparedStatement rentIfAllowedStatement = customer.prepare(RENT_IF_ALLOWED_SQL);
+                    rentIfAllowedStatement.setInt(1, mid);
+                    rentIfAllowedStatement.setInt(2, cid);
+                    rentIfAllowedStatement.setInt(3, mid);
+                    inserted = rentIfAllowedStatement.executeUpdate();
+                    if (inserted == 1) {
+                        addOpenRentals(customer, cid, 1);
+                        if (availabilityIndex != null)
+                            version = availabilityIndex.beginChange(mid);
+                    }
+                    customer.commit();
+                    break;
+                } catch (SQLException e) {
+                    /* a concurrent rent of the same movie won the unique index: try again,
+                       the next attempt sees the winner. Deadlock victims are left to the
+                       transaction executor, which reruns the whole rent (and the pool rolls
+                       back when the connection is released) */
+                    if (attempt >= rentRetries || !isRentConflict(e))
+                        throw e;
+                    customer.rollback();
+                }
+            }
+            c.setAutoCommit(true);
+        } catch (Exception e) {
+            if (availabilityIndex != null)
+                availabilityIndex.invalidate(mid);
+            if (storeCache != null)
+                storeCache.invalidate(cid);
+            throw e;
+        } finally {
+            customerPool.release(customer);
+        }
+
+        if (inserted != 1) {
+            out().println("ROLLED BACK RENTAL TRANS..." + is_valid_movie + " movie rented or plan full");
+            return false;
+        }
+        if (availabilityIndex != null)
+            availabilityIndex.committed(mid, cid, version);
+        if (storeCache != null)
+            storeCache.rentalOpened(cid);
+        out().println("COMMITED RENTAL TRANS...");
+        return true;
+    }
+
+    /* adjusts CUSTOMERS.open_rentals inside the caller's transaction */
+    private void addOpenRentals(PooledConnection customer, int cid, int delta) throws Exception {
+        PreparedStatement openRentalsStatement = customer.prepare(UPDATE_OPEN_RENTALS_SQL);
+        openRentalsStatement.setInt(1, delta);
+        openRentalsStatement.setInt(2, cid);
+        openRentalsStatement.executeUpdate();
+    }
+
+    private static boolean isRentConflict(SQLException e) {
+        int code = e.getErrorCode();
+        return code == SQL_ERROR_DUPLICATE_KEY_ROW
+            || code == SQL_ERROR_DUPLICATE_KEY;
+    }
+
+    private boolean returnOptimistic(int cid, int mid, boolean is_valid_movie) throws Exception {
+		/* closing the customer's open rental of mid is a single UPDATE; it either
+		   finds that row or changes nothing. open_rentals follows in the same
+		   READ COMMITTED transaction */
+        if (!is_valid_movie) {
+            out().println("ROLLED BACK RETURN TRANS..." + is_valid_movie);
+            return false;
+        }
+
+        int updated;
+        int version = 0;
+        PooledConnection customer = customerPool.borrow();
+        try {
+            Connection c = customer.getConnection();
+            customer.setIsolation(Connection.TRANSACTION_READ_COMMITTED);
+            c.setAutoCommit(false);
+            PreparedStatement returnIfRentedStatement = customer.prepare(RETURN_IF_RENTED_SQL);
+            returnIfRentedStatement.setInt(1, cid);
+            returnIfRentedStatement.setInt(2, mid);
+            updated = returnIfRentedStatement.executeUpdate();
+            if (updated == 1) {
+                addOpenRentals(customer, cid, -1);
+                if (availabilityIndex != null)
+                    version = availabilityIndex.beginChange(mid);
+            }
+            customer.commit();
+            c.setAutoCommit(true);
+        } catch (Exception e) {
+            if (availabilityIndex != null)
+                availabilityIndex.invalidate(mid);
+            if (storeCache != null)
+                storeCache.invalidate(cid);
+            throw e;
+        } finally {
+            customerPool.release(customer);
+        }
+
+        if (updated != 1) {
+            out().println("ROLLED BACK RETURN TRANS..." + is_valid_movie + " movie not rented by customer");
+            return false;
+        }
+        if (availabilityIndex != null)
+            availabilityIndex.committed(mid, AvailabilityIndex.NOT_RENTED, version);
+        if (storeCache != null)
+            storeCache.rentalClosed(cid);
+        out().println("COMMITED RETURN TRANS...");
+        return true;
+    }
+
+    /* rents every movie of the cart to cid in one transaction, or none of them */
+    public boolean transaction_rentMany(final int cid, final int[] mids) throws Exception {
+        metrics.beginTransaction("rentMany");
+        try {
+            return transactionExecutor.execute("rentMany", new TransactionExecutor.Work<Boolean>() {
+                public Boolean run() throws Exception {
+                    return rentMany(cid, mids);
+                }
+            });
+        } finally {
+            metrics.endTransaction();
+        }
+    }
+
+    /* returns every movie of the cart in one transaction, or none of them */
+    public boolean transaction_returnMany(final int cid, final int[] mids) throws Exception {
+        metrics.beginTransaction("returnMany");
+        try {
+            return transactionExecutor.execute("returnMany", new TransactionExecutor.Work<Boolean>() {
+                public Boolean run() throws Exception {
+                    return returnMany(cid, mids);
+                }
+            });
+        } finally {
+            metrics.endTransaction();
+        }
+    }
+
+    private boolean rentMany(int cid, int[] mids) throws Exception {
+		/* the cart is checked with one query per database (valid ids, movies already out)
+		   and the plan once; then all rows go in as one JDBC batch */
+        String refused = checkCart(mids);
+        if (refused != null) {
+            out().println("ROLLED BACK RENTAL TRANS..." + refused);
+            return false;
+        }
+
+        if (rentalLog != null) {
+            long seq;
+            synchronized (planLock(cid)) {
+                seq = rentalLog.rentAll(cid, mids, getMaxRentals(cid));
+            }
+            if (seq < 0) {
+                out().println("ROLLED BACK RENTAL TRANS...movie rented or plan full");
+                return false;
+            }
+            rentalLog.awaitDurable(seq);
+            rentedMany(cid, mids, null);
+            return true;
+        }
+
+        PooledConnection customer = customerPool.borrow();
+        try {
+            beginTransaction(customer);
+
+            int rentals_remaining = getRemainingRentals(customer, cid);
+            if (rentals_remaining < mids.length) {
+                rollbackTransaction(customer);
+                out().println("ROLLED BACK RENTAL TRANS...plan allows " + rentals_remaining + " more, not " + mids.length);
+                return false;
+            }
+
+            PreparedStatement rentersInStatement = customer.prepare(inSql(CUSTOMER_ID_FROM_RENTALS_IN_SQL, MAX_CART_SIZE));
+            setInList(rentersInStatement, Arrays.copyOf(mids, MAX_CART_SIZE), mids.length);
+            ResultSet renter_set = rentersInStatement.executeQuery();
+            int rented_mid = renter_set.next() ? renter_set.getInt(1) : -1;
+            renter_set.close();
+            if (rented_mid != -1) {
+                rollbackTransaction(customer);
+                out().println("ROLLED BACK RENTAL TRANS...movie " + rented_mid + " already rented");
+                return false;
+            }
+
+            /* the statement is shared by the connection's single rents; drop what a failed batch left */
+            PreparedStatement updateRentalStatement = customer.prepare(UPDATE_RENTAL_SQL);
+            updateRentalStatement.clearBatch();
+            for (int mid : mids) {
+                updateRentalStatement.setInt(1, cid);
+                updateRentalStatement.setInt(2, mid);
+                updateRentalStatement.addBatch();
+            }
+            try {
+                updateRentalStatement.executeBatch();
+            } catch (SQLException e) {
+                /* RENTALS_Open_Movie refuses a movie rented since the check */
+                if (e.getErrorCode() != SQL_ERROR_DUPLICATE_KEY_ROW && e.getErrorCode() != SQL_ERROR_DUPLICATE_KEY)
+                    throw e;
+                rollbackTransaction(customer);
+                out().println("ROLLED BACK RENTAL TRANS...movie already rented");
+                return false;
+            }
+            addOpenRentals(customer, cid, mids.length);
+
+            int[] versions = beginChanges(mids);
+            commitTransaction(customer);
+            rentedMany(cid, mids, versions);
+            return true;
+        } catch (Exception e) {
+            if (availabilityIndex != null)
+                for (int mid : mids)
+                    availabilityIndex.invalidate(mid);
+            if (storeCache != null)
+                storeCache.invalidate(cid);
+            throw e;
+        } finally {
+            customerPool.release(customer);
+        }
+    }
+
+    /* versions of the cart's movies in the availability index, taken before the commit
+       while the transaction holds their rows; null if the index is off */
+    private int[] beginChanges(int[] mids) {
+        if (availabilityIndex == null)
+            return null;
+        int[] versions = new int[mids.length];
+        for (int i = 0; i < mids.length; i++)
+            versions[i] = availabilityIndex.beginChange(mids[i]);
+        return versions;
+    }
+
+    /* versions is null when the cart went through the rental log, which answers for
+       the movies itself */
+    private void rentedMany(int cid, int[] mids, int[] versions) {
+        for (int i = 0; i < mids.length; i++) {
+            if (availabilityIndex != null) {
+                if (versions != null)
+                    availabilityIndex.committed(mids[i], cid, versions[i]);
+                else
+                    availabilityIndex.invalidate(mids[i]);
+            }
+            if (storeCache != null)
+                storeCache.rentalOpened(cid);
+        }
+        out().println("COMMITED RENTAL TRANS..." + mids.length + " movies");
+    }
+
+    private boolean returnMany(int cid, int[] mids) throws Exception {
+        String refused = checkCart(mids);
+        if (refused != null) {
+            out().println("ROLLED BACK RETURN TRANS..." + refused);
+            return false;
+        }
+
+        if (rentalLog != null) {
+            long seq = rentalLog.returnedAll(cid, mids);
+            if (seq < 0) {
+                out().println("ROLLED BACK RETURN TRANS...movie not rented by customer");
+                return false;
+            }
+            rentalLog.awaitDurable(seq);
+            returnedMany(cid, mids, null);
+            return true;
+        }
+
+        PooledConnection customer = customerPool.borrow();
+        try {
+            beginTransaction(customer);
+
+            PreparedStatement returnRentalStatement = customer.prepare(RETURN_RENTAL_SQL);
+            returnRentalStatement.clearBatch();
+            for (int mid : mids) {
+                returnRentalStatement.setInt(1, cid);
+                returnRentalStatement.setInt(2, mid);
+                returnRentalStatement.addBatch();
+            }
+            int[] rentals_closed = returnRentalStatement.executeBatch();
+            for (int i = 0; i < mids.length; i++) {
+                if (rentals_closed[i] != 1) {
+                    rollbackTransaction(customer);
+                    out().println("ROLLED BACK RETURN TRANS...movie " + mids[i] + " not rented by customer");
+                    return false;
+                }
+            }
+            addOpenRentals(customer, cid, -mids.length);
+
+            int[] versions = beginChanges(mids);
+            commitTransaction(customer);
+            returnedMany(cid, mids, versions);
+            return true;
+        } catch (Exception e) {
+            if (availabilityIndex != null)
+                for (int mid : mids)
+                    availabilityIndex.invalidate(mid);
+            if (storeCache != null)
+                storeCache.invalidate(cid);
+            throw e;
+        } finally {
+            customerPool.release(customer);
+        }
+    }
+
+    private void returnedMany(int cid, int[] mids, int[] versions) {
+        for (int i = 0; i < mids.length; i++) {
+            if (availabilityIndex != null) {
+                if (versions != null)
+                    availabilityIndex.committed(mids[i], AvailabilityIndex.NOT_RENTED, versions[i]);
+                else
+                    availabilityIndex.invalidate(mids[i]);
+            }
+            if (storeCache != null)
+                storeCache.rentalClosed(cid);
         }
+        out().println("COMMITED RETURN TRANS..." + mids.length + " movies");
+    }
+
+    /* why a cart cannot go through, or null: too big, the same movie twice, or an unknown movie
+       (all ids checked in one imdb query) */
+    private String checkCart(int[] mids) throws Exception {
+        if (mids.length == 0 || mids.length > MAX_CART_SIZE)
+            return "carts hold 1 to " + MAX_CART_SIZE + " movies, not " + mids.length;
+
+        HashSet<Integer> cart = new HashSet<Integer>();
+        for (int mid : mids)
+            if (!cart.add(mid))
+                return "movie " + mid + " is in the cart twice";
+
+        PooledConnection imdb = imdbPool.borrow();
+        try {
+            PreparedStatement validMoviesStatement = imdb.prepare(inSql(VALID_MOVIE_IDS_IN_SQL, MAX_CART_SIZE));
+            setInList(validMoviesStatement, Arrays.copyOf(mids, MAX_CART_SIZE), mids.length);
+            ResultSet valid_movie_set = validMoviesStatement.executeQuery();
+            while (valid_movie_set.next())
+                cart.remove(valid_movie_set.getInt(1));
+            valid_movie_set.close();
+        } finally {
+            imdbPool.release(imdb);
+        }
+        if (!cart.isEmpty())
+            return "no movie " + cart.iterator().next();
+        return null;
+    }
+
+    private boolean rentLogged(int cid, int mid, boolean is_valid_movie) throws Exception {
+		/* the rental log decides against its own open rentals and the plan's limit;
+		   the rent is acknowledged once its event is on disk */
+        if (!is_valid_movie) {
+            out().println("ROLLED BACK RENTAL TRANS..." + is_valid_movie);
+            return false;
+        }
+
+        long seq;
+        synchronized (planLock(cid)) {
+            seq = rentalLog.rent(cid, mid, getMaxRentals(cid));
+        }
+        if (seq < 0) {
+            out().println("ROLLED BACK RENTAL TRANS..." + is_valid_movie + " movie rented or plan full");
+            return false;
+        }
+        rentalLog.awaitDurable(seq);
+        if (availabilityIndex != null)
+            availabilityIndex.invalidate(mid);
+        if (storeCache != null)
+            storeCache.rentalOpened(cid);
+        out().println("COMMITED RENTAL TRANS...");
+        return true;
+    }
+
+    private boolean returnLogged(int cid, int mid, boolean is_valid_movie) throws Exception {
+        if (!is_valid_movie) {
+            out().println("ROLLED BACK RETURN TRANS..." + is_valid_movie);
+            return false;
+        }
+
+        long seq = rentalLog.returned(cid, mid);
+        if (seq < 0) {
+            out().println("ROLLED BACK RETURN TRANS..." + is_valid_movie + " movie not rented by customer");
+            return false;
+        }
+        rentalLog.awaitDurable(seq);
+        if (availabilityIndex != null)
+            availabilityIndex.invalidate(mid);
+        if (storeCache != null)
+            storeCache.rentalClosed(cid);
+        out().println("COMMITED RETURN TRANS...");
+        return true;
     }
 
     public void transaction_fastSearch(int cid, String movie_title)
+            throws Exception {
+        metrics.beginTransaction("fastSearch");
+        try {
+            fastSearch(cid, movie_title);
+        } finally {
+            metrics.endTransaction();
+        }
+    }
+
+    private void fastSearch(int cid, String movie_title)
             throws Exception {
 		/* like transaction_search, but uses joins instead of dependent joins
 		   Needs to run three SQL queries: (a) movies, (b) movies join directors, (c) movies join actors
 		   Answers are sorted by mid.
 		   Then merge-joins the three answer sets */
-        int mid = -1, prev_mid = -1;
-
-        fastSearchStatement.clearParameters();
-        fastSearchStatement.setString(1, "%" + movie_title + "%");
-        ResultSet movie_set = fastSearchStatement.executeQuery();
-        HashMap<Integer, String> movies = new HashMap<Integer, String>();
-        while(movie_set.next()) {
-            movies.put( movie_set.getInt(1),
-                        ("NAME: " + movie_set.getString(2) + " YEAR: " + movie_set.getString(3)));
-        }
-        movie_set.close();
-
-        fastSearchDirectorsStatement.clearParameters();
-        fastSearchDirectorsStatement.setString(1, "%" + movie_title + "%");
-        ResultSet director_set = fastSearchDirectorsStatement.executeQuery();
-        HashMap<Integer, ArrayList<String>> movie_directors = new HashMap<Integer, ArrayList<String>>();
-        ArrayList<String> directors = null;
-        mid = -1;
-        prev_mid = -1;
-        while(director_set.next()) {
-            mid = director_set.getInt(1);
-            if (mid != prev_mid) {
-                if (prev_mid != -1) {
-                    movie_directors.put(prev_mid, directors);
-                }
-                directors = new ArrayList<String>();
-                if (director_set.getString(3) != null || director_set.getString(2) != null) {
-                    directors.add( director_set.getString(3) + " " +  director_set.getString(2));
+        ResultSink sink = sink();
+        sink.begin("fastsearch", movie_title);
+        try {
+            fastSearch(sink, cid, movie_title);
+        } finally {
+            sink.end();
+        }
+    }
+
+    private void fastSearch(ResultSink sink, int cid, String movie_title) throws Exception {
+        CatalogSnapshot snapshot = currentCatalogSnapshot();
+        if (snapshot != null && TitleIndex.canAnswer(movie_title)) {
+            fastSearchSnapshot(sink, snapshot, snapshot.find(movie_title));
+            return;
+        }
+        SearchCache.Result cached = cachedSearch(movie_title);
+        if (cached != null && !cached.isOversized()) {
+            printSearchResult(sink, cid, false, cached, -1, Integer.MAX_VALUE);
+            return;
+        }
+        int[] title_ids = titleIdsAfter(cached, movie_title);
+        if (castCache != null) {
+            fastSearchCached(sink, title_ids, movie_title);
+            return;
+        }
+        if (title_ids != null) {
+            fastSearchByIds(sink, title_ids);
+            return;
+        }
+        if (fastSearchMode.equals(FAST_SEARCH_MODE_STREAM)) {
+            fastSearchStream(sink, cid, movie_title);
+            return;
+        }
+        if (fastSearchMode.equals(FAST_SEARCH_MODE_PARALLEL)) {
+            fastSearchParallel(sink, movie_title);
+            return;
+        }
+
+        /* the answer sets are read column-wise (no boxing, no per-movie lists) and
+           merge-joined on the movie id once the connection is back in the pool */
+        FastSearchResult result = new FastSearchResult();
+
+        PooledConnection imdb = imdbPool.borrow();
+        try {
+            PreparedStatement fastSearchStatement = imdb.prepare(FAST_SEARCH_SQL);
+            fastSearchStatement.setString(1, "%" + movie_title + "%");
+            result.movies().read(fastSearchStatement.executeQuery(), 1, 2, 3, false);
+
+            PreparedStatement fastSearchDirectorsStatement = imdb.prepare(FAST_SEARCH_DIRECTORS_SQL);
+            fastSearchDirectorsStatement.setString(1, "%" + movie_title + "%");
+            result.directors().read(fastSearchDirectorsStatement.executeQuery(), 1, 3, 2, true);
+
+            PreparedStatement fastSearchActorsStatement = imdb.prepare(FAST_SEARCH_ACTORS_SQL);
+            fastSearchActorsStatement.setString(1, "%" + movie_title + "%");
+            result.actors().read(fastSearchActorsStatement.executeQuery(), 1, 4, 3, true);
+        } finally {
+            imdbPool.release(imdb);
+        }
+
+        result.render(sink);
+    }
+
+    private void fastSearchParallel(ResultSink sink, final String movie_title) throws Exception {
+		/* the three queries of the classic fastsearch, each on its own connection:
+		   directors and actors run on searchExecutor while this thread reads the
+		   movies, so the wait is about the slowest query rather than the sum */
+        final Metrics.Context transaction = metrics.currentTransaction();
+        Future<FastSearchResult.Table> directors_future = searchExecutor.submit(
+                new Callable<FastSearchResult.Table>() {
+                    public FastSearchResult.Table call() throws Exception {
+                        return fastSearchTable(transaction, FAST_SEARCH_DIRECTORS_SQL, movie_title, 3, 2);
+                    }
+                });
+        Future<FastSearchResult.Table> actors_future = searchExecutor.submit(
+                new Callable<FastSearchResult.Table>() {
+                    public FastSearchResult.Table call() throws Exception {
+                        return fastSearchTable(transaction, FAST_SEARCH_ACTORS_SQL, movie_title, 4, 3);
+                    }
+                });
+
+        FastSearchResult result;
+        try {
+            FastSearchResult.Table movies = new FastSearchResult.Table();
+            PooledConnection imdb = imdbPool.borrow();
+            try {
+                PreparedStatement fastSearchStatement = imdb.prepare(FAST_SEARCH_SQL);
+                fastSearchStatement.setString(1, "%" + movie_title + "%");
+                movies.read(fastSearchStatement.executeQuery(), 1, 2, 3, false);
+            } finally {
+                imdbPool.release(imdb);
+            }
+            result = new FastSearchResult(movies, resultOf(directors_future), resultOf(actors_future));
+        } finally {
+            /* no-ops once they are done; stops the other query when one failed */
+            directors_future.cancel(true);
+            actors_future.cancel(true);
+        }
+
+        result.render(sink);
+    }
+
+    /* runs FAST_SEARCH_DIRECTORS_SQL or FAST_SEARCH_ACTORS_SQL on a connection of its
+       own, skipping the all-null rows of the outer join; its round trips and rows
+       count towards transaction */
+    private FastSearchResult.Table fastSearchTable(Metrics.Context transaction, String sql, String movie_title,
+            int lname_column, int fname_column) throws Exception {
+        FastSearchResult.Table people = new FastSearchResult.Table();
+        metrics.joinTransaction(transaction);
+        PooledConnection imdb = imdbPool.borrow();
+        try {
+            PreparedStatement statement = imdb.prepare(sql);
+            statement.setString(1, "%" + movie_title + "%");
+            people.read(statement.executeQuery(), 1, lname_column, fname_column, true);
+        } finally {
+            imdbPool.release(imdb);
+            metrics.leaveTransaction();
+        }
+        return people;
+    }
+
+    /* the future's value, with the exception the task threw (rather than an ExecutionException) */
+    private static <T> T resultOf(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception)
+                throw (Exception) cause;
+            throw e;
+        }
+    }
+
+    private void fastSearchStream(ResultSink sink, int cid, String movie_title) throws Exception {
+		/* single round trip, single cursor: rows arrive ordered by mid with the movie
+		   row first, so every line is printed as soon as it is read and memory does
+		   not grow with the number of matches */
+        PooledConnection imdb = imdbPool.borrow();
+        try {
+            PreparedStatement fastSearchStreamStatement = imdb.prepare(FAST_SEARCH_STREAM_SQL);
+            fastSearchStreamStatement.setString(1, "%" + movie_title + "%");
+            printFastSearchRows(sink, fastSearchStreamStatement.executeQuery());
+        } finally {
+            imdbPool.release(imdb);
+        }
+    }
+
+    private void fastSearchByIds(ResultSink sink, int[] ids) throws Exception {
+		/* streaming fastsearch over the ids found by the title index; chunks are in
+		   ascending id order, so the output order is the same */
+        int batch_size = searchBatchSize > 0 ? searchBatchSize : DEFAULT_TITLE_INDEX_BATCH_SIZE;
+        PooledConnection imdb = imdbPool.borrow();
+        try {
+            PreparedStatement fastSearchInStatement = imdb.prepare(inSql(FAST_SEARCH_STREAM_IN_SQL, batch_size));
+            for (int from = 0; from < ids.length; from += batch_size) {
+                int to = Math.min(from + batch_size, ids.length);
+                setInList(fastSearchInStatement, Arrays.copyOfRange(ids, from, from + batch_size), to - from);
+                printFastSearchRows(sink, fastSearchInStatement.executeQuery());
+            }
+        } finally {
+            imdbPool.release(imdb);
+        }
+    }
+
+    private void fastSearchCached(ResultSink sink, int[] ids, String movie_title) throws Exception {
+		/* only the matching movies are read (by id when the title index or scan found
+		   them), a chunk at a time; their directors and actors come from the cast
+		   cache, and only the movies it misses are joined with DIRECTORS and CASTS */
+        int batch_size = searchBatchSize > 0 ? searchBatchSize : DEFAULT_TITLE_INDEX_BATCH_SIZE;
+        int[] mids = new int[batch_size];
+        String[] names = new String[batch_size];
+        String[] years = new String[batch_size];
+
+        PooledConnection imdb = imdbPool.borrow();
+        try {
+            if (ids == null) {
+                PreparedStatement fastSearchStatement = imdb.prepare(FAST_SEARCH_SQL);
+                fastSearchStatement.setString(1, "%" + movie_title + "%");
+                ResultSet movie_set = fastSearchStatement.executeQuery();
+                int count = 0;
+                while (movie_set.next()) {
+                    mids[count] = movie_set.getInt(1);
+                    names[count] = movie_set.getString(2);
+                    years[count] = movie_set.getString(3);
+                    count++;
+                    if (count == batch_size) {
+                        printFastSearchChunk(sink, imdb, mids, names, years, count);
+                        count = 0;
+                    }
                 }
+                movie_set.close();
+                if (count > 0)
+                    printFastSearchChunk(sink, imdb, mids, names, years, count);
+                return;
             }
-            else {
-                if (director_set.getString(3) != null || director_set.getString(2) != null) {
-                    directors.add( director_set.getString(3) + " " +  director_set.getString(2));
+
+            PreparedStatement searchInStatement = imdb.prepare(inSql(SEARCH_MOVIE_IN_SQL, batch_size));
+            for (int from = 0; from < ids.length; from += batch_size) {
+                int to = Math.min(from + batch_size, ids.length);
+                setInList(searchInStatement, Arrays.copyOfRange(ids, from, from + batch_size), to - from);
+                ResultSet movie_set = searchInStatement.executeQuery();
+                int count = 0;
+                while (movie_set.next()) {
+                    mids[count] = movie_set.getInt(1);
+                    names[count] = movie_set.getString(2);
+                    years[count] = movie_set.getString(3);
+                    count++;
                 }
+                movie_set.close();
+                if (count > 0)
+                    printFastSearchChunk(sink, imdb, mids, names, years, count);
             }
-            prev_mid = mid;
+        } finally {
+            imdbPool.release(imdb);
         }
-        if (prev_mid != -1) {
-            movie_directors.put(prev_mid, directors);
+    }
+
+    private void printFastSearchChunk(ResultSink sink, PooledConnection imdb, int[] mids, String[] names, String[] years, int count)
+            throws Exception {
+        CastCache.Credits[] chunk_credits = getCredits(imdb, mids, count);
+        for (int i = 0; i < count; i++) {
+            sink.movie(mids[i], names[i], years[i]);
+            printCredits(sink, chunk_credits[i]);
         }
-        director_set.close();
+    }
 
-        fastSearchActorsStatement.clearParameters();
-        fastSearchActorsStatement.setString(1, "%" + movie_title + "%");
-        ResultSet actor_set = fastSearchActorsStatement.executeQuery();
-        HashMap<Integer, ArrayList<String>> movie_actors = new HashMap<Integer, ArrayList<String>>();
-        ArrayList<String> actors = null;
-        mid = -1;
-        prev_mid = -1;
-        while(actor_set.next()) {
-            mid = actor_set.getInt(1);
-            if (mid != prev_mid) {
-                if (prev_mid != -1) {
-                    movie_actors.put(prev_mid, actors);
-                }
-                actors = new ArrayList<String>();
-                if (actor_set.getString(4) != null || actor_set.getString(3) != null) {
-                    actors.add( actor_set.getString(4) + " " +  actor_set.getString(3));
-                }
+    private void fastSearchSnapshot(ResultSink sink, CatalogSnapshot snapshot, int[] rows) throws IOException {
+		/* no database at all: everything fastsearch prints is in the mapped catalog */
+        for (int row : rows) {
+            sink.movie(snapshot.movieId(row), snapshot.movieTitle(row), snapshot.movieYear(row));
+            printSnapshotPeople(sink, snapshot, row);
+        }
+    }
+
+    /* hands (mid, kind, a, b) rows ordered by mid, kind to the sink and closes them */
+    private static void printFastSearchRows(ResultSink sink, ResultSet row_set) throws Exception {
+        while (row_set.next()) {
+            int kind = row_set.getInt(2);
+            if (kind == FAST_SEARCH_ROW_MOVIE) {
+                sink.movie(row_set.getInt(1), row_set.getString(3), row_set.getString(4));
+            }
+            else if (kind == FAST_SEARCH_ROW_DIRECTOR) {
+                sink.director(row_set.getString(3), row_set.getString(4));
             }
             else {
-                if (actor_set.getString(4) != null || actor_set.getString(3) != null) {
-                    actors.add( actor_set.getString(4) + " " +  actor_set.getString(3));
-                }
+                sink.actor(row_set.getString(3), row_set.getString(4));
             }
-            prev_mid = mid;
-        }
-        if (prev_mid != -1) {
-            movie_actors.put(prev_mid, actors);
         }
-        actor_set.close();
+        row_set.close();
+    }
 
-        for(Map.Entry<Integer, String> m_entry : movies.entrySet()) {
-            Integer m_id = m_entry.getKey();
-            String value = m_entry.getValue();
-            System.out.println("ID: " + m_id + " " + value);
+    /**********************************************************/
+    /* paged search and fastsearch */
+
+    /* search, showing only the first limit matches with an id above after_mid (-1: from
+       the start). Returns the after_mid of the next page, or -1 when there is none; one
+       match more than the page is looked for to tell the two apart */
+    public int transaction_searchPage(int cid, String movie_title, int limit, int after_mid) throws Exception {
+        checkPageLimit(limit);
+        metrics.beginTransaction("searchPage");
+        try {
+            ResultSink sink = sink();
+            PageSink page = new PageSink(sink, limit);
+            sink.begin("search", movie_title);
+            try {
+                searchPage(page, cid, movie_title, limit, after_mid);
+            } finally {
+                sink.end();
+            }
+            return page.more ? page.lastMid : -1;
+        } finally {
+            metrics.endTransaction();
+        }
+    }
 
-            ArrayList <String> temp = movie_directors.get(m_id);
-            for (String s : temp) {
-                System.out.println("\t\tDirector: " + s);
+    /* fastsearch, a page at a time like transaction_searchPage */
+    public int transaction_fastSearchPage(int cid, String movie_title, int limit, int after_mid) throws Exception {
+        checkPageLimit(limit);
+        metrics.beginTransaction("fastSearchPage");
+        try {
+            ResultSink sink = sink();
+            PageSink page = new PageSink(sink, limit);
+            sink.begin("fastsearch", movie_title);
+            try {
+                fastSearchPage(page, movie_title, limit, after_mid);
+            } finally {
+                sink.end();
             }
+            return page.more ? page.lastMid : -1;
+        } finally {
+            metrics.endTransaction();
+        }
+    }
+
+    /* the in-memory sources hand page one movie more than limit, which it drops */
+    private void searchPage(PageSink page, int cid, String movie_title, int limit, int after_mid) throws Exception {
+        CatalogSnapshot snapshot = currentCatalogSnapshot();
+        if (snapshot != null && TitleIndex.canAnswer(movie_title)) {
+            searchSnapshot(page, cid, snapshot, snapshot.find(movie_title, after_mid, limit + 1));
+            return;
+        }
+        SearchCache.Result cached = cachedSearch(movie_title);
+        if (cached != null && !cached.isOversized()) {
+            printSearchResult(page, cid, true, cached, after_mid, limit + 1);
+            return;
+        }
+        int[] title_ids = titleIdsAfter(cached, movie_title);
+        if (title_ids != null) {
+            searchByIds(page, cid, pageOf(title_ids, limit + 1, after_mid));
+            return;
+        }
 
-            temp = movie_actors.get(m_id);
-            for (String s : temp) {
-                System.out.println("\t\tActor: " + s);
+		/* the page's movies (and whether there is one more) in one round trip, then
+		   their directors, actors and renters in three more, as searchBatched does
+		   for each chunk */
+        int[] mids = new int[limit + 1];
+        String[] names = new String[limit + 1];
+        String[] years = new String[limit + 1];
+        int count = 0;
+
+        PooledConnection imdb = imdbPool.borrow();
+        try {
+            PreparedStatement searchPageStatement = imdb.prepare(SEARCH_MOVIE_PAGE_SQL);
+            searchPageStatement.setInt(1, limit + 1);
+            searchPageStatement.setString(2, "%" + movie_title + "%");
+            searchPageStatement.setInt(3, after_mid);
+            ResultSet movie_set = searchPageStatement.executeQuery();
+            while (movie_set.next()) {
+                mids[count] = movie_set.getInt(1);
+                names[count] = movie_set.getString(2);
+                years[count] = movie_set.getString(3);
+                count++;
             }
+            movie_set.close();
+            if (count > limit) {
+                count = limit;
+                page.more = true;
+            }
+            if (count > 0)
+                printSearchChunk(page, imdb, cid, mids, names, years, count);
+        } finally {
+            imdbPool.release(imdb);
+        }
+    }
+
+    /* every source hands page one movie more than limit, with its people; page drops them */
+    private void fastSearchPage(PageSink page, String movie_title, int limit, int after_mid) throws Exception {
+        CatalogSnapshot snapshot = currentCatalogSnapshot();
+        if (snapshot != null && TitleIndex.canAnswer(movie_title)) {
+            fastSearchSnapshot(page, snapshot, snapshot.find(movie_title, after_mid, limit + 1));
+            return;
+        }
+        SearchCache.Result cached = cachedSearch(movie_title);
+        if (cached != null && !cached.isOversized()) {
+            printSearchResult(page, -1, false, cached, after_mid, limit + 1);
+            return;
+        }
+        int[] title_ids = titleIdsAfter(cached, movie_title);
+        if (title_ids != null) {
+            fastSearchByIds(page, pageOf(title_ids, limit + 1, after_mid));
+            return;
+        }
+
+        PooledConnection imdb = imdbPool.borrow();
+        try {
+            PreparedStatement fastSearchPageStatement = imdb.prepare(FAST_SEARCH_STREAM_PAGE_SQL);
+            fastSearchPageStatement.setInt(1, limit + 1);
+            fastSearchPageStatement.setString(2, "%" + movie_title + "%");
+            fastSearchPageStatement.setInt(3, after_mid);
+            printFastSearchRows(page, fastSearchPageStatement.executeQuery());
+        } finally {
+            imdbPool.release(imdb);
         }
-        System.out.println();
     }
 
-    public void beginTransaction() throws Exception {
-        customerConn.setAutoCommit(false);
-        beginTransactionStatement.executeUpdate();
+    private static void checkPageLimit(int limit) {
+        /* printSearchChunk puts the whole page in one IN list */
+        if (limit < 1 || limit > MAX_SEARCH_BATCH_SIZE)
+            throw new IllegalArgumentException("page size must be between 1 and " + MAX_SEARCH_BATCH_SIZE + ": " + limit);
     }
 
-    public void commitTransaction() throws Exception {
-        commitTransactionStatement.executeUpdate();
-        customerConn.setAutoCommit(true);
+    /* the first limit of the ascending ids that are above after_mid */
+    private static int[] pageOf(int[] ids, int limit, int after_mid) {
+        int from = Arrays.binarySearch(ids, after_mid);
+        from = from >= 0 ? from + 1 : -from - 1;
+        return Arrays.copyOfRange(ids, from, Math.min(ids.length, from + limit));
     }
-    public void rollbackTransaction() throws Exception {
-        rollbackTransactionStatement.executeUpdate();
-        customerConn.setAutoCommit(true);
+
+    /* passes on the first limit movies, remembering the last one's id; a movie after
+       them only means there is another page */
+    private static class PageSink implements ResultSink {
+        private final ResultSink sink;
+        private final int limit;
+        int movies = 0;
+        int lastMid = -1;
+        boolean more = false;
+
+        PageSink(ResultSink sink, int limit) {
+            this.sink = sink;
+            this.limit = limit;
+        }
+
+        public void begin(String transaction, String term) throws IOException {
+            sink.begin(transaction, term);
+        }
+
+        public void movie(int id, String title, String year) throws IOException {
+            if (movies == limit)
+                more = true;
+            if (more)
+                return;
+            movies++;
+            lastMid = id;
+            sink.movie(id, title, year);
+        }
+
+        public void director(String lname, String fname) throws IOException {
+            if (!more)
+                sink.director(lname, fname);
+        }
+
+        public void actor(String lname, String fname) throws IOException {
+            if (!more)
+                sink.actor(lname, fname);
+        }
+
+        public void status(int status) throws IOException {
+            if (!more)
+                sink.status(status);
+        }
+
+        public void end() throws IOException {
+            sink.end();
+        }
+    }
+
+    /* transactions run on the customer connection the caller borrowed */
+    private void beginTransaction(PooledConnection customer) throws Exception {
+        customer.setIsolation(Connection.TRANSACTION_SERIALIZABLE);
+        customer.getConnection().setAutoCommit(false);
+        customer.prepare(BEGIN_TRANSACTION_SQL).executeUpdate();
+    }
+
+    private void commitTransaction(PooledConnection customer) throws Exception {
+        customer.prepare(COMMIT_SQL).executeUpdate();
+        customer.getConnection().setAutoCommit(true);
+    }
+
+    private void rollbackTransaction(PooledConnection customer) throws Exception {
+        customer.prepare(ROLLBACK_SQL).executeUpdate();
+        customer.getConnection().setAutoCommit(true);
     }
 }
 
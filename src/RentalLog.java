@@ -0,0 +1,539 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * Write-behind log of rentals and returns. A rent or return is decided
+ * against the open rentals held here, appended to a local file, and
+ * acknowledged once that file has been forced to disk; RENTALS catches up
+ * later, when applyTo() writes the logged events in batches.
+ *
+ * Group commit: appenders only queue their record and wait. A single writer
+ * thread writes everything queued since its last force() and forces once, so
+ * concurrent rentals share one fsync.
+ *
+ * Recovery: every event has a sequence number, and applyTo() stores the last
+ * one it wrote in RENTAL_LOG_CHECKPOINT in the same transaction as the events.
+ * On startup the log's events after that checkpoint are replayed onto the
+ * open rentals read from RENTALS and queued to be written again, so an event
+ * acknowledged before a crash is neither lost nor written twice. A torn record
+ * at the end of the file (a crash mid-write, never acknowledged) is cut off.
+ *
+ * A cart (rentAll, returnedAll) is one group of records: every record but the
+ * last carries CONTINUED, so replay only applies a group once it has read its
+ * last record, and cuts off a group the crash left unfinished with the rest of
+ * the torn tail. A cart is replayed whole or not at all.
+ *
+ * An event that changes no row of RENTALS (a rent of a movie that already has
+ * an open row, a return of a rental that is not open) is skipped: it does not
+ * count towards CUSTOMERS.open_rentals, and statistics() reports how many
+ * were. If RENTALS rejects logged events outright (a constraint, say), retrying
+ * cannot help: applyTo() marks the log failed, and it refuses every rent and
+ * return from then on, until it is repaired and reopened. Lost connections
+ * and aborted transactions are only thrown to the caller, which tries again.
+ *
+ * The log must be the only writer of RENTALS while it is in use.
+ */
+public class RentalLog {
+    public static final int RENT = 1;
+    public static final int RETURN = 2;
+
+    /* or-ed into the type of every record of a group but its last */
+    private static final int CONTINUED = 0x100;
+
+    private static final long MAGIC = 0x524C4F4730303031L; /* "RLOG0001" */
+    private static final int HEADER_SIZE = 8;
+    /* seq, time, type, cid, mid, crc */
+    private static final int RECORD_SIZE = 8 + 8 + 4 + 4 + 4 + 4;
+
+    /* the file is cut back to its header once everything in it is in RENTALS and it is this long */
+    private static final long TRUNCATE_AFTER_BYTES = 1 << 20;
+
+    private static final String CHECKPOINT_SQL =
+            "SELECT seq FROM RENTAL_LOG_CHECKPOINT WHERE id = 1";
+
+    private static final String UPDATE_CHECKPOINT_SQL =
+            "UPDATE RENTAL_LOG_CHECKPOINT SET seq = ? WHERE id = 1";
+
+    // writes nothing if the movie already has an open row, instead of failing the
+    // whole batch on the RENTALS_Open_Movie unique index
+    private static final String INSERT_RENTAL_SQL =
+            "INSERT INTO RENTALS (customerid, movieid, status, date) " +
+            "SELECT ?, ?, 1, ? " +
+            "WHERE NOT EXISTS (SELECT * FROM RENTALS AS R WHERE R.movieid = ? AND R.status = 1)";
+
+    private static final String CLOSE_RENTAL_SQL =
+            "UPDATE RENTALS SET status = 0 WHERE customerid = ? AND movieid = ? AND status = 1";
+
+    private static final String UPDATE_OPEN_RENTALS_SQL =
+            "UPDATE CUSTOMERS SET open_rentals = open_rentals + ? WHERE id = ?";
+
+    private static final String OPEN_RENTALS_SQL =
+            "SELECT R.movieid, R.customerid FROM RENTALS AS R WHERE R.status = 1";
+
+    static final class Event {
+        final long seq;
+        final long time;
+        final int type;
+        final int cid;
+        final int mid;
+        final boolean continued;   // more records of the same group follow
+
+        Event(long seq, long time, int type, int cid, int mid, boolean continued) {
+            this.seq = seq;
+            this.time = time;
+            this.type = type;
+            this.cid = cid;
+            this.mid = mid;
+            this.continued = continued;
+        }
+    }
+
+    private final FileChannel channel;
+    private final Thread writer;
+
+    /* everything below is guarded by this */
+    private final IntIntMap renters = new IntIntMap(1024);    /* movie -> customer, every open rental */
+    private final IntIntMap openRentals = new IntIntMap(1024); /* customer -> open rentals */
+    private ArrayList<Event> queued = new ArrayList<Event>();       /* waiting for the writer */
+    private final ArrayDeque<Event> unapplied = new ArrayDeque<Event>(); /* on disk, not yet in RENTALS */
+    private long nextSeq;
+    private long durableSeq;
+    private long appliedSeq;
+    private long fileSize;
+    private IOException failure;
+    private SQLException applyFailure;   /* RENTALS rejected events; nothing more is accepted */
+    private boolean closed = false;
+
+    private long syncs = 0;
+    private long synced = 0;
+    private long skipped = 0;
+
+    /* opens (or creates) the log at file and recovers from it, using c (in autocommit) to
+       read the checkpoint and the open rentals */
+    public static RentalLog open(File file, Connection c) throws IOException, SQLException {
+        long checkpoint = 0;
+        Statement st = c.createStatement();
+        try {
+            ResultSet checkpoint_set = st.executeQuery(CHECKPOINT_SQL);
+            if (!checkpoint_set.next())
+                throw new SQLException("RENTAL_LOG_CHECKPOINT has no row 1; see setup.sql");
+            checkpoint = checkpoint_set.getLong(1);
+            checkpoint_set.close();
+
+            RentalLog log = new RentalLog(file, checkpoint);
+            ResultSet open_rentals_set = st.executeQuery(OPEN_RENTALS_SQL);
+            while (open_rentals_set.next())
+                log.open(open_rentals_set.getInt(1), open_rentals_set.getInt(2));
+            open_rentals_set.close();
+
+            log.replay(checkpoint);
+            log.writer.start();
+            return log;
+        } finally {
+            st.close();
+        }
+    }
+
+    private RentalLog(File file, long checkpoint) throws IOException {
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        appliedSeq = checkpoint;
+        writer = new Thread("rental log writer") {
+            public void run() {
+                writeLoop();
+            }
+        };
+        writer.setDaemon(true);
+    }
+
+    /**********************************************************/
+    /* recovery */
+
+    private void replay(long checkpoint) throws IOException {
+        long size = channel.size();
+        if (size < HEADER_SIZE) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putLong(MAGIC).flip();
+            channel.truncate(0);
+            channel.write(header, 0);
+            channel.force(true);
+            size = HEADER_SIZE;
+        } else {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            if (header.getLong(0) != MAGIC)
+                throw new IOException("not a rental log");
+        }
+
+        long last_seq = checkpoint;
+        ArrayList<Event> group = new ArrayList<Event>();
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        long pos = HEADER_SIZE;   // the end of the last complete group
+        long read = HEADER_SIZE;
+        while (read + RECORD_SIZE <= size) {
+            record.clear();
+            channel.read(record, read);
+            Event e = decode(record);
+            if (e == null)
+                break;
+            read += RECORD_SIZE;
+            group.add(e);
+            if (e.continued)
+                continue;
+            for (Event g : group) {
+                if (g.seq > checkpoint) {
+                    apply(g);
+                    unapplied.add(g);
+                }
+                last_seq = Math.max(last_seq, g.seq);
+            }
+            group.clear();
+            pos = read;
+        }
+        if (pos < size) {
+            /* torn or corrupt tail, or a group without its last record: never acknowledged, drop it */
+            channel.truncate(pos);
+            channel.force(true);
+        }
+        channel.position(pos);
+        fileSize = pos;
+        nextSeq = last_seq + 1;
+        durableSeq = last_seq;
+    }
+
+    private static Event decode(ByteBuffer b) {
+        CRC32 crc = new CRC32();
+        crc.update(b.array(), 0, RECORD_SIZE - 4);
+        if ((int) crc.getValue() != b.getInt(RECORD_SIZE - 4))
+            return null;
+        int type = b.getInt(16) & ~CONTINUED;
+        if (type != RENT && type != RETURN)
+            return null;
+        return new Event(b.getLong(0), b.getLong(8), type, b.getInt(20), b.getInt(24), (b.getInt(16) & CONTINUED) != 0);
+    }
+
+    private static void encode(Event e, ByteBuffer b) {
+        int start = b.position();
+        b.putLong(e.seq).putLong(e.time).putInt(e.continued ? e.type | CONTINUED : e.type).putInt(e.cid).putInt(e.mid);
+        CRC32 crc = new CRC32();
+        crc.update(b.array(), start, RECORD_SIZE - 4);
+        b.putInt((int) crc.getValue());
+    }
+
+    /**********************************************************/
+    /* open rentals */
+
+    private void open(int mid, int cid) {
+        renters.put(mid, cid);
+        openRentals.put(cid, openRentals.get(cid, 0) + 1);
+    }
+
+    private void apply(Event e) {
+        if (e.type == RENT) {
+            open(e.mid, e.cid);
+        } else {
+            renters.remove(e.mid);
+            int n = openRentals.get(e.cid, 0) - 1;
+            if (n > 0)
+                openRentals.put(e.cid, n);
+            else
+                openRentals.remove(e.cid);
+        }
+    }
+
+    /* the customer renting mid, or -1 */
+    public synchronized int getRenter(int mid) {
+        return renters.get(mid, -1);
+    }
+
+    public synchronized int getOpenRentals(int cid) {
+        return openRentals.get(cid, 0);
+    }
+
+    /**********************************************************/
+    /* appending */
+
+    /* logs the rent of mid to cid if mid is free and cid has fewer than max_rentals open;
+       returns the event's sequence number (see awaitDurable), or -1 when refused */
+    public synchronized long rent(int cid, int mid, int max_rentals) throws IOException {
+        checkUsable();
+        if (renters.containsKey(mid) || openRentals.get(cid, 0) >= max_rentals)
+            return -1;
+        return append(RENT, cid, mid, false);
+    }
+
+    /* logs the return of mid if cid rents it; returns the sequence number, or -1 */
+    public synchronized long returned(int cid, int mid) throws IOException {
+        checkUsable();
+        if (renters.get(mid, -1) != cid)
+            return -1;
+        return append(RETURN, cid, mid, false);
+    }
+
+    /* logs the rent of all of mids to cid if every one is free and the plan has room
+       for all of them; returns the sequence number of the last event, or -1 */
+    public synchronized long rentAll(int cid, int[] mids, int max_rentals) throws IOException {
+        checkUsable();
+        if (openRentals.get(cid, 0) + mids.length > max_rentals)
+            return -1;
+        for (int mid : mids)
+            if (renters.containsKey(mid))
+                return -1;
+        long seq = -1;
+        for (int i = 0; i < mids.length; i++)
+            seq = append(RENT, cid, mids[i], i < mids.length - 1);
+        return seq;
+    }
+
+    /* logs the return of all of mids if cid rents every one of them; returns the
+       sequence number of the last event, or -1 */
+    public synchronized long returnedAll(int cid, int[] mids) throws IOException {
+        checkUsable();
+        for (int mid : mids)
+            if (renters.get(mid, -1) != cid)
+                return -1;
+        long seq = -1;
+        for (int i = 0; i < mids.length; i++)
+            seq = append(RETURN, cid, mids[i], i < mids.length - 1);
+        return seq;
+    }
+
+    /* queues one record; a group's records are queued under one lock, so the writer
+       always takes them in the same batch */
+    private long append(int type, int cid, int mid, boolean continued) {
+        Event e = new Event(nextSeq++, System.currentTimeMillis(), type, cid, mid, continued);
+        apply(e);
+        queued.add(e);
+        notifyAll();
+        return e.seq;
+    }
+
+    /* waits until the event seq is on disk */
+    public synchronized void awaitDurable(long seq) throws IOException, InterruptedException {
+        while (durableSeq < seq) {
+            checkUsable();
+            wait();
+        }
+    }
+
+    private void checkUsable() throws IOException {
+        if (failure != null)
+            throw new IOException("rental log failed; restart to recover from it", failure);
+        if (applyFailure != null)
+            throw new IOException("RENTALS rejected events of the rental log; repair them before restarting", applyFailure);
+        if (closed)
+            throw new IOException("rental log is closed");
+    }
+
+    private void writeLoop() {
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE * 256);
+        try {
+            while (true) {
+                ArrayList<Event> batch;
+                boolean truncate;
+                synchronized (this) {
+                    while (queued.isEmpty() && !closed && !(appliedSeq == durableSeq && fileSize > TRUNCATE_AFTER_BYTES))
+                        wait();
+                    if (queued.isEmpty() && closed)
+                        return;
+                    batch = queued;
+                    queued = new ArrayList<Event>();
+                    truncate = batch.isEmpty();
+                }
+
+                if (truncate) {
+                    /* everything in the file is in RENTALS and nothing is being appended */
+                    channel.truncate(HEADER_SIZE);
+                    channel.force(true);
+                    synchronized (this) {
+                        fileSize = HEADER_SIZE;
+                    }
+                    continue;
+                }
+
+                if (buf.capacity() < batch.size() * RECORD_SIZE)
+                    buf = ByteBuffer.allocate(batch.size() * RECORD_SIZE);
+                buf.clear();
+                for (Event e : batch)
+                    encode(e, buf);
+                buf.flip();
+                long pos = fileSize;
+                while (buf.hasRemaining())
+                    pos += channel.write(buf, pos);
+                channel.force(false);
+
+                synchronized (this) {
+                    fileSize = pos;
+                    durableSeq = batch.get(batch.size() - 1).seq;
+                    unapplied.addAll(batch);
+                    syncs++;
+                    synced += batch.size();
+                    notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                failure = e;
+                notifyAll();
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    /**********************************************************/
+    /* write-behind */
+
+    /* writes up to max_events durable events to RENTALS, in order and in one transaction
+       with the checkpoint; returns how many. c must be in autocommit mode and is left so */
+    public int applyTo(Connection c, int max_events) throws SQLException {
+        ArrayList<Event> events = new ArrayList<Event>();
+        synchronized (this) {
+            if (applyFailure != null)
+                throw applyFailure;
+            for (Event e : unapplied) {
+                if (events.size() == max_events)
+                    break;
+                events.add(e);
+            }
+        }
+        if (events.isEmpty())
+            return 0;
+
+        c.setAutoCommit(false);
+        PreparedStatement insert = c.prepareStatement(INSERT_RENTAL_SQL);
+        PreparedStatement close = c.prepareStatement(CLOSE_RENTAL_SQL);
+        PreparedStatement open_rentals = c.prepareStatement(UPDATE_OPEN_RENTALS_SQL);
+        PreparedStatement checkpoint = c.prepareStatement(UPDATE_CHECKPOINT_SQL);
+        try {
+            IntIntMap deltas = new IntIntMap(events.size());
+            ArrayList<Integer> customers = new ArrayList<Integer>();
+            /* consecutive events of one kind go in one batch; a return must not
+               overtake the rent it closes */
+            int batch_start = 0;
+            int skipped_events = 0;
+            for (int i = 0; i < events.size(); i++) {
+                Event e = events.get(i);
+                if (i > batch_start && e.type != events.get(batch_start).type) {
+                    skipped_events += applyBatch(events, batch_start, i, insert, close, deltas, customers);
+                    batch_start = i;
+                }
+                if (e.type == RENT) {
+                    insert.setInt(1, e.cid);
+                    insert.setInt(2, e.mid);
+                    insert.setTimestamp(3, new Timestamp(e.time));
+                    insert.setInt(4, e.mid);
+                    insert.addBatch();
+                } else {
+                    close.setInt(1, e.cid);
+                    close.setInt(2, e.mid);
+                    close.addBatch();
+                }
+            }
+            skipped_events += applyBatch(events, batch_start, events.size(), insert, close, deltas, customers);
+
+            /* one CUSTOMERS.open_rentals update per customer, with the net change */
+            for (int cid : customers) {
+                int delta = deltas.get(cid, 0);
+                if (delta == 0)
+                    continue;
+                open_rentals.setInt(1, delta);
+                open_rentals.setInt(2, cid);
+                open_rentals.addBatch();
+            }
+            open_rentals.executeBatch();
+
+            long last = events.get(events.size() - 1).seq;
+            checkpoint.setLong(1, last);
+            checkpoint.executeUpdate();
+            c.commit();
+
+            synchronized (this) {
+                for (int i = 0; i < events.size(); i++)
+                    unapplied.poll();
+                appliedSeq = last;
+                skipped += skipped_events;
+                notifyAll();
+            }
+            return events.size();
+        } catch (SQLException e) {
+            c.rollback();
+            if (isRejection(e)) {
+                synchronized (this) {
+                    applyFailure = e;
+                    notifyAll();
+                }
+            }
+            throw e;
+        } finally {
+            insert.close();
+            close.close();
+            open_rentals.close();
+            checkpoint.close();
+            c.setAutoCommit(true);
+        }
+    }
+
+    /* runs the batch of events[from, to), all of one type, and adds the open_rentals
+       change of each event that changed a row to deltas; returns how many did not */
+    private static int applyBatch(ArrayList<Event> events, int from, int to, PreparedStatement insert,
+                                  PreparedStatement close, IntIntMap deltas, ArrayList<Integer> customers) throws SQLException {
+        boolean rent = events.get(from).type == RENT;
+        int[] counts = (rent ? insert : close).executeBatch();
+        int skipped_events = 0;
+        for (int i = from; i < to; i++) {
+            int count = counts[i - from];
+            if (count == 0) {
+                skipped_events++;
+                continue;
+            }
+            /* SUCCESS_NO_INFO: the driver ran it without saying how many rows; the
+               statements change at most one row, so count it as changed */
+            Event e = events.get(i);
+            if (!deltas.containsKey(e.cid))
+                customers.add(e.cid);
+            deltas.put(e.cid, deltas.get(e.cid, 0) + (rent ? 1 : -1));
+        }
+        return skipped_events;
+    }
+
+    /* RENTALS refused the events themselves (SQLState class 22, data exception, or 23,
+       integrity constraint violation); anything else may go through on a later try */
+    private static boolean isRejection(SQLException e) {
+        String state = e.getSQLState();
+        return state != null && (state.startsWith("22") || state.startsWith("23"));
+    }
+
+    /* why the log stopped accepting rents and returns, or null while it works */
+    public synchronized Exception getFailure() {
+        return failure != null ? failure : applyFailure;
+    }
+
+    /* durable events not yet in RENTALS */
+    public synchronized int getBacklog() {
+        return unapplied.size();
+    }
+
+    public synchronized String statistics() {
+        return "rental log: " + renters.size() + " open rentals, " + queued.size() + " queued, "
+                + unapplied.size() + " not yet in RENTALS, " + syncs + " fsyncs for " + synced + " events, "
+                + skipped + " skipped by RENTALS, " + fileSize + " bytes" + (getFailure() != null ? ", FAILED: " + getFailure() : "") + "\n";
+    }
+
+    /* waits for queued events to reach the disk and stops the writer; events not yet in
+       RENTALS stay in the file for the next open() */
+    public void close() throws IOException, InterruptedException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        writer.join();
+        channel.close();
+    }
+}
@@ -0,0 +1,30 @@
+import java.io.IOException;
+
+/**
+ * Receives the results of search and fastsearch while they are read, one
+ * movie at a time: movie(), then its directors and actors, then (search only)
+ * its status. Query hands every result to the sink of the calling thread (see
+ * Query.setResultSink), so how results are rendered, and where they go, is up
+ * to the sink.
+ *
+ * Names are passed as last name, first name, as the catalog stores them.
+ */
+public interface ResultSink {
+    int STATUS_AVAILABLE = 0;
+    int STATUS_YOU_HAVE_IT = 1;
+    int STATUS_UNAVAILABLE = 2;
+
+    /* transaction is "search" or "fastsearch" */
+    void begin(String transaction, String term) throws IOException;
+
+    void movie(int id, String title, String year) throws IOException;
+
+    void director(String lname, String fname) throws IOException;
+
+    void actor(String lname, String fname) throws IOException;
+
+    void status(int status) throws IOException;
+
+    /* the result is complete; everything is written out before this returns */
+    void end() throws IOException;
+}
@@ -0,0 +1,213 @@
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the movies (id, title, year) matching recent search terms, for
+ * people who type "god", then "godf", then "godfather".
+ *
+ * Results are keyed by the lower-cased term. A term that is not cached but
+ * contains a cached one is answered by filtering the cached result in memory:
+ * every title containing "godfather" also contains "god", so the matches of
+ * "godfather" are among those of "god". The longest cached substring is used,
+ * and the filtered result is cached under the new term too.
+ *
+ * Only the matching movies are cached; Query fetches their directors and
+ * actors (or takes them from CastCache) and their rental status every time it
+ * prints them. A term with more than maxEntryRows movies is cached as an
+ * oversized marker, so its next search goes straight to IMDB instead of
+ * reading the first maxEntryRows + 1 of them again. Entries are evicted in LRU
+ * order once they hold more than maxRows movies in all (a marker counts as
+ * one), and a result (or one filtered from it) or a marker expires ttlMillis
+ * after it was read from IMDB.
+ */
+public class SearchCache {
+
+    /* matching movies in ascending id order */
+    public static class Result {
+        public final int[] ids;
+        public final String[] titles;
+        public final String[] years;
+        private final long loadedAt;
+
+        public Result(int[] ids, String[] titles, String[] years) {
+            this(ids, titles, years, System.currentTimeMillis());
+        }
+
+        private Result(int[] ids, String[] titles, String[] years, long loadedAt) {
+            this.ids = ids;
+            this.titles = titles;
+            this.years = years;
+            this.loadedAt = loadedAt;
+        }
+
+        /* a term with too many movies to cache; ids are its title ids when Query
+           already looked them up, and null otherwise */
+        public static Result oversized(int[] title_ids) {
+            return new Result(title_ids, null, null, System.currentTimeMillis());
+        }
+
+        public boolean isOversized() {
+            return titles == null;
+        }
+
+        public int size() {
+            return ids == null ? 0 : ids.length;
+        }
+
+        /* the position of the first movie with an id above after_mid (-1: from the start) */
+        public int indexAfter(int after_mid) {
+            int i = Arrays.binarySearch(ids, after_mid);
+            return i >= 0 ? i + 1 : -i - 1;
+        }
+
+        /* the movies whose title contains term, which is lower-cased */
+        Result filter(String term) {
+            int[] f_ids = new int[ids.length];
+            String[] f_titles = new String[ids.length];
+            String[] f_years = new String[ids.length];
+            int n = 0;
+            for (int i = 0; i < ids.length; i++) {
+                if (containsIgnoreCase(titles[i], term)) {
+                    f_ids[n] = ids[i];
+                    f_titles[n] = titles[i];
+                    f_years[n] = years[i];
+                    n++;
+                }
+            }
+            return new Result(Arrays.copyOf(f_ids, n), Arrays.copyOf(f_titles, n), Arrays.copyOf(f_years, n), loadedAt);
+        }
+    }
+
+    private final int maxRows;
+    private final int maxEntryRows;
+    private final long ttlMillis;
+    private long rows = 0;
+
+    private final LinkedHashMap<String, Result> results = new LinkedHashMap<String, Result>(16, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong filteredHits = new AtomicLong();
+    private final AtomicLong oversizedHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public SearchCache(int maxRows, int maxEntryRows, long ttlMillis) {
+        this.maxRows = maxRows;
+        this.maxEntryRows = maxEntryRows;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /* results with more movies than this are not kept */
+    public int getMaxEntryRows() {
+        return maxEntryRows;
+    }
+
+    /* the movies matching term, from the cache or filtered from the result of a
+       cached substring; an oversized result (with null ids) if term has too many
+       of them, and null if the caller has to load them */
+    public synchronized Result get(String term) {
+        String t = lowerCase(term);
+        Result r = live(t);
+        if (r != null) {
+            if (r.isOversized())
+                oversizedHits.incrementAndGet();
+            else
+                hits.incrementAndGet();
+            return r;
+        }
+        for (int length = t.length() - 1; length >= 0; length--) {
+            for (int start = 0; start + length <= t.length(); start++) {
+                Result cached = live(t.substring(start, start + length));
+                if (cached != null && !cached.isOversized()) {
+                    filteredHits.incrementAndGet();
+                    r = cached.filter(t);
+                    add(t, r);
+                    return r;
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /* caches the movies matching term as read from IMDB */
+    public synchronized void put(String term, Result r) {
+        add(lowerCase(term), r);
+    }
+
+    /* term matches more than maxEntryRows movies */
+    public synchronized void putOversized(String term) {
+        add(lowerCase(term), Result.oversized(null));
+    }
+
+    private Result live(String t) {
+        Result r = results.get(t);
+        if (r != null && System.currentTimeMillis() - r.loadedAt > ttlMillis) {
+            results.remove(t);
+            rows -= cost(r);
+            expirations.incrementAndGet();
+            r = null;
+        }
+        return r;
+    }
+
+    private void add(String t, Result r) {
+        if (r.size() > maxEntryRows)
+            return;
+        Result old = results.put(t, r);
+        rows += cost(r);
+        if (old != null)
+            rows -= cost(old);
+
+        Iterator<Result> eldest = results.values().iterator();
+        while (rows > maxRows && eldest.hasNext()) {
+            rows -= cost(eldest.next());
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /* an empty result still takes an entry */
+    private static int cost(Result r) {
+        return Math.max(1, r.size());
+    }
+
+    private static String lowerCase(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++)
+            sb.append(Character.toLowerCase(s.charAt(i)));
+        return sb.toString();
+    }
+
+    /* title contains the lower-cased t, char by char like lowerCase() */
+    private static boolean containsIgnoreCase(String title, String t) {
+        if (title == null)
+            return t.length() == 0;
+        int m = t.length();
+        for (int i = 0; i + m <= title.length(); i++) {
+            int j = 0;
+            while (j < m && Character.toLowerCase(title.charAt(i + j)) == t.charAt(j))
+                j++;
+            if (j == m)
+                return true;
+        }
+        return false;
+    }
+
+    /**********************************************************/
+    /* statistics */
+
+    public String statistics() {
+        int terms;
+        long cached;
+        synchronized (this) {
+            terms = results.size();
+            cached = rows;
+        }
+        return "search cache: " + terms + " terms, " + cached + "/" + maxRows + " movies, "
+                + hits.get() + " hits, " + filteredHits.get() + " answered from a shorter term, "
+                + oversizedHits.get() + " known to be too large, "
+                + misses.get() + " misses, " + expirations.get() + " expired, " + evictions.get() + " evicted\n";
+    }
+}
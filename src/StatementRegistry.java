@@ -0,0 +1,63 @@
+import java.lang.reflect.Field;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * The statements the connections of one ConnectionPool run, by the name of the
+ * *_SQL constant that holds them, and the hot set among them.
+ *
+ * Connections prepare statements lazily, on first use (see
+ * PooledConnection.prepare). The hot set is the exception: the pool prepares
+ * it on every connection as soon as the connection is opened, including the
+ * connections opened to replace broken ones, so the statements every session
+ * needs never pay for their preparation inside a transaction.
+ */
+public class StatementRegistry {
+    private final LinkedHashMap<String, String> statements = new LinkedHashMap<String, String>();
+    private final LinkedHashSet<String> hot = new LinkedHashSet<String>();
+
+    /* registers the static String fields of c called names, e.g. "SEARCH_MOVIE_SQL" */
+    public StatementRegistry(Class<?> c, String... names) {
+        for (String name : names) {
+            try {
+                Field f = c.getDeclaredField(name);
+                f.setAccessible(true);
+                statements.put(name, (String) f.get(null));
+            } catch (Exception e) {
+                throw new IllegalArgumentException("no statement " + name + " in " + c.getName(), e);
+            }
+        }
+    }
+
+    public boolean contains(String name) {
+        return statements.containsKey(name);
+    }
+
+    public Set<String> getNames() {
+        return Collections.unmodifiableSet(statements.keySet());
+    }
+
+    /* makes the registered statements among names the hot set; the others are ignored */
+    public synchronized void setHot(Collection<String> names) {
+        hot.clear();
+        for (String name : names)
+            if (statements.containsKey(name))
+                hot.add(name);
+    }
+
+    public synchronized Set<String> getHot() {
+        return new LinkedHashSet<String>(hot);
+    }
+
+    /* prepares the hot set on pc */
+    public void warm(PooledConnection pc) throws SQLException {
+        for (String name : getHot())
+            pc.prepare(statements.get(name));
+    }
+
+    /* prepares every registered statement on pc */
+    public void prepareAll(PooledConnection pc) throws SQLException {
+        for (String sql : statements.values())
+            pc.prepare(sql);
+    }
+}
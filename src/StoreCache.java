@@ -0,0 +1,204 @@
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache in front of the PLANS and CUSTOMERS reads that run on every menu loop.
+ *
+ * Plans are loaded once and kept for the life of the process. Customer
+ * profiles (name, plan, number of open rentals) are kept in an LRU map bounded
+ * by maxProfiles and expire ttlMillis after they were loaded. Query does the
+ * loading (read-through) and reports its committed rent, return and plan
+ * changes, which update the cached profile in place.
+ *
+ * A profile loaded while another thread committed a change may already be out
+ * of date, so Query takes a stamp before loading and putProfile() drops the
+ * profile if any change was reported since.
+ */
+public class StoreCache {
+
+    public static class Plan {
+        public final int id;
+        public final String name;
+        public final int maxRentals;
+        public final int monthlyFee;
+
+        public Plan(int id, String name, int maxRentals, int monthlyFee) {
+            this.id = id;
+            this.name = name;
+            this.maxRentals = maxRentals;
+            this.monthlyFee = monthlyFee;
+        }
+    }
+
+    public static class Profile {
+        public final int cid;
+        public final String name;
+        private int planId;
+        private int openRentals;
+        private final long loadedAt;
+
+        public Profile(int cid, String name, int planId, int openRentals) {
+            this.cid = cid;
+            this.name = name;
+            this.planId = planId;
+            this.openRentals = openRentals;
+            this.loadedAt = System.currentTimeMillis();
+        }
+
+        public synchronized int getPlanId() {
+            return planId;
+        }
+
+        public synchronized int getOpenRentals() {
+            return openRentals;
+        }
+    }
+
+    private final int maxProfiles;
+    private final long ttlMillis;
+
+    private volatile List<Plan> plans = Collections.emptyList();
+    private volatile Map<Integer, Plan> plansById = Collections.emptyMap();
+
+    private final LinkedHashMap<Integer, Profile> profiles;
+    private final AtomicLong changes = new AtomicLong();
+
+    private final AtomicLong planHits = new AtomicLong();
+    private final AtomicLong planMisses = new AtomicLong();
+    private final AtomicLong profileHits = new AtomicLong();
+    private final AtomicLong profileMisses = new AtomicLong();
+    private final AtomicLong profileExpirations = new AtomicLong();
+    private final AtomicLong profileEvictions = new AtomicLong();
+
+    public StoreCache(int maxProfiles, long ttlMillis) {
+        this.maxProfiles = maxProfiles;
+        this.ttlMillis = ttlMillis;
+        this.profiles = new LinkedHashMap<Integer, Profile>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Integer, Profile> eldest) {
+                if (size() > StoreCache.this.maxProfiles) {
+                    profileEvictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**********************************************************/
+    /* plans */
+
+    public void setPlans(List<Plan> all_plans) {
+        HashMap<Integer, Plan> by_id = new HashMap<Integer, Plan>();
+        for (Plan p : all_plans)
+            by_id.put(p.id, p);
+        plansById = by_id;
+        plans = Collections.unmodifiableList(new ArrayList<Plan>(all_plans));
+    }
+
+    public List<Plan> getPlans() {
+        planHits.incrementAndGet();
+        return plans;
+    }
+
+    /* the plan, or null if there is no such plan */
+    public Plan getPlan(int pid) {
+        Plan p = plansById.get(pid);
+        if (p != null)
+            planHits.incrementAndGet();
+        else
+            planMisses.incrementAndGet();
+        return p;
+    }
+
+    /**********************************************************/
+    /* customer profiles */
+
+    /* the cached profile, or null if the caller has to load it */
+    public Profile getProfile(int cid) {
+        synchronized (profiles) {
+            Profile p = profiles.get(cid);
+            if (p != null && System.currentTimeMillis() - p.loadedAt > ttlMillis) {
+                profiles.remove(cid);
+                profileExpirations.incrementAndGet();
+                p = null;
+            }
+            if (p != null)
+                profileHits.incrementAndGet();
+            else
+                profileMisses.incrementAndGet();
+            return p;
+        }
+    }
+
+    /* taken before loading a profile from the database */
+    public long loadStamp() {
+        return changes.get();
+    }
+
+    public void putProfile(Profile p, long stamp) {
+        synchronized (profiles) {
+            if (changes.get() == stamp)
+                profiles.put(p.cid, p);
+        }
+    }
+
+    /**********************************************************/
+    /* committed changes */
+
+    public void rentalOpened(int cid) {
+        adjustOpenRentals(cid, 1);
+    }
+
+    public void rentalClosed(int cid) {
+        adjustOpenRentals(cid, -1);
+    }
+
+    public void planChanged(int cid, int pid) {
+        changes.incrementAndGet();
+        Profile p = peek(cid);
+        if (p != null) {
+            synchronized (p) {
+                p.planId = pid;
+            }
+        }
+    }
+
+    /* the outcome of a transaction for cid is unknown; reload on next use */
+    public void invalidate(int cid) {
+        changes.incrementAndGet();
+        synchronized (profiles) {
+            profiles.remove(cid);
+        }
+    }
+
+    private void adjustOpenRentals(int cid, int delta) {
+        changes.incrementAndGet();
+        Profile p = peek(cid);
+        if (p != null) {
+            synchronized (p) {
+                p.openRentals += delta;
+            }
+        }
+    }
+
+    private Profile peek(int cid) {
+        synchronized (profiles) {
+            return profiles.get(cid);
+        }
+    }
+
+    /**********************************************************/
+    /* statistics */
+
+    public String statistics() {
+        int cached;
+        synchronized (profiles) {
+            cached = profiles.size();
+        }
+        return "plans: " + plans.size() + " cached, "
+                + planHits.get() + " hits, " + planMisses.get() + " misses\n"
+                + "profiles: " + cached + "/" + maxProfiles + " cached, "
+                + profileHits.get() + " hits, " + profileMisses.get() + " misses, "
+                + profileExpirations.get() + " expired, " + profileEvictions.get() + " evicted";
+    }
+}
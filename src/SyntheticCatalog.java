@@ -0,0 +1,232 @@
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Loads a synthetic, IMDB-shaped dataset for benchmarking into the databases
+ * named by a dbconn.properties-style file, normally a local SQL Server rather
+ * than the shared SQL Azure instance:
+ *
+ *   java SyntheticCatalog <config file> <movies> [customers] [seed]
+ *
+ * The IMDB database gets MOVIE, DIRECTORS, MOVIE_DIRECTORS, ACTOR and CASTS
+ * (about movies/10 directors, 2 * movies actors, 1-2 directors and 4-12 actors
+ * per movie) with titles made from WORDS. The customer database is reset with
+ * drop.sql, setup.sql and the migrations (see Migrator), plus customers
+ * 9..customers on the biggest plan (login and password bench<id>); all
+ * passwords end up hashed (see PasswordHash).
+ * Both URLs may point at the same database.
+ */
+public class SyntheticCatalog {
+
+    /* title words; benchmarks search for these */
+    public static final String[] WORDS = {
+        "the", "god", "father", "star", "wars", "night", "day", "love", "story", "dark",
+        "knight", "return", "king", "lord", "ring", "man", "woman", "city", "lost", "world",
+        "last", "first", "blue", "red", "house", "river", "war", "peace", "ghost", "dream"
+    };
+
+    private static final String[] FIRST_NAMES = {
+        "Al", "Anna", "Ben", "Carla", "Dan", "Eva", "Frank", "Grace", "Hugo", "Ida",
+        "Jack", "Kate", "Leo", "Mia", "Ned", "Olga", "Paul", "Rita", "Sam", "Tina"
+    };
+
+    private static final String[] LAST_NAMES = {
+        "Adams", "Brown", "Clark", "Davis", "Evans", "Fox", "Green", "Hill", "Irving", "Jones",
+        "King", "Lee", "Moore", "Nolan", "Owens", "Price", "Quinn", "Reed", "Smith", "Young"
+    };
+
+    private static final int BATCH = 1000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: java SyntheticCatalog <config file> <movies> [customers] [seed]");
+            System.exit(1);
+        }
+        Properties props = new Properties();
+        props.load(new FileInputStream(args[0]));
+        int movies = Integer.parseInt(args[1]);
+        int customers = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 544;
+
+        Class.forName(props.getProperty("videostore.jdbc_driver").trim());
+        String user = props.getProperty("videostore.sqlazure_username");
+        String password = props.getProperty("videostore.sqlazure_password");
+
+        Connection imdb = DriverManager.getConnection(props.getProperty("videostore.imdb_url"), user, password);
+        try {
+            loadCatalog(imdb, movies, new Random(seed));
+        } finally {
+            imdb.close();
+        }
+
+        Connection customer = DriverManager.getConnection(props.getProperty("videostore.customer_url"), user, password);
+        try {
+            File dir = new File(args[0]).getAbsoluteFile().getParentFile();
+            runScript(customer, new File(dir, "drop.sql"), true);
+            runScript(customer, new File(dir, "setup.sql"), false);
+            Migrator.migrate(customer, Migrator.directory(new File(args[0])));
+            addCustomers(customer, customers);
+        } finally {
+            customer.close();
+        }
+        System.out.println("loaded " + movies + " movies and " + Math.max(customers, 8) + " customers");
+    }
+
+    private static void loadCatalog(Connection c, int movies, Random random) throws SQLException {
+        Statement st = c.createStatement();
+        String[] tables = { "CASTS", "MOVIE_DIRECTORS", "ACTOR", "DIRECTORS", "MOVIE" };
+        for (String table : tables)
+            st.executeUpdate("IF OBJECT_ID('" + table + "') IS NOT NULL DROP TABLE " + table);
+        st.executeUpdate("CREATE TABLE MOVIE (id int PRIMARY KEY CLUSTERED, name varchar(150), year int)");
+        st.executeUpdate("CREATE TABLE DIRECTORS (id int PRIMARY KEY CLUSTERED, fname varchar(30), lname varchar(30))");
+        st.executeUpdate("CREATE TABLE MOVIE_DIRECTORS (did int, mid int)");
+        st.executeUpdate("CREATE TABLE ACTOR (id int PRIMARY KEY CLUSTERED, fname varchar(30), lname varchar(30), gender char(1))");
+        st.executeUpdate("CREATE TABLE CASTS (pid int, mid int, role varchar(50))");
+        st.close();
+
+        int directors = Math.max(movies / 10, 1);
+        int actors = Math.max(movies * 2, 1);
+        c.setAutoCommit(false);
+
+        PreparedStatement ps = c.prepareStatement("INSERT INTO MOVIE VALUES (?, ?, ?)");
+        for (int id = 1; id <= movies; id++) {
+            ps.setInt(1, id);
+            ps.setString(2, title(random));
+            ps.setInt(3, 1920 + random.nextInt(100));
+            addBatch(c, ps, id);
+        }
+        flush(c, ps);
+
+        ps = c.prepareStatement("INSERT INTO DIRECTORS VALUES (?, ?, ?)");
+        for (int id = 1; id <= directors; id++) {
+            ps.setInt(1, id);
+            ps.setString(2, FIRST_NAMES[random.nextInt(FIRST_NAMES.length)]);
+            ps.setString(3, LAST_NAMES[random.nextInt(LAST_NAMES.length)] + id);
+            addBatch(c, ps, id);
+        }
+        flush(c, ps);
+
+        ps = c.prepareStatement("INSERT INTO ACTOR VALUES (?, ?, ?, ?)");
+        for (int id = 1; id <= actors; id++) {
+            ps.setInt(1, id);
+            ps.setString(2, FIRST_NAMES[random.nextInt(FIRST_NAMES.length)]);
+            ps.setString(3, LAST_NAMES[random.nextInt(LAST_NAMES.length)] + id);
+            ps.setString(4, random.nextBoolean() ? "M" : "F");
+            addBatch(c, ps, id);
+        }
+        flush(c, ps);
+
+        ps = c.prepareStatement("INSERT INTO MOVIE_DIRECTORS VALUES (?, ?)");
+        int rows = 0;
+        for (int mid = 1; mid <= movies; mid++) {
+            for (int i = 1 + random.nextInt(2); i > 0; i--) {
+                ps.setInt(1, 1 + random.nextInt(directors));
+                ps.setInt(2, mid);
+                addBatch(c, ps, ++rows);
+            }
+        }
+        flush(c, ps);
+
+        ps = c.prepareStatement("INSERT INTO CASTS VALUES (?, ?, ?)");
+        rows = 0;
+        for (int mid = 1; mid <= movies; mid++) {
+            for (int i = 4 + random.nextInt(9); i > 0; i--) {
+                ps.setInt(1, 1 + random.nextInt(actors));
+                ps.setInt(2, mid);
+                ps.setString(3, "role " + i);
+                addBatch(c, ps, ++rows);
+            }
+        }
+        flush(c, ps);
+
+        st = c.createStatement();
+        st.executeUpdate("CREATE INDEX MOVIE_DIRECTORS_mid ON MOVIE_DIRECTORS (mid)");
+        st.executeUpdate("CREATE INDEX CASTS_mid ON CASTS (mid)");
+        st.close();
+        c.commit();
+        c.setAutoCommit(true);
+    }
+
+    private static String title(Random random) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 1 + random.nextInt(4); i > 0; i--) {
+            if (sb.length() > 0)
+                sb.append(' ');
+            String w = WORDS[random.nextInt(WORDS.length)];
+            sb.append(Character.toUpperCase(w.charAt(0))).append(w.substring(1));
+        }
+        return sb.toString();
+    }
+
+    private static void addBatch(Connection c, PreparedStatement ps, int row) throws SQLException {
+        ps.addBatch();
+        if (row % BATCH == 0) {
+            ps.executeBatch();
+            c.commit();
+        }
+    }
+
+    private static void flush(Connection c, PreparedStatement ps) throws SQLException {
+        ps.executeBatch();
+        c.commit();
+        ps.close();
+    }
+
+    private static void addCustomers(Connection c, int customers) throws SQLException {
+        PreparedStatement ps = c.prepareStatement(
+                "INSERT INTO CUSTOMERS (id, login, password, password_hash, fname, lname, plan_id, open_rentals) " +
+                "VALUES (?, ?, '', ?, ?, ?, 4, 0)");
+        for (int id = 9; id <= customers; id++) {
+            ps.setInt(1, id);
+            ps.setString(2, "bench" + id);
+            ps.setString(3, PasswordHash.hash("bench" + id, PasswordHash.DEFAULT_ITERATIONS));
+            ps.setString(4, "bench");
+            ps.setString(5, "customer" + id);
+            ps.addBatch();
+        }
+        ps.executeBatch();
+        ps.close();
+        /* and the customers of setup.sql */
+        PasswordHash.upgradeAll(c, PasswordHash.DEFAULT_ITERATIONS);
+    }
+
+    /* runs the ;-separated statements of a script, skipping its comments */
+    static void runScript(Connection c, File file, boolean ignoreErrors) throws IOException, SQLException {
+        Statement st = c.createStatement();
+        try {
+            for (String sql : statements(file)) {
+                try {
+                    st.execute(sql);
+                } catch (SQLException e) {
+                    if (!ignoreErrors)
+                        throw e;
+                }
+            }
+        } finally {
+            st.close();
+        }
+    }
+
+    static List<String> statements(File file) throws IOException {
+        StringBuilder text = new StringBuilder();
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = r.readLine()) != null)
+                text.append(line).append('\n');
+        } finally {
+            r.close();
+        }
+        String sql = text.toString()
+                .replaceAll("(?s)/\\*.*?\\*/", "")
+                .replaceAll("--[^\n]*", "");
+
+        ArrayList<String> statements = new ArrayList<String>();
+        for (String s : sql.split(";")) {
+            if (s.trim().length() > 0)
+                statements.add(s.trim());
+        }
+        return statements;
+    }
+}
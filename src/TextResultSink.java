@@ -0,0 +1,59 @@
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * The console format VideoStore has always printed: one line per movie, one
+ * per director and actor, and (search only) one for the status, followed by
+ * an empty line.
+ */
+public class TextResultSink extends BufferedResultSink {
+    private boolean search;
+
+    public TextResultSink(Writer writer) {
+        super(writer);
+    }
+
+    public void begin(String transaction, String term) {
+        search = transaction.equals("search");
+    }
+
+    public void movie(int id, String title, String year) throws IOException {
+        append(search ? " ID: " : "ID: ");
+        append(id);
+        append(" NAME: ");
+        append(title);
+        append(" YEAR: ");
+        append(year);
+        append('\n');
+    }
+
+    public void director(String lname, String fname) throws IOException {
+        person("\t\tDirector: ", lname, fname);
+    }
+
+    public void actor(String lname, String fname) throws IOException {
+        person("\t\tActor: ", lname, fname);
+    }
+
+    private void person(String label, String lname, String fname) throws IOException {
+        append(label);
+        append(lname);
+        append(' ');
+        append(fname);
+        append('\n');
+    }
+
+    public void status(int status) throws IOException {
+        if (status == STATUS_AVAILABLE)
+            append("\t\tStatus: AVAILABLE\n");
+        else if (status == STATUS_YOU_HAVE_IT)
+            append("\t\tStatus: YOU HAVE IT\n");
+        else
+            append("\t\tStatus: UNAVAILABLE\n");
+    }
+
+    public void end() throws IOException {
+        append('\n');
+        super.end();
+    }
+}
@@ -0,0 +1,269 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.sql.*;
+import java.util.Arrays;
+
+/**
+ * Trigram index over the lower-cased MOVIE titles, used to answer
+ * name LIKE '%term%' without scanning MOVIE.
+ *
+ * Every title is cut into overlapping three-character grams, each gram is
+ * hashed into one of BUCKETS buckets, and each bucket lists (in id order) the
+ * titles containing one of its grams. A lookup takes the smallest bucket among
+ * the term's grams and checks each of those titles for the term itself, so
+ * hash collisions only cost time, never correctness. Terms shorter than three
+ * characters check every title.
+ *
+ * Ids, titles and postings live in a memory-mapped file, not on the heap:
+ *   header   MAGIC, movies, buckets, postings, chars
+ *   ids      int[movies]          ascending movie ids
+ *   titles   int[movies + 1]      offsets into chars
+ *   buckets  int[BUCKETS + 1]     offsets into postings
+ *   postings int[postings]        row numbers, ascending within a bucket
+ *   chars    char[chars]          lower-cased titles
+ */
+public class TitleIndex {
+    private static final int MAGIC = 0x54495831;   // "TIX1"
+    private static final int HEADER_INTS = 5;
+    private static final int BUCKETS = 1 << 21;
+    private static final int GRAM = 3;
+
+    private final int movies;
+    private final IntBuffer ids;
+    private final IntBuffer titleOffsets;
+    private final IntBuffer bucketOffsets;
+    private final IntBuffer postings;
+    private final CharBuffer chars;
+    private final long sizeInBytes;
+
+    private TitleIndex(MappedByteBuffer map) {
+        IntBuffer header = map.asIntBuffer();
+        if (header.get(0) != MAGIC)
+            throw new IllegalStateException("not a title index file");
+        movies = header.get(1);
+        int buckets = header.get(2);
+        int posting_count = header.get(3);
+        int char_count = header.get(4);
+        if (buckets != BUCKETS)
+            throw new IllegalStateException("title index was built with " + buckets + " buckets");
+
+        int pos = HEADER_INTS * 4;
+        ids = slice(map, pos, movies).asIntBuffer();
+        pos += movies * 4;
+        titleOffsets = slice(map, pos, movies + 1).asIntBuffer();
+        pos += (movies + 1) * 4;
+        bucketOffsets = slice(map, pos, BUCKETS + 1).asIntBuffer();
+        pos += (BUCKETS + 1) * 4;
+        postings = slice(map, pos, posting_count).asIntBuffer();
+        pos += posting_count * 4;
+        ByteBuffer char_bytes = map.duplicate();
+        char_bytes.position(pos);
+        char_bytes.limit(pos + char_count * 2);
+        chars = char_bytes.slice().asCharBuffer();
+        sizeInBytes = map.capacity();
+    }
+
+    private static ByteBuffer slice(MappedByteBuffer map, int pos, int ints) {
+        ByteBuffer b = map.duplicate();
+        b.position(pos);
+        b.limit(pos + ints * 4);
+        return b.slice();
+    }
+
+    public int size() {
+        return movies;
+    }
+
+    public long sizeInBytes() {
+        return sizeInBytes;
+    }
+
+    /**********************************************************/
+    /* building */
+
+    /* reads (id, name) rows ordered by id, writes the index to file and maps it */
+    public static TitleIndex build(ResultSet title_set, File file) throws SQLException, IOException {
+        IntArray ids = new IntArray(1 << 16);
+        IntArray offsets = new IntArray(1 << 16);
+        StringBuilder all_chars = new StringBuilder(1 << 20);
+        offsets.add(0);
+        while (title_set.next()) {
+            ids.add(title_set.getInt(1));
+            String name = title_set.getString(2);
+            if (name != null)
+                appendLowerCase(all_chars, name);
+            offsets.add(all_chars.length());
+        }
+        int n = ids.size;
+
+        /* pass 1: how many titles land in each bucket (each title once per bucket) */
+        int[] bucket_offsets = new int[BUCKETS + 1];
+        int[] last_row = new int[BUCKETS];
+        Arrays.fill(last_row, -1);
+        for (int row = 0; row < n; row++) {
+            int start = offsets.data[row], end = offsets.data[row + 1];
+            for (int i = start; i + GRAM <= end; i++) {
+                int b = bucket(all_chars.charAt(i), all_chars.charAt(i + 1), all_chars.charAt(i + 2));
+                if (last_row[b] != row) {
+                    last_row[b] = row;
+                    bucket_offsets[b + 1]++;
+                }
+            }
+        }
+        for (int b = 0; b < BUCKETS; b++)
+            bucket_offsets[b + 1] += bucket_offsets[b];
+        int posting_count = bucket_offsets[BUCKETS];
+
+        long bytes = 4L * (HEADER_INTS + n + (n + 1) + (BUCKETS + 1) + posting_count) + 2L * all_chars.length();
+        if (bytes > Integer.MAX_VALUE)
+            throw new IOException("title index would need " + bytes + " bytes");
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+
+            IntBuffer out = map.asIntBuffer();
+            out.put(MAGIC).put(n).put(BUCKETS).put(posting_count).put(all_chars.length());
+            out.put(ids.data, 0, n);
+            out.put(offsets.data, 0, n + 1);
+            out.put(bucket_offsets);
+
+            /* pass 2: fill the postings, straight into the mapped file */
+            int postings_start = out.position();
+            int[] fill = new int[BUCKETS];
+            System.arraycopy(bucket_offsets, 0, fill, 0, BUCKETS);
+            Arrays.fill(last_row, -1);
+            for (int row = 0; row < n; row++) {
+                int start = offsets.data[row], end = offsets.data[row + 1];
+                for (int i = start; i + GRAM <= end; i++) {
+                    int b = bucket(all_chars.charAt(i), all_chars.charAt(i + 1), all_chars.charAt(i + 2));
+                    if (last_row[b] != row) {
+                        last_row[b] = row;
+                        out.put(postings_start + fill[b]++, row);
+                    }
+                }
+            }
+
+            ByteBuffer char_bytes = map.duplicate();
+            char_bytes.position(4 * (postings_start + posting_count));
+            char_bytes.slice().asCharBuffer().put(all_chars.toString());
+
+            map.force();
+            map.position(0);
+            return new TitleIndex(map);
+        } finally {
+            raf.close();   // the mapping stays valid after the channel is closed
+        }
+    }
+
+    /* maps an index written earlier by build() */
+    public static TitleIndex open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return new TitleIndex(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**********************************************************/
+    /* lookups */
+
+    /* true if term can be answered here with the same result as LIKE '%term%';
+       terms using LIKE wildcards or escapes are left to the database */
+    public static boolean canAnswer(String term) {
+        return term.indexOf('%') < 0 && term.indexOf('_') < 0 && term.indexOf('[') < 0;
+    }
+
+    /* ids of the movies whose title contains term (ignoring case), ascending */
+    public int[] find(String term) {
+        String t = lowerCase(term);
+        IntArray hits = new IntArray(64);
+
+        if (t.length() < GRAM) {
+            for (int row = 0; row < movies; row++) {
+                if (contains(row, t))
+                    hits.add(ids.get(row));
+            }
+            return hits.toArray();
+        }
+
+        /* the smallest bucket among the term's grams holds every candidate */
+        int best = -1, best_size = Integer.MAX_VALUE;
+        for (int i = 0; i + GRAM <= t.length(); i++) {
+            int b = bucket(t.charAt(i), t.charAt(i + 1), t.charAt(i + 2));
+            int size = bucketOffsets.get(b + 1) - bucketOffsets.get(b);
+            if (size < best_size) {
+                best = b;
+                best_size = size;
+            }
+        }
+        for (int p = bucketOffsets.get(best), end = bucketOffsets.get(best + 1); p < end; p++) {
+            int row = postings.get(p);
+            if (contains(row, t))
+                hits.add(ids.get(row));
+        }
+        return hits.toArray();
+    }
+
+    private boolean contains(int row, String t) {
+        int start = titleOffsets.get(row), end = titleOffsets.get(row + 1);
+        int m = t.length();
+        if (m == 0)
+            return true;
+        char first = t.charAt(0);
+        for (int i = start; i + m <= end; i++) {
+            if (chars.get(i) != first)
+                continue;
+            int j = 1;
+            while (j < m && chars.get(i + j) == t.charAt(j))
+                j++;
+            if (j == m)
+                return true;
+        }
+        return false;
+    }
+
+    private static int bucket(char a, char b, char c) {
+        int h = (a * 31 + b) * 31 + c;
+        h *= 0x9E3779B9;
+        return (h ^ (h >>> 15)) & (BUCKETS - 1);
+    }
+
+    private static String lowerCase(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        appendLowerCase(sb, s);
+        return sb.toString();
+    }
+
+    /* char-by-char so that offsets match the original title exactly */
+    private static void appendLowerCase(StringBuilder sb, String s) {
+        for (int i = 0; i < s.length(); i++)
+            sb.append(Character.toLowerCase(s.charAt(i)));
+    }
+
+    /* growable int array, to avoid boxing while building; CatalogSnapshot.Builder uses it too */
+    static class IntArray {
+        int[] data;
+        int size = 0;
+
+        IntArray(int capacity) {
+            data = new int[capacity];
+        }
+
+        void add(int v) {
+            if (size == data.length)
+                data = Arrays.copyOf(data, size * 2);
+            data[size++] = v;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+import java.sql.*;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The lower-cased MOVIE titles on the heap, for answering name LIKE '%term%'
+ * by scanning all of them on every core instead of asking IMDB.
+ *
+ * Titles are packed into one char array (the arena), in id order, each
+ * followed by SEPARATOR so a match can never span two titles; row r is
+ * arena[offsets[r], offsets[r + 1] - 1) and belongs to movie ids[r]. A scan
+ * walks the arena with a plain loop looking for the term's first char, which
+ * the JIT turns into tight (and where it can, vectorized) code, and only then
+ * compares the rest and works out which row it is in.
+ *
+ * find() splits the rows into slices of about SLICE_CHARS chars and scans
+ * them as fork/join tasks; each task returns its hits in id order and the
+ * halves are concatenated, so the result is in id order without sorting.
+ * Unlike TitleIndex there is nothing to build beyond the copy, and every term
+ * costs the same full scan, whatever its length.
+ */
+public class TitleScan {
+    private static final char SEPARATOR = '\u0000';
+    private static final int SLICE_CHARS = 1 << 16;
+    private static final int[] NO_HITS = new int[0];
+
+    private final int[] ids;
+    private final int[] offsets;
+    private final char[] arena;
+    private final ForkJoinPool pool;
+
+    private TitleScan(int[] ids, int[] offsets, char[] arena, ForkJoinPool pool) {
+        this.ids = ids;
+        this.offsets = offsets;
+        this.arena = arena;
+        this.pool = pool;
+    }
+
+    /* reads (id, name) rows ordered by id; find() runs on threads workers (0: one per core) */
+    public static TitleScan build(ResultSet title_set, int threads) throws SQLException {
+        int[] ids = new int[1 << 16];
+        int[] offsets = new int[(1 << 16) + 1];
+        StringBuilder all_chars = new StringBuilder(1 << 20);
+        int n = 0;
+        while (title_set.next()) {
+            if (n + 1 == offsets.length) {
+                ids = Arrays.copyOf(ids, 2 * n);
+                offsets = Arrays.copyOf(offsets, 2 * n + 1);
+            }
+            ids[n] = title_set.getInt(1);
+            String name = title_set.getString(2);
+            if (name != null) {
+                /* char-by-char so that offsets match the original title exactly */
+                for (int i = 0; i < name.length(); i++)
+                    all_chars.append(Character.toLowerCase(name.charAt(i)));
+            }
+            all_chars.append(SEPARATOR);
+            offsets[++n] = all_chars.length();
+        }
+        char[] arena = new char[all_chars.length()];
+        all_chars.getChars(0, arena.length, arena, 0);
+        return new TitleScan(Arrays.copyOf(ids, n), Arrays.copyOf(offsets, n + 1), arena,
+                new ForkJoinPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors()));
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    public long sizeInBytes() {
+        return 4L * (ids.length + offsets.length) + 2L * arena.length;
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /* stops the worker threads */
+    public void close() {
+        pool.shutdown();
+    }
+
+    /* ids of the movies whose title contains term (ignoring case), ascending;
+       term must pass TitleIndex.canAnswer */
+    public int[] find(String term) {
+        return find(term, pool);
+    }
+
+    /* the same, on the workers of another pool (used to measure scaling) */
+    public int[] find(String term, ForkJoinPool on) {
+        char[] t = new char[term.length()];
+        for (int i = 0; i < t.length; i++)
+            t[i] = Character.toLowerCase(term.charAt(i));
+        if (t.length == 0)
+            return ids.clone();
+        for (char c : t) {
+            if (c == SEPARATOR)
+                return NO_HITS;
+        }
+        return on.invoke(new Slice(t, 0, ids.length));
+    }
+
+    /* the rows [from, to) */
+    private class Slice extends RecursiveTask<int[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final char[] t;
+        private final int from, to;
+
+        Slice(char[] t, int from, int to) {
+            this.t = t;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected int[] compute() {
+            if (to - from < 2 || offsets[to] - offsets[from] <= SLICE_CHARS)
+                return scan(t, from, to);
+            int mid = (from + to) >>> 1;
+            Slice right = new Slice(t, mid, to);
+            right.fork();
+            int[] left_hits = new Slice(t, from, mid).compute();
+            int[] right_hits = right.join();
+            if (right_hits.length == 0)
+                return left_hits;
+            if (left_hits.length == 0)
+                return right_hits;
+            int[] hits = Arrays.copyOf(left_hits, left_hits.length + right_hits.length);
+            System.arraycopy(right_hits, 0, hits, left_hits.length, right_hits.length);
+            return hits;
+        }
+    }
+
+    private int[] scan(char[] t, int from, int to) {
+        final char[] a = arena;
+        final char first = t[0];
+        final int m = t.length;
+        int[] hits = NO_HITS;
+        int count = 0;
+        int row = from;
+        int pos = offsets[from];
+        final int last = offsets[to] - m;   // the last position a match can start at
+        while (pos <= last) {
+            if (a[pos] != first) {
+                pos++;
+                continue;
+            }
+            int j = 1;
+            while (j < m && a[pos + j] == t[j])
+                j++;
+            if (j < m) {
+                pos++;
+                continue;
+            }
+            /* the separator stops a match, so it lies within one row; find it and skip the rest of it */
+            while (offsets[row + 1] <= pos)
+                row++;
+            if (count == hits.length)
+                hits = Arrays.copyOf(hits, Math.max(16, 2 * count));
+            hits[count++] = ids[row];
+            pos = offsets[++row];
+        }
+        return count == hits.length ? hits : Arrays.copyOf(hits, count);
+    }
+}
@@ -0,0 +1,137 @@
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a transaction, and runs it again when the database aborted it for a
+ * reason that is worth retrying (deadlock victim, serialization failure, lock
+ * timeout, transient SQL Azure errors). Between attempts it sleeps for an
+ * exponentially growing, fully jittered delay. Each transaction type keeps
+ * counters of attempts, retries, successes and aborts.
+ *
+ * A retried transaction starts over from scratch on a fresh connection, so
+ * the work must not keep state from a failed attempt.
+ */
+public class TransactionExecutor {
+
+    public interface Work<T> {
+        T run() throws Exception;
+    }
+
+    // SQL Server error codes after which the whole transaction was rolled back
+    // and may simply be run again
+    private static final Set<Integer> RETRYABLE_ERRORS = new HashSet<Integer>(Arrays.asList(
+            1205,   // chosen as deadlock victim
+            1222,   // lock request time out
+            3960,   // snapshot isolation update conflict
+            40197,  // SQL Azure: error processing the request
+            40501,  // SQL Azure: service busy
+            40613,  // SQL Azure: database not currently available
+            49918, 49919, 49920));  // SQL Azure: too many requests
+
+    // SQLState class 40: transaction rollback (40001 = serialization failure)
+    private static final String SQLSTATE_TRANSACTION_ROLLBACK = "40";
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final ConcurrentHashMap<String, Counters> counters = new ConcurrentHashMap<String, Counters>();
+
+    private static class Counters {
+        final AtomicLong attempts = new AtomicLong();
+        final AtomicLong retries = new AtomicLong();
+        final AtomicLong successes = new AtomicLong();
+        final AtomicLong aborts = new AtomicLong();    // retryable, but out of attempts
+        final AtomicLong failures = new AtomicLong();  // not retryable
+    }
+
+    public TransactionExecutor(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+        if (maxAttempts < 1)
+            throw new IllegalArgumentException("max attempts must be at least 1: " + maxAttempts);
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    public <T> T execute(String type, Work<T> work) throws Exception {
+        Counters c = countersFor(type);
+        for (int attempt = 1; ; attempt++) {
+            c.attempts.incrementAndGet();
+            try {
+                T result = work.run();
+                c.successes.incrementAndGet();
+                return result;
+            } catch (Exception e) {
+                if (!isRetryable(e)) {
+                    c.failures.incrementAndGet();
+                    throw e;
+                }
+                if (attempt >= maxAttempts) {
+                    c.aborts.incrementAndGet();
+                    throw e;
+                }
+                c.retries.incrementAndGet();
+                Thread.sleep(backoff(attempt));
+            }
+        }
+    }
+
+    /* true if e, or an exception chained to it, says the transaction can be rerun */
+    public static boolean isRetryable(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SQLException) {
+                for (SQLException s = (SQLException) t; s != null; s = s.getNextException()) {
+                    if (RETRYABLE_ERRORS.contains(s.getErrorCode()))
+                        return true;
+                    String state = s.getSQLState();
+                    if (state != null && state.startsWith(SQLSTATE_TRANSACTION_ROLLBACK))
+                        return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /* "full jitter": uniform in [0, min(max, base * 2^(attempt-1))] */
+    private long backoff(int attempt) {
+        long ceiling = baseDelayMillis << Math.min(attempt - 1, 20);
+        if (ceiling > maxDelayMillis || ceiling <= 0)
+            ceiling = maxDelayMillis;
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    private Counters countersFor(String type) {
+        Counters c = counters.get(type);
+        if (c == null) {
+            counters.putIfAbsent(type, new Counters());
+            c = counters.get(type);
+        }
+        return c;
+    }
+
+    /* attempts of type run again after a retryable abort */
+    public long getRetries(String type) {
+        return countersFor(type).retries.get();
+    }
+
+    /* runs of type that were still aborted on their last attempt */
+    public long getAborts(String type) {
+        return countersFor(type).aborts.get();
+    }
+
+    public String statistics() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Counters> e : new TreeMap<String, Counters>(counters).entrySet()) {
+            Counters c = e.getValue();
+            sb.append("transaction ").append(e.getKey()).append(": ")
+                    .append(c.attempts.get()).append(" attempts, ")
+                    .append(c.successes.get()).append(" succeeded, ")
+                    .append(c.retries.get()).append(" retried, ")
+                    .append(c.aborts.get()).append(" aborted after ").append(maxAttempts).append(" attempts, ")
+                    .append(c.failures.get()).append(" failed\n");
+        }
+        return sb.toString();
+    }
+}
@@ -1,111 +1,190 @@
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
 import java.util.StringTokenizer;
 
 public class VideoStore {
 	private static final String DBCONFIG_FILENAME = "dbconn.properties";
 
-	public static void usage() {
+	/* where a paged search or fastsearch left off, for "next" (one per session) */
+	public static class Cursor {
+		String command = null;
+		String movie_title;
+		int after_mid = -1;
+	}
+
+	public static void usage(PrintStream out) {
 		/* prints the choices for commands and parameters */
-		System.out.println();
-		System.out.println(" *** Please enter one of the following commands *** ");
-		System.out.println("> search <movie title>");
-		System.out.println("> plan [<plan id>]");
-		System.out.println("> rent <movie id>");
-		System.out.println("> return <movie id>");
-		System.out.println("> fastsearch <movie title>");
-		System.out.println("> quit");
+		out.println();
+		out.println(" *** Please enter one of the following commands *** ");
+		out.println("> search <movie title>");
+		out.println("> plan [<plan id>]");
+		out.println("> rent <movie id> [<movie id>...]");
+		out.println("> return <movie id> [<movie id>...]");
+		out.println("> fastsearch <movie title>");
+		out.println("> next");
+		out.println("> me");
+		out.println("> stats");
+		out.println("> metrics");
+		out.println("> quit");
 	}
 
 	public static void menu(int cid, Query q) throws Exception {
 		/* cid = customer id (obtained from the command line) */
 
 		/* prepare to read the user's command and parameter(s) */
+		BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
+		Cursor cursor = new Cursor();
 		String response = null;
 
 		while (true) {
-			usage();
+			usage(System.out);
 
-			BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
 			/* before prompting the user, tell her/him how many movies he can still rent */
 			q.transaction_printPersonalData(cid);
 			System.out.print("> ");
 
 			response = r.readLine();
-			if (response.trim().length() == 0) {
-				System.out.println("Sorry, please give a command");
-				continue; // back to top of loop
-			}
+			if (response == null || response.trim().equals("quit"))
+				return;
+			command(cid, q, cursor, response, System.out);
+		}
+	}
+
+	/* runs one command line for customer cid; everything it prints goes to out.
+	   Also used by VideoStoreServer, which sends the transactions' own output
+	   to the same stream (see Query.setOutput) */
+	public static void command(int cid, Query q, Cursor cursor, String response, PrintStream out) throws Exception {
+		if (response.trim().length() == 0) {
+			out.println("Sorry, please give a command");
+			return;
+		}
 
-			StringTokenizer st = new StringTokenizer(response);
-			String t = st.nextToken();
+		StringTokenizer st = new StringTokenizer(response);
+		String t = st.nextToken();
 
-			if (t.equals("search")) {
-				/* search for a movie whose title matches a string */
-				if (st.hasMoreTokens()) {
-					String movie_title = st.nextToken("\n").trim(); /* read the rest of the line */
-					System.out.println("Searching for the movie '"
-									   + movie_title + "'");
+		if (t.equals("search")) {
+			/* search for a movie whose title matches a string */
+			if (st.hasMoreTokens()) {
+				String movie_title = st.nextToken("\n").trim(); /* read the rest of the line */
+				out.println("Searching for the movie '"
+							+ movie_title + "'");
+				if (q.getPageSize() > 0)
+					page(cid, q, cursor, "search", movie_title, -1, out);
+				else
 					q.transaction_search(cid, movie_title);
-				} else {
-					System.out.println("Error: need to type in movie title");
-				}
+			} else {
+				out.println("Error: need to type in movie title");
 			}
-			else if (t.equals("plan")) {
-				/* choose a new rental plan, or, if none is given, then list all available plans */
-				if (st.hasMoreTokens()) {
-					int plan_id = Integer.parseInt(st.nextToken());
-					/* need to check that plan_id is a valid plan id in the database, */
-					/* if yes, then set the new plan for the current customer */
-					/* if not, then list all available plans */
-					boolean correct_plan = q.isValidPlan(plan_id);
-					if (correct_plan) {
-						System.out.println("Switching to plan " + plan_id);
-						q.transaction_choosePlan(cid, plan_id);
-					} else {
-						System.out.println("Incorrect plan id " + plan_id);
-						System.out.println("Available plans are:");
-						q.transaction_listPlans();
-					}
+		}
+		else if (t.equals("plan")) {
+			/* choose a new rental plan, or, if none is given, then list all available plans */
+			if (st.hasMoreTokens()) {
+				int plan_id = Integer.parseInt(st.nextToken());
+				/* need to check that plan_id is a valid plan id in the database, */
+				/* if yes, then set the new plan for the current customer */
+				/* if not, then list all available plans */
+				boolean correct_plan = q.isValidPlan(plan_id);
+				if (correct_plan) {
+					out.println("Switching to plan " + plan_id);
+					q.transaction_choosePlan(cid, plan_id);
 				} else {
-					System.out.println("Available plans:");
+					out.println("Incorrect plan id " + plan_id);
+					out.println("Available plans are:");
 					q.transaction_listPlans();
 				}
+			} else {
+				out.println("Available plans:");
+				q.transaction_listPlans();
 			}
-			else if (t.equals("rent")) {
-				/* rent the movie with the given movie id */
-				int mid = Integer.parseInt(st.nextToken());
-				System.out.println("Renting the movie id " + mid);
-				q.transaction_rent(cid, mid);
-			}
-			else if (t.equals("return")) {
-				/* return a movie previously rented */
-				int mid = Integer.parseInt(st.nextToken());
-				/* return the movie with mid */
-				System.out.println("Returning the movie id " + mid);
-				q.transaction_return(cid, mid);
-			}
-			else if (t.equals("fastsearch")) {
-				/* same as search, only faster (and single words only) */
-				if (st.hasMoreTokens()) {
-                    String movie_title = st.nextToken("\n").trim(); /* read the rest of the line */
-					System.out.println("Fast Searching for the movie '"
-									   + movie_title + "'");
-                    q.transaction_fastSearch(cid, movie_title);
-
-				} else {
-					System.out
-						.println("Error: need to type in movie title");
-				}
+		}
+		else if (t.equals("rent")) {
+			/* rent the movie with the given movie id; several ids are rented together or not at all */
+			int[] mids = movieIds(st);
+			if (mids.length == 1) {
+				out.println("Renting the movie id " + mids[0]);
+				q.transaction_rent(cid, mids[0]);
+			} else {
+				out.println("Renting the movie ids " + Arrays.toString(mids));
+				q.transaction_rentMany(cid, mids);
 			}
-			else if (t.equals("quit")) {
-				System.exit(0);
+		}
+		else if (t.equals("return")) {
+			/* return a movie previously rented, or several at once */
+			int[] mids = movieIds(st);
+			if (mids.length == 1) {
+				out.println("Returning the movie id " + mids[0]);
+				q.transaction_return(cid, mids[0]);
+			} else {
+				out.println("Returning the movie ids " + Arrays.toString(mids));
+				q.transaction_returnMany(cid, mids);
 			}
-			else {
-				System.out.println("Error: unrecognized command '" + t
-								   + "'");
+		}
+		else if (t.equals("fastsearch")) {
+			/* same as search, only faster (and single words only) */
+			if (st.hasMoreTokens()) {
+				String movie_title = st.nextToken("\n").trim(); /* read the rest of the line */
+				out.println("Fast Searching for the movie '"
+							+ movie_title + "'");
+				if (q.getPageSize() > 0)
+					page(cid, q, cursor, "fastsearch", movie_title, -1, out);
+				else
+					q.transaction_fastSearch(cid, movie_title);
+			} else {
+				out.println("Error: need to type in movie title");
 			}
 		}
+		else if (t.equals("next")) {
+			/* the next page of the last search or fastsearch */
+			if (cursor.command == null)
+				out.println("Error: no more results, search first");
+			else
+				page(cid, q, cursor, cursor.command, cursor.movie_title, cursor.after_mid, out);
+		}
+		else if (t.equals("me")) {
+			/* name and remaining rentals */
+			q.transaction_printPersonalData(cid);
+		}
+		else if (t.equals("stats")) {
+			/* transaction, cache and index statistics */
+			out.print(q.getStatistics());
+		}
+		else if (t.equals("metrics")) {
+			/* latency per transaction and per SQL statement */
+			out.print(q.getMetrics().dump());
+		}
+		else {
+			out.println("Error: unrecognized command '" + t
+						+ "'");
+		}
+	}
+
+	/* shows one page and remembers where the next one starts */
+	private static void page(int cid, Query q, Cursor cursor, String command, String movie_title, int after_mid,
+							 PrintStream out) throws Exception {
+		cursor.command = null;
+		if (command.equals("search"))
+			after_mid = q.transaction_searchPage(cid, movie_title, q.getPageSize(), after_mid);
+		else
+			after_mid = q.transaction_fastSearchPage(cid, movie_title, q.getPageSize(), after_mid);
+		if (after_mid >= 0) {
+			cursor.command = command;
+			cursor.movie_title = movie_title;
+			cursor.after_mid = after_mid;
+			out.println("(more results: next)");
+		}
+	}
+
+	/* the remaining tokens, which must be at least one movie id */
+	private static int[] movieIds(StringTokenizer st) {
+		int[] mids = new int[st.countTokens()];
+		for (int i = 0; i < mids.length; i++)
+			mids[i] = Integer.parseInt(st.nextToken());
+		if (mids.length == 0)
+			throw new NoSuchElementException("need a movie id");
+		return mids;
 	}
 
 	public static void main(String[] args) throws Exception {
@@ -114,16 +193,15 @@ public class VideoStore {
 			System.exit(1);
 		}
 		
-		/* prepare the database connection stuff */
+		/* authenticate the user; only the customer database is needed for that */
 		Query q = new Query(DBCONFIG_FILENAME);
-		q.openConnection();
-		q.prepareStatements();
-
-		/* authenticate the user */
+		q.openCustomerConnection();
 		int cid = q.transaction_login(args[0], args[1]);			
-		if (cid >= 0)
+		if (cid >= 0) {
+			/* now prepare the rest of the database connection stuff */
+			q.openConnection();
 			menu(cid, q); /* menu(...) does the real work */
-		else
+		} else
 			System.out.println("Sorry, login failed..."); /* innocent mistake, or malicious attack ? */
 		q.closeConnection();
 	}
@@ -0,0 +1,303 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Serves the VideoStore commands to many customers at once over TCP.
+ *
+ * Each connection is a session speaking the same line-based commands as the
+ * VideoStore menu, after a "login <name> <password>" line. Every response ends
+ * with a line holding a single ".". "format json" switches the session's search
+ * and fastsearch results to JsonResultSink objects, "format text" back.
+ *
+ *   java VideoStoreServer [port] [workers]
+ *
+ * One selector thread does all the socket I/O. Complete command lines are
+ * handed to a fixed pool of workers sharing a single Query, whose connection
+ * pools are sized to match. A session runs one command at a time, in the
+ * order they arrived. The selector stops reading from a session when it has
+ * MAX_PENDING_COMMANDS queued, and resumes once they have run.
+ */
+public class VideoStoreServer {
+    private static final String DBCONFIG_FILENAME = System.getProperty("videostore.config", "dbconn.properties");
+
+    private static final int DEFAULT_PORT = 5544;
+    private static final int DEFAULT_WORKERS = 16;
+
+    private static final int MAX_LINE_LENGTH = 8192;
+    private static final int MAX_PENDING_COMMANDS = 64;
+
+    static final String END_OF_RESPONSE = ".";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static class Session {
+        final SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocate(MAX_LINE_LENGTH);
+        final ArrayDeque<String> pending = new ArrayDeque<String>();
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+        boolean busy = false;
+        boolean closing = false;
+        /* used by the workers, which run one command of a session at a time */
+        volatile int cid = -1;
+        final VideoStore.Cursor cursor = new VideoStore.Cursor();
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        final PrintStream print = new PrintStream(buf);
+        volatile ResultSink results = new TextResultSink(new OutputStreamWriter(print, UTF8));
+
+        Session(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private static class Response {
+        final Session session;
+        final ByteBuffer bytes;
+        final boolean quit;
+
+        Response(Session session, ByteBuffer bytes, boolean quit) {
+            this.session = session;
+            this.bytes = bytes;
+            this.quit = quit;
+        }
+    }
+
+    private final Query q;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final ExecutorService workers;
+    private final ConcurrentLinkedQueue<Response> responses = new ConcurrentLinkedQueue<Response>();
+
+    public VideoStoreServer(Query q, int port, int workers) throws IOException {
+        this.q = q;
+        this.workers = Executors.newFixedThreadPool(workers);
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.socket().setReuseAddress(true);
+        server.socket().bind(new InetSocketAddress(port));
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_WORKERS;
+
+        Query q = new Query(DBCONFIG_FILENAME);
+        q.setPoolSize(workers);
+        q.openConnection();
+
+        VideoStoreServer s = new VideoStoreServer(q, port, workers);
+        System.out.println("VideoStoreServer listening on port " + port + " with " + workers + " workers");
+        try {
+            s.run();
+        } finally {
+            s.close();
+            q.closeConnection();
+        }
+    }
+
+    /* the selector loop; returns when the thread is interrupted */
+    public void run() throws IOException {
+        while (!Thread.currentThread().isInterrupted()) {
+            selector.select();
+
+            Response r;
+            while ((r = responses.poll()) != null)
+                completed(r);
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                try {
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable())
+                        accept();
+                    if (key.isValid() && key.isReadable())
+                        read(key);
+                    if (key.isValid() && key.isWritable())
+                        write(key);
+                } catch (IOException e) {
+                    /* the client went away */
+                    closeSession(key);
+                }
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        workers.shutdownNow();
+        for (SelectionKey key : selector.keys())
+            key.channel().close();
+        selector.close();
+    }
+
+    /**********************************************************/
+    /* selector thread */
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null)
+            return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.register(selector, SelectionKey.OP_READ, new Session(channel));
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Session s = (Session) key.attachment();
+        if (s.channel.read(s.in) < 0) {
+            /* half-closed: finish what was asked for, then close */
+            s.closing = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            if (!s.busy && s.pending.isEmpty() && s.out.isEmpty())
+                closeSession(key);
+            return;
+        }
+
+        s.in.flip();
+        int start = 0;
+        for (int i = s.in.position(); i < s.in.limit(); i++) {
+            if (s.in.get(i) == '\n') {
+                byte[] line = new byte[i - start];
+                s.in.position(start);
+                s.in.get(line);
+                s.in.get(); /* the '\n' */
+                s.pending.add(new String(line, UTF8).trim());
+                start = i + 1;
+            }
+        }
+        s.in.position(start);
+        s.in.compact();
+
+        if (!s.in.hasRemaining()) {
+            /* a line longer than the buffer; nothing sensible to do with it */
+            closeSession(key);
+            return;
+        }
+        if (s.pending.size() >= MAX_PENDING_COMMANDS)
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        dispatch(s);
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Session s = (Session) key.attachment();
+        while (!s.out.isEmpty()) {
+            ByteBuffer b = s.out.peek();
+            s.channel.write(b);
+            if (b.hasRemaining())
+                return; /* socket buffer full, wait for OP_WRITE */
+            s.out.poll();
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        if (s.closing && !s.busy && s.pending.isEmpty())
+            closeSession(key);
+    }
+
+    private void completed(Response r) {
+        Session s = r.session;
+        SelectionKey key = s.channel.keyFor(selector);
+        if (key == null || !key.isValid())
+            return;
+        s.busy = false;
+        s.out.add(r.bytes);
+        if (r.quit) {
+            s.closing = true;
+            s.pending.clear();
+            key.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+        int ops = key.interestOps() | SelectionKey.OP_WRITE;
+        if (!s.closing && s.pending.size() < MAX_PENDING_COMMANDS)
+            ops |= SelectionKey.OP_READ;
+        key.interestOps(ops);
+        dispatch(s);
+    }
+
+    /* hands the session's next command to a worker, unless one is already running */
+    private void dispatch(final Session s) {
+        if (s.busy || s.pending.isEmpty())
+            return;
+        final String line = s.pending.poll();
+        s.busy = true;
+        workers.execute(new Runnable() {
+            public void run() {
+                responses.add(execute(s, line));
+                selector.wakeup();
+            }
+        });
+    }
+
+    private void closeSession(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**********************************************************/
+    /* worker threads */
+
+    private Response execute(Session s, String line) {
+        PrintStream out = s.print;
+        boolean quit = false;
+
+        s.buf.reset();
+        Query.setOutput(out);
+        Query.setResultSink(s.results);
+        try {
+            StringTokenizer st = new StringTokenizer(line);
+            String t = st.hasMoreTokens() ? st.nextToken() : "";
+            if (t.equals("quit")) {
+                out.println("BYE");
+                quit = true;
+            }
+            else if (t.equals("login")) {
+                if (st.countTokens() != 2) {
+                    out.println("Error: login <name> <password>");
+                } else {
+                    s.cid = q.transaction_login(st.nextToken(), st.nextToken());
+                    if (s.cid >= 0)
+                        q.transaction_printPersonalData(s.cid);
+                    else
+                        out.println("Sorry, login failed...");
+                }
+            }
+            else if (t.equals("format")) {
+                String format = st.hasMoreTokens() ? st.nextToken() : "";
+                if (format.equals("json"))
+                    s.results = new JsonResultSink(new OutputStreamWriter(out, UTF8));
+                else if (format.equals("text"))
+                    s.results = new TextResultSink(new OutputStreamWriter(out, UTF8));
+                else
+                    out.println("Error: format json|text");
+            }
+            else if (s.cid < 0) {
+                out.println("Error: please login first");
+            }
+            else {
+                VideoStore.command(s.cid, q, s.cursor, line, out);
+            }
+        } catch (Exception e) {
+            out.println("Error: " + e);
+        } finally {
+            Query.setOutput(null);
+            Query.setResultSink(null);
+        }
+
+        out.println(END_OF_RESPONSE);
+        out.flush();
+        return new Response(s, ByteBuffer.wrap(s.buf.toByteArray()), quit);
+    }
+}
@@ -1,3 +1,5 @@
+DROP TABLE SCHEMA_VERSION;
+DROP TABLE RENTAL_LOG_CHECKPOINT;
 DROP TABLE RENTALS;
 DROP TABLE CUSTOMERS;
 DROP TABLE PLANS;
@@ -0,0 +1,7 @@
+-- CUSTOMERS.open_rentals (see setup.sql) for databases created before it existed,
+-- seeded from RENTALS, and its chk_Open_Rentals constraint; recounting again is harmless
+IF COL_LENGTH('CUSTOMERS', 'open_rentals') IS NULL
+	ALTER TABLE CUSTOMERS ADD open_rentals integer NOT NULL DEFAULT 0;
+UPDATE CUSTOMERS SET open_rentals = (SELECT COUNT(*) FROM RENTALS AS R WHERE R.customerid = CUSTOMERS.id AND R.status = 1);
+IF OBJECT_ID('chk_Open_Rentals') IS NULL
+	ALTER TABLE CUSTOMERS ADD CONSTRAINT chk_Open_Rentals CHECK(open_rentals >= 0);
@@ -0,0 +1,8 @@
+-- RENTAL_LOG_CHECKPOINT (see setup.sql) for databases created before it existed
+IF OBJECT_ID('RENTAL_LOG_CHECKPOINT') IS NULL
+	CREATE TABLE RENTAL_LOG_CHECKPOINT(
+		id integer PRIMARY KEY,
+		seq bigint NOT NULL
+		);
+IF NOT EXISTS (SELECT * FROM RENTAL_LOG_CHECKPOINT WHERE id = 1)
+	INSERT INTO RENTAL_LOG_CHECKPOINT VALUES (1, 0);
@@ -0,0 +1,9 @@
+-- Every lookup of a movie's renter filters on movieid and status = 1 and reads
+-- customerid: CUSTOMER_ID_FROM_RENTAL_SQL, CUSTOMER_ID_FROM_RENTALS_IN_SQL,
+-- GET_RENTAL_STATUS_COUNT_SQL, RETURN_RENTAL_SQL, RETURN_IF_RENTED_SQL and
+-- OPEN_RENTALS_SQL. Filtered on the open rows only, the index stays as small as
+-- the number of movies out, however long the history grows, and with
+-- customerid included none of them touches the clustered index.
+IF EXISTS (SELECT * FROM sys.indexes WHERE name = 'RENTALS_Open_Movie' AND object_id = OBJECT_ID('RENTALS'))
+	DROP INDEX RENTALS_Open_Movie ON RENTALS;
+CREATE UNIQUE NONCLUSTERED INDEX RENTALS_Open_Movie ON RENTALS (movieid) INCLUDE (customerid) WHERE status = 1;
@@ -0,0 +1,4 @@
+-- CUSTOMER_LOGIN_SQL looks customers up by login; without an index that is a
+-- scan of CUSTOMERS on every login. Logins must be unique anyway.
+IF NOT EXISTS (SELECT * FROM sys.indexes WHERE name = 'CUSTOMERS_Login' AND object_id = OBJECT_ID('CUSTOMERS'))
+	CREATE UNIQUE NONCLUSTERED INDEX CUSTOMERS_Login ON CUSTOMERS (login) INCLUDE (password);
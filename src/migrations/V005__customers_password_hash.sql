@@ -0,0 +1,9 @@
+-- CUSTOMERS.password_hash holds a salted PBKDF2 hash of the password (see
+-- PasswordHash). Existing passwords stay in plaintext until the customer's
+-- next login, or "java PasswordHash upgrade", writes the hash and empties them.
+IF COL_LENGTH('CUSTOMERS', 'password_hash') IS NULL
+	ALTER TABLE CUSTOMERS ADD password_hash varchar(100) NULL;
+
+-- CUSTOMER_LOGIN_SQL reads both from the login index
+CREATE UNIQUE NONCLUSTERED INDEX CUSTOMERS_Login ON CUSTOMERS (login) INCLUDE (password, password_hash)
+	WITH (DROP_EXISTING = ON);
@@ -27,6 +27,7 @@ Customer: a customer has
 	a first name and 
 	a last name. 
 	Each customer has exactly one rental plan. 
+	open_rentals is the number of the customer's open rentals; the rent and return transactions keep it in step with RENTALS, and "java ConsistencyChecker" audits it. 
 */
 CREATE TABLE CUSTOMERS(
 	id integer PRIMARY KEY CLUSTERED,
@@ -34,16 +35,18 @@ CREATE TABLE CUSTOMERS(
 	password varchar(50) NOT NULL,
 	fname varchar(50) NOT NULL,
 	lname varchar(50),
-	plan_id integer FOREIGN KEY REFERENCES PLANS(id)
+	plan_id integer FOREIGN KEY REFERENCES PLANS(id),
+	open_rentals integer NOT NULL DEFAULT 0,
+	CONSTRAINT chk_Open_Rentals CHECK(open_rentals >= 0)
 	);
-INSERT INTO CUSTOMERS VALUES (1, 'jd', 'j1o', 'joe', 'danger', 4);
-INSERT INTO CUSTOMERS VALUES (2, 'ss', 's2s', 'sam', 'sung', 3);
-INSERT INTO CUSTOMERS VALUES (3, 'ms', 'm3s', 'micro', 'soft', 2);
-INSERT INTO CUSTOMERS VALUES (4, 'vw', 'v4w', 'volks', 'wagen', 1);
-INSERT INTO CUSTOMERS VALUES (5, 'sh', 's5h', 'sea', 'hawks', 1);
-INSERT INTO CUSTOMERS VALUES (6, 'id', 'i6d', 'in', 'dia', 2);
-INSERT INTO CUSTOMERS VALUES (7, 'ff', 'f7f', 'french', 'fries', 3);
-INSERT INTO CUSTOMERS VALUES (8, 'js', 'j8s', 'john', 'smith', 4);
+INSERT INTO CUSTOMERS VALUES (1, 'jd', 'j1o', 'joe', 'danger', 4, 0);
+INSERT INTO CUSTOMERS VALUES (2, 'ss', 's2s', 'sam', 'sung', 3, 0);
+INSERT INTO CUSTOMERS VALUES (3, 'ms', 'm3s', 'micro', 'soft', 2, 0);
+INSERT INTO CUSTOMERS VALUES (4, 'vw', 'v4w', 'volks', 'wagen', 1, 0);
+INSERT INTO CUSTOMERS VALUES (5, 'sh', 's5h', 'sea', 'hawks', 1, 0);
+INSERT INTO CUSTOMERS VALUES (6, 'id', 'i6d', 'in', 'dia', 2, 0);
+INSERT INTO CUSTOMERS VALUES (7, 'ff', 'f7f', 'french', 'fries', 3, 0);
+INSERT INTO CUSTOMERS VALUES (8, 'js', 'j8s', 'john', 'smith', 4, 0);
 -- SELECT * FROM CUSTOMERS;
 
 
@@ -64,6 +67,9 @@ CREATE TABLE RENTALS(
 	CONSTRAINT chk_Status CHECK(status=0 OR status=1) -- opened = 1, closed = 0
 	);
 CREATE CLUSTERED INDEX RENTAL_Index ON RENTALS (customerid);
+-- at most one open rental per movie; the optimistic rent mode relies on it
+CREATE UNIQUE NONCLUSTERED INDEX RENTALS_Open_Movie ON RENTALS (movieid) WHERE status = 1;
+-- later indexes and schema changes are in migrations/; after this script, run "java Migrator migrate"
 
 INSERT INTO RENTALS VALUES (1, 93055, 1, DATEADD(hour, 0, SYSDATETIME()));
 INSERT INTO RENTALS VALUES (1, 349560, 1, DATEADD(hour, -1, SYSDATETIME()));
@@ -75,6 +81,15 @@ INSERT INTO RENTALS VALUES (3, 596836, 1, DATEADD(hour, -5, SYSDATETIME()));
 INSERT INTO RENTALS VALUES (3, 118685, 1, DATEADD(hour, -6, SYSDATETIME()));
 INSERT INTO RENTALS VALUES (3, 93055, 0, DATEADD(hour, -9, SYSDATETIME()));
 INSERT INTO RENTALS VALUES (4, 497670, 1, DATEADD(hour, -7, SYSDATETIME()));
+UPDATE CUSTOMERS SET open_rentals = (SELECT COUNT(*) FROM RENTALS AS R WHERE R.customerid = CUSTOMERS.id AND R.status = 1);
+
+-- the last rental log event copied into RENTALS (videostore.rental_log); RentalLog
+-- updates it in the same transaction as the events, so recovery knows where to resume
+CREATE TABLE RENTAL_LOG_CHECKPOINT(
+	id integer PRIMARY KEY,
+	seq bigint NOT NULL
+	);
+INSERT INTO RENTAL_LOG_CHECKPOINT VALUES (1, 0);
 -- SELECT * FROM RENTALS;
 
 /*
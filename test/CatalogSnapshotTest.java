@@ -0,0 +1,120 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.sql.Types;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CatalogSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static CatalogSnapshot.Builder builder() throws Exception {
+        CatalogSnapshot.Builder b = new CatalogSnapshot.Builder();
+        b.addMovies(new Rows(Types.INTEGER, Types.VARCHAR, Types.INTEGER)
+                .add(1, "The Godfather", 1972)
+                .add(2, "Star Wars", 1977)
+                .add(5, "Untitled", null)
+                .get());
+        b.addDirectors(new Rows(Types.INTEGER, Types.VARCHAR, Types.VARCHAR)
+                .add(100, "Francis", "Coppola")
+                .add(200, "George", "Lucas")
+                .get());
+        /* links to a movie or person that is not there are dropped */
+        b.addMovieDirectors(new Rows(Types.INTEGER, Types.INTEGER)
+                .add(2, 200)
+                .add(1, 100)
+                .add(3, 100)
+                .add(5, 999)
+                .get());
+        b.addActors(new Rows(Types.INTEGER, Types.VARCHAR, Types.VARCHAR)
+                .add(7, "Marlon", "Brando")
+                .add(8, "Al", "Pacino")
+                .add(9, "Mark", null)
+                .get());
+        b.addCasts(new Rows(Types.INTEGER, Types.INTEGER)
+                .add(1, 7)
+                .add(2, 9)
+                .add(1, 8)
+                .get());
+        return b;
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        File file = new File(folder.getRoot(), "catalog.snapshot");
+        builder().write(file, 42);
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+        assertEquals(42, CatalogSnapshot.readVersion(file));
+
+        CatalogSnapshot s = CatalogSnapshot.open(file);
+        assertEquals(42, s.getVersion());
+        assertEquals(3, s.size());
+        assertEquals(file.length(), s.sizeInBytes());
+
+        assertEquals(1, s.movieId(0));
+        assertEquals("The Godfather", s.movieTitle(0));
+        assertEquals("1972", s.movieYear(0));
+        assertEquals(5, s.movieId(2));
+        assertNull(s.movieYear(2));
+
+        assertEquals(1, s.directorCount(0));
+        assertEquals("Francis", s.firstName(s.director(0, 0)));
+        assertEquals("Coppola", s.lastName(s.director(0, 0)));
+        assertEquals("Lucas", s.lastName(s.director(1, 0)));
+        assertEquals(0, s.directorCount(2));
+
+        assertEquals(2, s.actorCount(0));
+        assertEquals("Brando", s.lastName(s.actor(0, 0)));
+        assertEquals("Pacino", s.lastName(s.actor(0, 1)));
+        assertEquals(1, s.actorCount(1));
+        assertEquals("Mark", s.firstName(s.actor(1, 0)));
+        assertEquals("", s.lastName(s.actor(1, 0)));
+        assertEquals(0, s.actorCount(2));
+    }
+
+    @Test
+    public void findReturnsRowsInIdOrder() throws Exception {
+        File file = new File(folder.getRoot(), "catalog.snapshot");
+        builder().write(file, 1);
+        CatalogSnapshot s = CatalogSnapshot.open(file);
+
+        assertArrayEquals(new int[] { 0, 1, 2 }, s.find("T"));
+        assertArrayEquals(new int[] { 1 }, s.find("STAR"));
+        assertArrayEquals(new int[0], s.find("casablanca"));
+        /* pages: the first match after an id, at most limit of them */
+        assertArrayEquals(new int[] { 0 }, s.find("t", 0, 1));
+        assertArrayEquals(new int[] { 1, 2 }, s.find("t", 1, 5));
+        assertArrayEquals(new int[] { 2 }, s.find("t", 2, 5));
+        assertArrayEquals(new int[0], s.find("t", 5, 5));
+    }
+
+    @Test
+    public void aNewerSnapshotReplacesTheFile() throws Exception {
+        File file = new File(folder.getRoot(), "catalog.snapshot");
+        builder().write(file, 1);
+        CatalogSnapshot old = CatalogSnapshot.open(file);
+        builder().write(file, 2);
+        assertEquals(2, CatalogSnapshot.readVersion(file));
+        assertEquals(1, old.getVersion());
+        assertEquals("Star Wars", old.movieTitle(1));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void refusesToWriteWithoutTheLinks() throws Exception {
+        CatalogSnapshot.Builder b = new CatalogSnapshot.Builder();
+        b.addMovies(new Rows(Types.INTEGER, Types.VARCHAR, Types.INTEGER).add(1, "Go", 1999).get());
+        b.write(new File(folder.getRoot(), "catalog.snapshot"), 1);
+    }
+
+    @Test(expected = java.sql.SQLException.class)
+    public void refusesMoviesOutOfOrder() throws Exception {
+        new CatalogSnapshot.Builder().addMovies(new Rows(Types.INTEGER, Types.VARCHAR, Types.INTEGER)
+                .add(2, "Star Wars", 1977)
+                .add(1, "The Godfather", 1972)
+                .get());
+    }
+}
@@ -0,0 +1,87 @@
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class IntIntMapTest {
+
+    @Test
+    public void putGetAndOverwrite() {
+        IntIntMap m = new IntIntMap(4);
+        assertEquals(-1, m.get(7, -1));
+        assertFalse(m.containsKey(7));
+
+        m.put(7, 70);
+        m.put(-3, 30);
+        m.put(0, 0);
+        assertEquals(3, m.size());
+        assertEquals(70, m.get(7, -1));
+        assertEquals(30, m.get(-3, -1));
+        assertTrue(m.containsKey(0));
+
+        m.put(7, 71);
+        assertEquals(3, m.size());
+        assertEquals(71, m.get(7, -1));
+    }
+
+    @Test
+    public void removeAndClear() {
+        IntIntMap m = new IntIntMap(4);
+        m.put(1, 10);
+        m.put(2, 20);
+        assertTrue(m.remove(1));
+        assertFalse(m.remove(1));
+        assertEquals(1, m.size());
+        assertEquals(-1, m.get(1, -1));
+        assertEquals(20, m.get(2, -1));
+
+        m.clear();
+        assertEquals(0, m.size());
+        assertFalse(m.containsKey(2));
+    }
+
+    @Test
+    public void growsPastItsExpectedSize() {
+        IntIntMap m = new IntIntMap(1);
+        for (int i = 0; i < 10000; i++)
+            m.put(i * 31, i);
+        assertEquals(10000, m.size());
+        for (int i = 0; i < 10000; i++)
+            assertEquals(i, m.get(i * 31, -1));
+        assertTrue(m.sizeInBytes() >= 8L * 10000);
+    }
+
+    /* many removes in crowded probe runs exercise shiftBack */
+    @Test
+    public void agreesWithHashMap() {
+        Random random = new Random(544);
+        IntIntMap m = new IntIntMap(16);
+        Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+        for (int i = 0; i < 200000; i++) {
+            int key = random.nextInt(512) - 256;
+            switch (random.nextInt(3)) {
+            case 0:
+                m.put(key, i);
+                expected.put(key, i);
+                break;
+            case 1:
+                assertEquals(expected.remove(key) != null, m.remove(key));
+                break;
+            default:
+                Integer v = expected.get(key);
+                assertEquals(v == null ? -1 : v.intValue(), m.get(key, -1));
+            }
+            assertEquals(expected.size(), m.size());
+        }
+        for (Map.Entry<Integer, Integer> e : expected.entrySet())
+            assertEquals(e.getValue().intValue(), m.get(e.getKey(), -1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTheReservedKey() {
+        new IntIntMap(4).put(Integer.MIN_VALUE, 1);
+    }
+}
@@ -0,0 +1,72 @@
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getPercentile(50));
+        assertEquals(0, h.getMax());
+        assertEquals(0.0, h.getMean(), 0.0);
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int v = 1; v <= 50; v++)
+            h.record(v);
+        assertEquals(50, h.getCount());
+        assertEquals(25, h.getPercentile(50));
+        assertEquals(50, h.getPercentile(100));
+        assertEquals(1, h.getPercentile(0));
+        assertEquals(25.5, h.getMean(), 1e-9);
+        assertEquals(50, h.getMax());
+    }
+
+    @Test
+    public void largeValuesAreWithinABucket() {
+        Random random = new Random(544);
+        LatencyHistogram h = new LatencyHistogram();
+        long[] values = new long[10000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 1 + (long) (random.nextDouble() * 1000000000L);
+            h.record(values[i]);
+        }
+        Arrays.sort(values);
+        for (double p : new double[] { 10, 50, 90, 99, 99.9 }) {
+            long exact = values[(int) Math.ceil(values.length * p / 100.0) - 1];
+            long reported = h.getPercentile(p);
+            assertTrue(p + ": " + reported + " < " + exact, reported >= exact);
+            assertTrue(p + ": " + reported + " vs " + exact, reported - exact <= exact / 16);
+        }
+        assertEquals(values[values.length - 1], h.getMax());
+        assertEquals(values[values.length - 1], h.getPercentile(100));
+    }
+
+    @Test
+    public void negativeValuesCountAsZero() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(-5);
+        assertEquals(1, h.getCount());
+        assertEquals(0, h.getPercentile(50));
+    }
+
+    @Test
+    public void resetForgetsEverything() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(1000);
+        h.record(Long.MAX_VALUE);
+        h.reset();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getMax());
+        assertEquals(0, h.getPercentile(99));
+        h.record(3);
+        assertEquals(3, h.getPercentile(50));
+    }
+}
@@ -0,0 +1,47 @@
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class PasswordHashTest {
+
+    @Test
+    public void verifiesTheHashedPasswordOnly() {
+        String stored = PasswordHash.hash("secret", 1000);
+        assertTrue(PasswordHash.verify("secret", stored));
+        assertFalse(PasswordHash.verify("Secret", stored));
+        assertFalse(PasswordHash.verify("", stored));
+    }
+
+    @Test
+    public void storesTheFormatAndIterations() {
+        String stored = PasswordHash.hash("secret", 1234);
+        String[] parts = stored.split(":");
+        assertEquals(4, parts.length);
+        assertEquals("pbkdf2-sha1", parts[0]);
+        assertEquals(1234, PasswordHash.iterations(stored));
+        assertEquals(32, parts[2].length());   // 16 salt bytes
+        assertEquals(40, parts[3].length());   // 160 hash bits
+    }
+
+    @Test
+    public void everyHashGetsItsOwnSalt() {
+        String a = PasswordHash.hash("secret", 1000);
+        String b = PasswordHash.hash("secret", 1000);
+        assertFalse(a.equals(b));
+        assertTrue(PasswordHash.verify("secret", a));
+        assertTrue(PasswordHash.verify("secret", b));
+    }
+
+    /* a hash made with other iterations still verifies (the login then rehashes it) */
+    @Test
+    public void verifiesWithTheStoredIterations() {
+        String stored = PasswordHash.hash("secret", 10);
+        assertTrue(PasswordHash.verify("secret", stored));
+        assertEquals(10, PasswordHash.iterations(stored));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOtherFormats() {
+        PasswordHash.verify("secret", "md5:abc");
+    }
+}
@@ -0,0 +1,167 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.sql.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/* against an in-memory H2 database with the three tables the log uses */
+public class RentalLogTest {
+    /* seq, time, type, cid, mid, crc */
+    private static final int RECORD_SIZE = 32;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Connection c;
+    private File file;
+
+    @Before
+    public void createTables() throws Exception {
+        c = DriverManager.getConnection("jdbc:h2:mem:;MODE=MSSQLServer");
+        Statement st = c.createStatement();
+        st.execute("CREATE TABLE RENTALS (customerid int, movieid int, status int, date datetime)");
+        st.execute("CREATE TABLE CUSTOMERS (id int PRIMARY KEY, open_rentals int)");
+        st.execute("CREATE TABLE RENTAL_LOG_CHECKPOINT (id int PRIMARY KEY, seq bigint)");
+        st.execute("INSERT INTO CUSTOMERS VALUES (1, 0), (2, 0)");
+        st.execute("INSERT INTO RENTAL_LOG_CHECKPOINT VALUES (1, 0)");
+        st.close();
+        file = new File(folder.getRoot(), "rentals.log");
+    }
+
+    @After
+    public void close() throws Exception {
+        c.close();
+    }
+
+    private int queryInt(String sql) throws SQLException {
+        Statement st = c.createStatement();
+        try {
+            ResultSet rs = st.executeQuery(sql);
+            assertTrue(sql, rs.next());
+            return rs.getInt(1);
+        } finally {
+            st.close();
+        }
+    }
+
+    @Test
+    public void refusesWhatThePlanOrAnotherRenterForbids() throws Exception {
+        RentalLog log = RentalLog.open(file, c);
+        try {
+            assertTrue(log.rent(1, 10, 1) > 0);
+            assertEquals(-1, log.rent(1, 20, 1));      // plan full
+            assertEquals(-1, log.rent(2, 10, 5));      // 10 is out
+            assertEquals(-1, log.returned(2, 10));     // not 2's
+            assertEquals(1, log.getRenter(10));
+            assertEquals(-1, log.getRenter(20));
+            assertEquals(1, log.getOpenRentals(1));
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    public void replaysDurableEventsNotYetInRentals() throws Exception {
+        RentalLog log = RentalLog.open(file, c);
+        log.awaitDurable(log.rent(1, 10, 5));
+        log.awaitDurable(log.rent(1, 20, 5));
+        log.awaitDurable(log.returned(1, 10));
+        log.close();
+
+        log = RentalLog.open(file, c);
+        try {
+            assertEquals(-1, log.getRenter(10));
+            assertEquals(1, log.getRenter(20));
+            assertEquals(1, log.getOpenRentals(1));
+            assertEquals(3, log.getBacklog());
+
+            assertEquals(3, log.applyTo(c, 100));
+            assertEquals(1, queryInt("SELECT COUNT(*) FROM RENTALS WHERE status = 1"));
+            assertEquals(1, queryInt("SELECT open_rentals FROM CUSTOMERS WHERE id = 1"));
+            assertEquals(3, queryInt("SELECT seq FROM RENTAL_LOG_CHECKPOINT WHERE id = 1"));
+        } finally {
+            log.close();
+        }
+
+        /* past the checkpoint there is nothing to replay, and nothing is written twice */
+        log = RentalLog.open(file, c);
+        try {
+            assertEquals(0, log.getBacklog());
+            assertEquals(1, log.getRenter(20));
+            assertEquals(1, log.getOpenRentals(1));
+            assertTrue(log.rent(2, 30, 5) > 3);
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    public void cutsOffACartTheCrashLeftUnfinished() throws Exception {
+        RentalLog log = RentalLog.open(file, c);
+        log.awaitDurable(log.rent(1, 10, 5));
+        log.awaitDurable(log.rentAll(2, new int[] { 20, 30, 40 }, 5));
+        log.close();
+
+        /* the crash tore off the cart's last record */
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        long whole = raf.length();
+        raf.setLength(whole - RECORD_SIZE);
+        raf.close();
+
+        log = RentalLog.open(file, c);
+        try {
+            assertEquals(1, log.getRenter(10));
+            assertEquals(-1, log.getRenter(20));
+            assertEquals(-1, log.getRenter(30));
+            assertEquals(0, log.getOpenRentals(2));
+            assertEquals(1, log.getBacklog());
+            assertEquals(whole - 3 * RECORD_SIZE, file.length());
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    public void replaysAWholeCart() throws Exception {
+        RentalLog log = RentalLog.open(file, c);
+        log.awaitDurable(log.rentAll(2, new int[] { 20, 30 }, 5));
+        log.awaitDurable(log.returnedAll(2, new int[] { 20, 30 }));
+        log.awaitDurable(log.rentAll(2, new int[] { 40, 50 }, 5));
+        log.close();
+
+        log = RentalLog.open(file, c);
+        try {
+            assertEquals(-1, log.getRenter(20));
+            assertEquals(2, log.getRenter(40));
+            assertEquals(2, log.getRenter(50));
+            assertEquals(2, log.getOpenRentals(2));
+            assertEquals(6, log.applyTo(c, 100));
+            assertEquals(2, queryInt("SELECT open_rentals FROM CUSTOMERS WHERE id = 2"));
+        } finally {
+            log.close();
+        }
+    }
+
+    /* a rent of a movie RENTALS already has open changes nothing and is not counted */
+    @Test
+    public void skipsEventsThatChangeNoRow() throws Exception {
+        RentalLog log = RentalLog.open(file, c);
+        try {
+            log.awaitDurable(log.rent(1, 10, 5));
+            Statement st = c.createStatement();
+            st.execute("INSERT INTO RENTALS VALUES (2, 10, 1, CURRENT_TIMESTAMP)");
+            st.close();
+            assertEquals(1, log.applyTo(c, 100));
+            assertEquals(0, queryInt("SELECT open_rentals FROM CUSTOMERS WHERE id = 1"));
+            assertTrue(log.statistics(), log.statistics().contains("1 skipped by RENTALS"));
+        } finally {
+            log.close();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+import java.sql.ResultSet;
+import java.sql.Types;
+
+import org.h2.tools.SimpleResultSet;
+
+/* in-memory result sets for the classes that load from one, so their tests need no database */
+class Rows {
+    private final SimpleResultSet rs = new SimpleResultSet();
+
+    /* columns named c1, c2, ...; types are java.sql.Types */
+    Rows(int... types) {
+        for (int i = 0; i < types.length; i++)
+            rs.addColumn("c" + (i + 1), types[i], types[i] == Types.VARCHAR ? 255 : 10, 0);
+    }
+
+    Rows add(Object... row) {
+        rs.addRow(row);
+        return this;
+    }
+
+    ResultSet get() {
+        return rs;
+    }
+
+    /* (id, name) rows, as TitleIndex and TitleScan read them */
+    static ResultSet titles(String... names) {
+        Rows rows = new Rows(Types.INTEGER, Types.VARCHAR);
+        for (int i = 0; i < names.length; i++)
+            rows.add(10 * (i + 1), names[i]);
+        return rows.get();
+    }
+}
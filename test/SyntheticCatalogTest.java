@@ -0,0 +1,62 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SyntheticCatalogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File script(String text) throws Exception {
+        File f = folder.newFile();
+        Writer w = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+        try {
+            w.write(text);
+        } finally {
+            w.close();
+        }
+        return f;
+    }
+
+    @Test
+    public void splitsOnSemicolonsAndDropsComments() throws Exception {
+        List<String> statements = SyntheticCatalog.statements(script(
+                "-- a comment; with a semicolon\n" +
+                "CREATE TABLE PLANS (id int);\n" +
+                "/* a block comment;\n   over two lines */\n" +
+                "INSERT INTO PLANS VALUES (1); -- trailing\n" +
+                "\n" +
+                "  SELECT *\n  FROM PLANS  \n"));
+        assertEquals(Arrays.asList(
+                "CREATE TABLE PLANS (id int)",
+                "INSERT INTO PLANS VALUES (1)",
+                "SELECT *\n  FROM PLANS"), statements);
+    }
+
+    @Test
+    public void anEmptyScriptHasNoStatements() throws Exception {
+        assertTrue(SyntheticCatalog.statements(script("-- nothing\n;\n/* here */;\n")).isEmpty());
+    }
+
+    /* the scripts SyntheticCatalog and the benchmarks load */
+    @Test
+    public void readsSetupSql() throws Exception {
+        List<String> statements = SyntheticCatalog.statements(new File("../src/setup.sql"));
+        assertFalse(statements.isEmpty());
+        for (String sql : statements) {
+            assertFalse(sql, sql.isEmpty());
+            assertFalse(sql, sql.contains("--"));
+            assertFalse(sql, sql.contains("/*"));
+        }
+        assertTrue(statements.contains("INSERT INTO PLANS VALUES (4, 'plan4', 4, 40)"));
+    }
+}
@@ -0,0 +1,87 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TitleIndexTest {
+    /* ids are 10, 20, ... in this order */
+    static final String[] TITLES = {
+        "The Godfather", "The Godfather: Part II", "Star Wars", "Night Watch", null,
+        "GODZILLA", "Go", "Dark Knight Returns"
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void findsTitlesContainingTheTermIgnoringCase() throws Exception {
+        TitleIndex index = TitleIndex.build(Rows.titles(TITLES), folder.newFile("titles.idx"));
+        assertEquals(TITLES.length, index.size());
+        assertArrayEquals(new int[] { 10, 20 }, index.find("godfather"));
+        assertArrayEquals(new int[] { 10, 20, 60 }, index.find("GOD"));
+        assertArrayEquals(new int[] { 20 }, index.find(": part"));
+        assertArrayEquals(new int[0], index.find("casablanca"));
+    }
+
+    @Test
+    public void shortTermsCheckEveryTitle() throws Exception {
+        TitleIndex index = TitleIndex.build(Rows.titles(TITLES), folder.newFile("titles.idx"));
+        assertArrayEquals(new int[] { 10, 20, 60, 70 }, index.find("go"));
+        assertArrayEquals(new int[] { 10, 20, 30, 40, 50, 60, 70, 80 }, index.find(""));
+    }
+
+    @Test
+    public void reopensWhatItBuilt() throws Exception {
+        File file = folder.newFile("titles.idx");
+        TitleIndex.build(Rows.titles(TITLES), file);
+        TitleIndex index = TitleIndex.open(file);
+        assertEquals(TITLES.length, index.size());
+        assertEquals(file.length(), index.sizeInBytes());
+        assertArrayEquals(new int[] { 30 }, index.find("star"));
+    }
+
+    @Test
+    public void agreesWithAPlainScan() throws Exception {
+        String[] titles = randomTitles(2000, new Random(544));
+        TitleIndex index = TitleIndex.build(Rows.titles(titles), folder.newFile("titles.idx"));
+        for (String term : new String[] { "the", "night", "ar", "d", "king of", "lord ring", "xyz" })
+            assertArrayEquals(term, scan(titles, term), index.find(term));
+    }
+
+    @Test
+    public void leavesWildcardsToTheDatabase() {
+        assertTrue(TitleIndex.canAnswer("star wars"));
+        assertFalse(TitleIndex.canAnswer("star%"));
+        assertFalse(TitleIndex.canAnswer("st_r"));
+        assertFalse(TitleIndex.canAnswer("[s]tar"));
+    }
+
+    static String[] randomTitles(int n, Random random) {
+        String[] titles = new String[n];
+        for (int i = 0; i < n; i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int w = 1 + random.nextInt(4); w > 0; w--) {
+                String word = SyntheticCatalog.WORDS[random.nextInt(SyntheticCatalog.WORDS.length)];
+                if (sb.length() > 0)
+                    sb.append(' ');
+                sb.append(random.nextBoolean() ? word.toUpperCase() : word);
+            }
+            titles[i] = sb.toString();
+        }
+        return titles;
+    }
+
+    /* the ids Rows.titles gives the titles containing term */
+    static int[] scan(String[] titles, String term) {
+        TitleIndex.IntArray hits = new TitleIndex.IntArray(16);
+        for (int i = 0; i < titles.length; i++) {
+            if (titles[i] != null && titles[i].toLowerCase().contains(term.toLowerCase()))
+                hits.add(10 * (i + 1));
+        }
+        return hits.toArray();
+    }
+}
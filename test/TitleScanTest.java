@@ -0,0 +1,55 @@
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+public class TitleScanTest {
+
+    @Test
+    public void findsTitlesContainingTheTermIgnoringCase() throws Exception {
+        TitleScan scan = TitleScan.build(Rows.titles(TitleIndexTest.TITLES), 2);
+        try {
+            assertEquals(TitleIndexTest.TITLES.length, scan.size());
+            assertEquals(2, scan.getParallelism());
+            assertArrayEquals(new int[] { 10, 20 }, scan.find("godfather"));
+            assertArrayEquals(new int[] { 10, 20, 60, 70 }, scan.find("GO"));
+            assertArrayEquals(new int[0], scan.find("casablanca"));
+            assertArrayEquals(new int[] { 10, 20, 30, 40, 50, 60, 70, 80 }, scan.find(""));
+        } finally {
+            scan.close();
+        }
+    }
+
+    /* the separator keeps a term from matching across the end of one title and the start of the next */
+    @Test
+    public void matchesStayWithinOneTitle() throws Exception {
+        TitleScan scan = TitleScan.build(Rows.titles("star", "wars"), 1);
+        try {
+            assertArrayEquals(new int[0], scan.find("starwars"));
+            assertArrayEquals(new int[0], scan.find("r\u0000w"));
+            assertArrayEquals(new int[] { 10, 20 }, scan.find("r"));
+        } finally {
+            scan.close();
+        }
+    }
+
+    /* enough titles for find() to split them into many slices */
+    @Test
+    public void agreesWithAPlainScanAcrossSlices() throws Exception {
+        String[] titles = TitleIndexTest.randomTitles(50000, new Random(544));
+        TitleScan scan = TitleScan.build(Rows.titles(titles), 4);
+        ForkJoinPool one = new ForkJoinPool(1);
+        try {
+            for (String term : new String[] { "the", "night", "ar", "d", "king of", "lord ring", "xyz" }) {
+                int[] expected = TitleIndexTest.scan(titles, term);
+                assertArrayEquals(term, expected, scan.find(term));
+                assertArrayEquals(term, expected, scan.find(term, one));
+            }
+        } finally {
+            one.shutdown();
+            scan.close();
+        }
+    }
+}